@@ -0,0 +1,46 @@
+package com.ibasco.rpispectrum.analysis;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BandAveragingBenchmark {
+
+    @Param({"1024", "4096"})
+    private int size;
+
+    @Param({"30"})
+    private int bandCount;
+
+    @Param({"LINEAR", "THIRD_OCTAVE", "BARK"})
+    private BandScale scale;
+
+    private BandMapper mapper;
+
+    private float[] spectrum;
+
+    private float[] bands;
+
+    @Setup
+    public void setup() {
+        mapper = BandMapper.get(scale, bandCount, size, 44100);
+        spectrum = new float[size / 2 + 1];
+        bands = new float[bandCount];
+        Random random = new Random(0);
+        for (int i = 0; i < spectrum.length; i++)
+            spectrum[i] = random.nextFloat() * 100;
+    }
+
+    @Benchmark
+    public float[] map() {
+        mapper.map(spectrum, bands);
+        return bands;
+    }
+}
@@ -0,0 +1,52 @@
+package com.ibasco.rpispectrum.analysis;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FftBenchmark {
+
+    @Param({"256", "512", "1024", "2048", "4096"})
+    private int size;
+
+    private SpectrumTransform fft;
+
+    private float[] source;
+
+    private float[] data;
+
+    private float[] spectrum;
+
+    @Setup
+    public void setup() {
+        fft = new RealFFT(size, 44100);
+        source = new float[size];
+        data = new float[size];
+        spectrum = new float[fft.getBinCount()];
+        Random random = new Random(0);
+        for (int i = 0; i < size; i++)
+            source[i] = random.nextFloat() * 2 - 1;
+    }
+
+    @Benchmark
+    public float[] forward() {
+        System.arraycopy(source, 0, data, 0, size);
+        fft.forward(data);
+        return data;
+    }
+
+    @Benchmark
+    public float[] forwardMagnitude() {
+        System.arraycopy(source, 0, data, 0, size);
+        fft.forward(data);
+        fft.magnitude(data, spectrum);
+        return spectrum;
+    }
+}
@@ -0,0 +1,46 @@
+package com.ibasco.rpispectrum.analysis;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of pushing one decoder chunk through the streaming STFT
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StftAnalyzerBenchmark {
+
+    @Param({"1024"})
+    private int chunkSize;
+
+    @Param({"2048"})
+    private int frameSize;
+
+    @Param({"256", "512", "1024"})
+    private int hopSize;
+
+    private StftAnalyzer analyzer;
+
+    private float[] chunk;
+
+    @Setup
+    public void setup() {
+        analyzer = new StftAnalyzer(frameSize, hopSize, 44100, WindowFunction.HANN);
+        chunk = new float[chunkSize];
+        Random random = new Random(0);
+        for (int i = 0; i < chunkSize; i++)
+            chunk[i] = random.nextFloat() * 2 - 1;
+    }
+
+    @Benchmark
+    public long processChunk() {
+        analyzer.process(chunk, 0, chunkSize);
+        return analyzer.getFrameCount();
+    }
+}
@@ -0,0 +1,51 @@
+package com.ibasco.rpispectrum.audio;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.sound.sampled.AudioFormat;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decode side of the pipeline: PCM to float conversion and the channel split/mix
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AudioPlaybackBenchmark {
+
+    private AudioPlayback playback;
+
+    private AudioFormat format;
+
+    private byte[] pcm;
+
+    @Setup
+    public void setup() {
+        format = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, 44100, 16, 2, 4, 44100, false);
+        pcm = new byte[AudioPlayback.EXTERNAL_BUFFER_SIZE];
+        new Random(0).nextBytes(pcm);
+        playback = new AudioPlayback();
+        playback.initBuffers(format);
+        playback.applySampleBuffer(format, pcm, pcm.length);
+    }
+
+    @Benchmark
+    public void applySampleBuffer() {
+        playback.applySampleBuffer(format, pcm, pcm.length);
+    }
+
+    @Benchmark
+    public void applyChannelBuffers() {
+        playback.applyChannelBuffers(playback.getSampleBuffer());
+    }
+
+    @Benchmark
+    public void decodeChunk() {
+        playback.applySampleBuffer(format, pcm, pcm.length);
+        playback.applyChannelBuffers(playback.getSampleBuffer());
+    }
+}
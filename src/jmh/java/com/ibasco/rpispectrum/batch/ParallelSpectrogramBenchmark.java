@@ -0,0 +1,93 @@
+package com.ibasco.rpispectrum.batch;
+
+import com.ibasco.rpispectrum.analysis.BandMapper;
+import com.ibasco.rpispectrum.analysis.BandScale;
+import org.openjdk.jmh.annotations.*;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to compute the band spectrogram of one minute of decoded stereo PCM, by number of cores
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParallelSpectrogramBenchmark {
+
+    private static final int SECONDS = 60;
+
+    @Param({"1", "2", "4", "8"})
+    private int threads;
+
+    @Param({"5"})
+    private double segmentSeconds;
+
+    private Path file;
+
+    private FileChannel channel;
+
+    private ForkJoinPool pool;
+
+    private ParallelSpectrogram spectrogram;
+
+    @Setup
+    public void setup() throws IOException {
+        AudioFormat format = new AudioFormat(44100, 16, 2, true, false);
+        ByteBuffer pcm = ByteBuffer.allocate(44100 * SECONDS * format.getFrameSize()).order(ByteOrder.LITTLE_ENDIAN);
+        Random random = new Random(0);
+        while (pcm.hasRemaining())
+            pcm.putShort((short) (random.nextGaussian() * 4000));
+        pcm.flip();
+        file = Files.createTempFile("spectrogram", ".pcm");
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            while (pcm.hasRemaining())
+                out.write(pcm);
+        }
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        pool = new ForkJoinPool(threads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        BandMapper mapper = BandMapper.get(BandScale.THIRD_OCTAVE, 30, 2048, 44100);
+        spectrogram = new ParallelSpectrogram(2048, 512, format, mapper, (long) (segmentSeconds * 44100));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        pool.shutdownNow();
+        channel.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public double spectrogram() {
+        LevelSum sum = new LevelSum();
+        pool.invoke(ForkJoinTask.adapt(() -> spectrogram.write(channel, sum)));
+        return sum.total;
+    }
+
+    private static final class LevelSum implements BandFrameWriter {
+
+        private double total;
+
+        @Override
+        public void write(long framePosition, float[] levels) {
+            total += levels[0];
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
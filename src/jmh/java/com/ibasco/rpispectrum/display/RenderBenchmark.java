@@ -0,0 +1,98 @@
+package com.ibasco.rpispectrum.display;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frame rendering cost without any hardware attached, either discarding the draw calls or drawing into an in-memory
+ * frame buffer (including the dirty region accounting of a send)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBenchmark {
+
+    @Param({"stub", "memory"})
+    private String sinkType;
+
+    private SpectrumRenderer renderer;
+
+    private DisplaySink sink;
+
+    private float[] levels;
+
+    private float[] peaks;
+
+    private long elapsed;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        renderer = new SpectrumRenderer();
+        sink = "memory".equals(sinkType) ? new MemoryDisplaySink(128, 64) : new StubDisplaySink(128, 64, blackhole);
+        levels = new float[30];
+        peaks = new float[30];
+        Random random = new Random(0);
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = random.nextFloat();
+            peaks[i] = Math.min(1, levels[i] + 0.1f);
+        }
+    }
+
+    @Benchmark
+    public void renderFrame() {
+        //Advance the clock roughly once per second of 200 fps rendering
+        renderer.render(sink, levels, peaks, (elapsed++) / 200);
+    }
+
+    /**
+     * Consumes draw calls without touching any framebuffer
+     */
+    private static final class StubDisplaySink implements DisplaySink {
+
+        private final int width;
+
+        private final int height;
+
+        private final Blackhole blackhole;
+
+        private StubDisplaySink(int width, int height, Blackhole blackhole) {
+            this.width = width;
+            this.height = height;
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public void clearBuffer() {
+        }
+
+        @Override
+        public void drawBox(int x, int y, int width, int height) {
+            blackhole.consume(x + y + width + height);
+        }
+
+        @Override
+        public void drawString(int x, int y, String text) {
+            blackhole.consume(text);
+        }
+
+        @Override
+        public void sendBuffer() {
+        }
+    }
+}
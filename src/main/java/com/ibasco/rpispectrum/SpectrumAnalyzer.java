@@ -5,32 +5,88 @@ import com.ibasco.glcdemulator.client.net.GeneralOptions;
 import com.ibasco.glcdemulator.client.net.TcpTransporOptions;
 import com.ibasco.glcdemulator.client.net.TcpTransport;
 import com.ibasco.glcdemulator.client.net.Transport;
+import com.ibasco.rpispectrum.analysis.BandMapper;
+import com.ibasco.rpispectrum.analysis.BandScale;
+import com.ibasco.rpispectrum.analysis.StftAnalyzer;
+import com.ibasco.rpispectrum.analysis.WindowFunction;
+import com.ibasco.rpispectrum.audio.AudioCapture;
 import com.ibasco.rpispectrum.audio.AudioPlayback;
+import com.ibasco.rpispectrum.audio.AudioUtils;
+import com.ibasco.rpispectrum.audio.MixerRegistry;
+import com.ibasco.rpispectrum.audio.PcmCache;
+import com.ibasco.rpispectrum.audio.Playlist;
+import com.ibasco.rpispectrum.batch.BandFrameWriter;
+import com.ibasco.rpispectrum.batch.BatchAnalyzer;
+import com.ibasco.rpispectrum.display.DisplayOutput;
+import com.ibasco.rpispectrum.display.DisplaySink;
+import com.ibasco.rpispectrum.display.GlcdDisplaySink;
+import com.ibasco.rpispectrum.display.MemoryDisplaySink;
+import com.ibasco.rpispectrum.display.RenderScheduler;
+import com.ibasco.rpispectrum.display.SpectrumFeed;
+import com.ibasco.rpispectrum.display.SpectrumRenderer;
+import com.ibasco.rpispectrum.display.StreamingDisplaySink;
+import com.ibasco.rpispectrum.engine.AnalysisEngine;
+import com.ibasco.rpispectrum.engine.AnalysisSource;
+import com.ibasco.rpispectrum.engine.CaptureSource;
+import com.ibasco.rpispectrum.engine.FileSource;
+import com.ibasco.rpispectrum.metrics.PipelineMetrics;
 import com.ibasco.ucgdisplay.drivers.glcd.*;
 import com.ibasco.ucgdisplay.drivers.glcd.enums.GlcdBusInterface;
 import com.ibasco.ucgdisplay.drivers.glcd.enums.GlcdFont;
 import com.ibasco.ucgdisplay.drivers.glcd.enums.GlcdPin;
 import com.ibasco.ucgdisplay.drivers.glcd.enums.GlcdRotation;
-import ddf.minim.analysis.FFT;
 import org.apache.commons.cli.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.sound.sampled.Mixer;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.time.Duration;
-import java.util.concurrent.ForkJoinPool;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @SuppressWarnings("SpellCheckingInspection")
 public class SpectrumAnalyzer {
 
     private boolean simulation;
 
+    private boolean headless;
+
+    private Path dumpDirectory;
+
+    private MemoryDisplaySink.ImageFormat dumpFormat = MemoryDisplaySink.ImageFormat.PNG;
+
+    private final List<MemoryDisplaySink> memoryDisplays = new CopyOnWriteArrayList<>();
+
+    private List<DisplaySpec> displaySpecs = new ArrayList<>();
+
+    private boolean stream;
+
+    private int keyframeInterval = StreamingDisplaySink.DEFAULT_KEYFRAME_INTERVAL;
+
     private static final Logger log = LoggerFactory.getLogger(SpectrumAnalyzer.class);
 
+    //Live input defaults, chosen to keep the input to display latency below 30 ms
+    private static final int LIVE_FRAME_SIZE = 1024;
+
+    private static final int LIVE_HOP_SIZE = 256;
+
+    private static final int LIVE_FPS = 60;
+
     private AudioPlayback audioPlayer = new AudioPlayback();
 
     private AtomicBoolean shutdown = new AtomicBoolean(false);
@@ -47,8 +103,66 @@ public class SpectrumAnalyzer {
 
     private int portNumber = 3580;
 
+    private int targetFps = RenderScheduler.DEFAULT_FPS;
+
+    private int fftSize = StftAnalyzer.DEFAULT_FRAME_SIZE;
+
+    private int hopSize = StftAnalyzer.DEFAULT_HOP_SIZE;
+
+    private BandScale bandScale = BandScale.THIRD_OCTAVE;
+
+    private int bandCount = 30;
+
+    private final List<DisplayOutput> outputs = new CopyOnWriteArrayList<>();
+
+    private volatile PipelineMetrics metrics;
+
+    private volatile AudioCapture audioCapture;
+
+    private boolean live;
+
+    private String captureMixer;
+
+    private int periodFrames = AudioCapture.DEFAULT_PERIOD_FRAMES;
+
+    private boolean monitor;
+
+    private int rescanInterval;
+
+    private int statsInterval;
+
+    private int avOffsetMillis;
+
     private InputStream audioResource = getClass().getResourceAsStream("/audio/shep.mp3");
 
+    private File audioFile;
+
+    private List<File> playlistFiles;
+
+    private boolean repeat;
+
+    private volatile Playlist playlist;
+
+    private Path cacheDirectory;
+
+    private long cacheSize = 2048L * 1024 * 1024;
+
+    private int pcmBufferMillis = AudioPlayback.DEFAULT_PCM_BUFFER_MILLIS;
+
+    private Path batchDirectory;
+
+    private BandFrameWriter.Format batchFormat = BandFrameWriter.Format.BINARY;
+
+    private int batchThreads = Runtime.getRuntime().availableProcessors();
+
+    private double segmentSeconds;
+
+    private List<File> batchFiles;
+
+    private List<String> multiSources;
+
+    private boolean loop;
+
     public static void main(String[] args) throws Exception {
         new SpectrumAnalyzer().run(args);
     }
@@ -58,6 +172,45 @@ public class SpectrumAnalyzer {
             throw new ParseException("Simulation parameter required");
     }
 
+    private void ensureHeadlessMode(CommandLine line) throws ParseException {
+        if (!line.hasOption("headless"))
+            throw new ParseException("Headless parameter required");
+    }
+
+    private void ensureLiveMode(CommandLine line) throws ParseException {
+        if (!line.hasOption("live"))
+            throw new ParseException("Live parameter required");
+    }
+
+    private void ensureBatchMode(CommandLine line) throws ParseException {
+        if (!line.hasOption("batch"))
+            throw new ParseException("Batch parameter required");
+    }
+
+    private static int getIntValue(CommandLine line, String option) throws ParseException {
+        try {
+            return Integer.parseInt(line.getOptionValue(option));
+        } catch (NumberFormatException e) {
+            throw new ParseException("Invalid number for " + option + ": " + line.getOptionValue(option));
+        }
+    }
+
+    private static long getLongValue(CommandLine line, String option) throws ParseException {
+        try {
+            return Long.parseLong(line.getOptionValue(option));
+        } catch (NumberFormatException e) {
+            throw new ParseException("Invalid number for " + option + ": " + line.getOptionValue(option));
+        }
+    }
+
+    private static double getDoubleValue(CommandLine line, String option) throws ParseException {
+        try {
+            return Double.parseDouble(line.getOptionValue(option));
+        } catch (NumberFormatException e) {
+            throw new ParseException("Invalid number for " + option + ": " + line.getOptionValue(option));
+        }
+    }
+
     private void run(String[] args) throws Exception {
         // create Options object
         Options options = new Options();
@@ -71,13 +224,62 @@ public class SpectrumAnalyzer {
             } else {
                 simulation = false;
             }
+            if (line.hasOption("stream")) {
+                ensureSimulationMode(line);
+                stream = true;
+            }
+            if (line.hasOption("keyframe")) {
+                if (!line.hasOption("stream") && !line.hasOption("display"))
+                    throw new ParseException("Stream parameter required");
+                keyframeInterval = getIntValue(line, "keyframe");
+                if (keyframeInterval <= 0)
+                    throw new ParseException("Keyframe interval must be greater than zero");
+            }
+            if (line.hasOption("headless")) {
+                if (simulation)
+                    throw new ParseException("Headless mode can not be combined with simulation mode");
+                headless = true;
+                if (line.getOptionValue("headless") != null)
+                    dumpDirectory = Paths.get(line.getOptionValue("headless"));
+            }
+            if (line.hasOption("dumpformat")) {
+                if (!line.hasOption("display"))
+                    ensureHeadlessMode(line);
+                try {
+                    dumpFormat = MemoryDisplaySink.ImageFormat.valueOf(line.getOptionValue("dumpformat").toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    throw new ParseException("Unknown image format: " + line.getOptionValue("dumpformat"));
+                }
+            }
+            if (line.hasOption("live")) {
+                if (line.hasOption("audio"))
+                    throw new ParseException("Live input can not be combined with the audio parameter");
+                live = true;
+                fftSize = LIVE_FRAME_SIZE;
+                hopSize = LIVE_HOP_SIZE;
+                targetFps = LIVE_FPS;
+            }
+            if (line.hasOption("mixer")) {
+                ensureLiveMode(line);
+                captureMixer = line.getOptionValue("mixer");
+            }
+            if (line.hasOption("period")) {
+                ensureLiveMode(line);
+                periodFrames = getIntValue(line, "period");
+                if (periodFrames <= 0)
+                    throw new ParseException("Period size must be greater than zero");
+            }
+            if (line.hasOption("monitor")) {
+                ensureLiveMode(line);
+                monitor = true;
+            }
             if (line.hasOption("ip")) {
                 ensureSimulationMode(line);
                 ipAddress = line.getOptionValue("ip");
             }
             if (line.hasOption("port")) {
                 ensureSimulationMode(line);
-                portNumber = Integer.valueOf(line.getOptionValue("port"));
+                portNumber = getIntValue(line, "port");
             }
             if (line.hasOption("transport")) {
                 transportDevice = line.getOptionValue("transport");
@@ -85,72 +287,364 @@ public class SpectrumAnalyzer {
             if (line.hasOption("gpio")) {
                 gpioDevice = line.getOptionValue("gpio");
             }
+            if (line.hasOption("fps")) {
+                targetFps = getIntValue(line, "fps");
+                if (targetFps <= 0)
+                    throw new ParseException("FPS must be greater than zero");
+            }
+            if (line.hasOption("fftsize")) {
+                fftSize = getIntValue(line, "fftsize");
+                if (fftSize < 4 || Integer.bitCount(fftSize) != 1)
+                    throw new ParseException("FFT size must be a power of two");
+            }
+            if (line.hasOption("hop")) {
+                hopSize = getIntValue(line, "hop");
+            }
+            if (hopSize <= 0 || hopSize > fftSize)
+                throw new ParseException("Hop size must be between 1 and the FFT size");
+            if (line.hasOption("scale")) {
+                try {
+                    bandScale = BandScale.valueOf(line.getOptionValue("scale").toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    throw new ParseException("Unknown band scale: " + line.getOptionValue("scale"));
+                }
+            }
+            if (line.hasOption("bands")) {
+                bandCount = getIntValue(line, "bands");
+                if (bandCount <= 0)
+                    throw new ParseException("Band count must be greater than zero");
+            }
             if (line.hasOption("audio")) {
-                File audioFile = Paths.get(line.getOptionValue("audio")).toFile();
+                audioFile = Paths.get(line.getOptionValue("audio")).toFile();
                 if (!audioFile.exists() || !audioFile.canRead()) {
                     String msg = "Could not find audio file resource: " + audioFile;
                     System.err.println(msg);
                     throw new ParseException(msg);
                 }
-                audioResource = new FileInputStream(audioFile);
+            }
+            if (line.hasOption("playlist")) {
+                if (line.hasOption("audio") || line.hasOption("live") || line.hasOption("batch") || line.hasOption("multi"))
+                    throw new ParseException("Playlist mode can not be combined with the audio, live, batch or multi parameters");
+                playlistFiles = collectAudioFiles(line.getArgList());
+                if (playlistFiles.isEmpty())
+                    throw new ParseException("No audio files specified for the playlist");
+            }
+            if (line.hasOption("repeat")) {
+                if (!line.hasOption("playlist"))
+                    throw new ParseException("Playlist parameter required");
+                repeat = true;
+            }
+            if (line.hasOption("cache")) {
+                cacheDirectory = Paths.get(line.getOptionValue("cache"));
+            }
+            if (line.hasOption("pcmbuffer")) {
+                pcmBufferMillis = getIntValue(line, "pcmbuffer");
+                if (pcmBufferMillis <= 0)
+                    throw new ParseException("PCM buffer size must be greater than zero");
+            }
+            if (line.hasOption("avoffset")) {
+                avOffsetMillis = getIntValue(line, "avoffset");
+            }
+            if (line.hasOption("rescan")) {
+                rescanInterval = getIntValue(line, "rescan");
+                if (rescanInterval <= 0)
+                    throw new ParseException("Rescan interval must be greater than zero");
+            }
+            if (line.hasOption("stats")) {
+                statsInterval = getIntValue(line, "stats");
+                if (statsInterval <= 0)
+                    throw new ParseException("Statistics interval must be greater than zero");
+            }
+            if (line.hasOption("cachesize")) {
+                cacheSize = getLongValue(line, "cachesize") * 1024 * 1024;
+            }
+            if (line.hasOption("batch")) {
+                if (line.hasOption("live"))
+                    throw new ParseException("Batch mode analyzes files, it can not be combined with live input");
+                batchDirectory = Paths.get(line.getOptionValue("batch"));
+                batchFiles = collectAudioFiles(line.getArgList());
+                if (batchFiles.isEmpty())
+                    throw new ParseException("No audio files specified for batch mode");
+            }
+            if (line.hasOption("format")) {
+                ensureBatchMode(line);
+                try {
+                    batchFormat = BandFrameWriter.Format.valueOf(line.getOptionValue("format").toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    throw new ParseException("Unknown output format: " + line.getOptionValue("format"));
+                }
+            }
+            if (line.hasOption("multi")) {
+                if (line.hasOption("batch") || line.hasOption("live"))
+                    throw new ParseException("Multi-source mode can not be combined with batch mode or live input");
+                multiSources = new ArrayList<>();
+                for (String arg : line.getArgList()) {
+                    if (arg.equals("capture") || arg.startsWith("capture:"))
+                        multiSources.add(arg);
+                    else
+                        collectAudioFiles(Collections.singletonList(arg)).forEach(file -> multiSources.add(file.getPath()));
+                }
+                if (multiSources.isEmpty())
+                    throw new ParseException("No sources specified for multi-source mode");
+            }
+            if (line.hasOption("loop")) {
+                if (!line.hasOption("multi"))
+                    throw new ParseException("Multi parameter required");
+                loop = true;
+            }
+            if (line.hasOption("threads")) {
+                if (!line.hasOption("multi"))
+                    ensureBatchMode(line);
+                batchThreads = getIntValue(line, "threads");
+                if (batchThreads <= 0)
+                    throw new ParseException("Thread count must be greater than zero");
+            }
+            if (line.hasOption("segment")) {
+                ensureBatchMode(line);
+                segmentSeconds = getDoubleValue(line, "segment");
+                if (segmentSeconds <= 0)
+                    throw new ParseException("Segment length must be greater than zero");
+            }
+            if (line.hasOption("display")) {
+                if (simulation || headless)
+                    throw new ParseException("Display parameter replaces the simulation, stream and headless parameters");
+                for (String value : line.getOptionValues("display"))
+                    displaySpecs.add(parseDisplaySpec(value));
             }
         } catch (ParseException e) {
             formatter.printHelp("java " + System.getProperty("sun.java.command"), options, true);
             return;
         }
 
+        if (rescanInterval > 0)
+            MixerRegistry.getDefault().startRefresh(rescanInterval, TimeUnit.SECONDS);
+
+        if (batchDirectory != null) {
+            runBatch();
+            return;
+        }
+        if (multiSources != null) {
+            runMulti();
+            return;
+        }
+
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             log.info("Shutting down");
             shutdown.set(true);
+            for (DisplayOutput output : outputs)
+                output.close();
+            if (audioCapture != null)
+                audioCapture.close();
+            if (playlist != null)
+                playlist.close();
+            if (audioPlayer.getPcmCache() != null)
+                audioPlayer.getPcmCache().close();
+            if (metrics != null)
+                metrics.close();
+            for (MemoryDisplaySink memoryDisplay : memoryDisplays) {
+                if (memoryDisplay instanceof StreamingDisplaySink) {
+                    StreamingDisplaySink sink = (StreamingDisplaySink) memoryDisplay;
+                    sink.close();
+                    log.info("Frame stream: {} frames streamed ({} keyframes, {} dropped), {} bytes (full frame updates would have been {} bytes)", sink.getStreamedFrames(), sink.getKeyframes(), sink.getDroppedFrames(), sink.getBytesStreamed(), sink.getFrames() * sink.getFrameSize());
+                } else {
+                    log.info("Headless display: {} frames, {} full updates, {} partial updates, {} unchanged, {} bytes that would have been sent", memoryDisplay.getFrames(), memoryDisplay.getFullUpdates(), memoryDisplay.getPartialUpdates(), memoryDisplay.getUnchangedFrames(), memoryDisplay.getBytesSent());
+                }
+            }
         }));
 
-        //Configure GLCD
-        GlcdConfig config = new GlcdConfig();
-        config.setDisplay(Glcd.ST7920.D_128x64); //Glcd.RA8835.D_320x240
-        config.setBusInterface(GlcdBusInterface.SPI_HW_4WIRE_ST7920);
+        List<DisplaySink> displays = new ArrayList<>();
+        if (displaySpecs.isEmpty()) {
+            displays.add(createDisplay());
+            displaySpecs.add(new DisplaySpec(null, null, null, -1, bandCount, targetFps));
+        } else {
+            for (DisplaySpec spec : displaySpecs)
+                displays.add(createDisplay(spec));
+        }
+        for (int i = 0; i < displays.size(); i++) {
+            int maxBands = new SpectrumRenderer().getMaxBands(displays.get(i).getWidth());
+            if (displaySpecs.get(i).bands > maxBands) {
+                System.err.println("Too many bands: a display " + displays.get(i).getWidth() + " pixels wide fits at most " + maxBands + " bands");
+                return;
+            }
+        }
 
+        float sampleRate;
+        int historySize;
+        if (live) {
+            AudioCapture capture = new AudioCapture();
+            capture.setPeriodFrames(periodFrames);
+            capture.setMonitor(monitor);
+            if (captureMixer != null) {
+                Mixer.Info mixerInfo = AudioUtils.findRecordingMixer(captureMixer);
+                if (mixerInfo == null) {
+                    System.err.println("Could not find recording mixer: " + captureMixer + ". Available mixers:");
+                    for (Mixer.Info info : AudioUtils.getRecordingDataLines().keySet())
+                        System.err.println(" - " + info.getName());
+                    return;
+                }
+                capture.setMixer(mixerInfo);
+            }
+            capture.open();
+            audioCapture = capture;
+            sampleRate = capture.getFormat().getSampleRate();
+            //Only the newest spectrum is ever shown
+            historySize = 4;
+        } else {
+            audioPlayer.setLineBufferSize(1024 * 4);
+            audioPlayer.setPcmBufferMillis(pcmBufferMillis);
+            if (cacheDirectory != null)
+                audioPlayer.setPcmCache(new PcmCache(cacheDirectory, cacheSize));
+            if (playlistFiles != null) {
+                playlist = new Playlist(audioPlayer, playlistFiles);
+                playlist.setRepeat(repeat);
+                playlist.open();
+            } else if (audioFile != null) {
+                audioPlayer.open(audioFile);
+            } else {
+                audioPlayer.open(audioResource);
+            }
+            //Playback runs ahead of the speaker by the read-ahead and line buffers, so enough spectra are kept to look
+            //up the one that is currently audible
+            sampleRate = audioPlayer.getAudioFormat().getSampleRate();
+            long bufferedFrames = (long) sampleRate * pcmBufferMillis / 1000 + audioPlayer.getLineBufferSize() / audioPlayer.getAudioFormat().getFrameSize();
+            historySize = (int) (bufferedFrames / hopSize) + 16;
+        }
 
-        GlcdBaseDriver driver = createDriver(config);
+        //Analysis runs on the playback (or capture) thread, decoupled from the decoder chunk size
+        StftAnalyzer analyzer = new StftAnalyzer(fftSize, hopSize, sampleRate, WindowFunction.HANN, historySize);
+        if (live) {
+            audioCapture.setSampleListener(analyzer::process);
+            audioCapture.start();
+        } else {
+            audioPlayer.setSampleListener(analyzer::process);
+            if (playlist != null)
+                playlist.play();
+            else
+                audioPlayer.play();
+        }
 
-        audioPlayer.setLineBufferSize(1024 * 4);
-        audioPlayer.open(audioResource);
-        audioPlayer.play();
+        metrics = live ? new PipelineMetrics(audioCapture, analyzer) : new PipelineMetrics(audioPlayer, analyzer);
+        try {
+            metrics.register();
+        } catch (Exception e) {
+            log.warn("Unable to register pipeline metrics MBean", e);
+        }
+        if (statsInterval > 0)
+            metrics.startLogging(statsInterval, TimeUnit.SECONDS);
+
+        long avOffsetFrames = (long) sampleRate * avOffsetMillis / 1000;
+        AudioCapture capture = audioCapture;
+        LongSupplier playbackPosition = live ? () -> capture.getPosition() + avOffsetFrames : () -> audioPlayer.getPlaybackPosition() + avOffsetFrames;
+        DoubleSupplier elapsed = live ? () -> capture.getPosition() / (double) sampleRate : audioPlayer::getElapsed;
+        BooleanSupplier active = live ? capture::isRunning : () -> audioPlayer.getStatus() == AudioPlayback.PLAYING;
+        //Window gain is normalized, so a full scale sine on both channels (mixed = left + right) peaks at the frame size
+        SpectrumFeed feed = new SpectrumFeed(analyzer.getHistory(), playbackPosition, elapsed, active, fftSize);
+
+        //The spectrum is computed once, every display renders it on its own thread
+        for (int i = 0; i < displays.size(); i++) {
+            DisplaySpec spec = displaySpecs.get(i);
+            BandMapper bandMapper = BandMapper.get(bandScale, spec.bands, analyzer.getFrameSize(), sampleRate);
+            DisplayOutput output = new DisplayOutput(displays.size() == 1 ? "spectrum-render" : "spectrum-render-" + i, displays.get(i), feed, bandMapper);
+            output.setTimers(metrics.getBandMappingHistogram(), metrics.getRenderHistogram(), metrics.getSendBufferHistogram());
+            output.setTargetFps(spec.fps);
+            metrics.addRenderScheduler(output.getScheduler());
+            outputs.add(output);
+        }
+        audioPlayer.addListener((event, position, value, params) -> {
+            if (event == AudioPlayback.PlayerEvent.PLAYING || event == AudioPlayback.PlayerEvent.RESUMED) {
+                for (DisplayOutput output : outputs)
+                    output.wakeup();
+            }
+        });
+        for (DisplayOutput output : outputs)
+            output.start();
+    }
 
-        FFT fft = new FFT(audioPlayer.getSampleCount(), audioPlayer.getAudioFormat().getSampleRate());
-        fft.linAverages(30);
+    private void runBatch() throws IOException, InterruptedException {
+        BatchAnalyzer batch = new BatchAnalyzer(batchDirectory);
+        batch.setFftSize(fftSize);
+        batch.setHopSize(hopSize);
+        batch.setBandScale(bandScale);
+        batch.setBandCount(bandCount);
+        batch.setFormat(batchFormat);
+        batch.setThreads(batchThreads);
+        batch.setSegmentSeconds(segmentSeconds);
+        if (cacheDirectory != null)
+            batch.setPcmCache(new PcmCache(cacheDirectory, cacheSize));
+        BatchAnalyzer.Report report;
+        try {
+            report = batch.analyze(batchFiles);
+        } finally {
+            if (batch.getPcmCache() != null)
+                batch.getPcmCache().close();
+        }
+        log.info("Batch complete: {}", report);
+        for (File failure : report.getFailures())
+            log.warn("Failed: {}", failure);
+    }
 
-        driver.setFont(GlcdFont.FONT_6X13_MR);
+    private void runMulti() throws InterruptedException {
+        AnalysisEngine engine = new AnalysisEngine(batchThreads);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            log.info("Multi-source analysis: {}", engine.summary());
+            engine.close();
+        }));
+        List<AnalysisSource> sources = new ArrayList<>();
+        for (String spec : multiSources) {
+            AnalysisSource source;
+            if (spec.equals("capture") || spec.startsWith("capture:")) {
+                String name = spec.length() > "capture:".length() ? spec.substring("capture:".length()) : null;
+                Mixer.Info mixerInfo = null;
+                if (name != null && (mixerInfo = AudioUtils.findRecordingMixer(name)) == null) {
+                    System.err.println("Could not find recording mixer: " + name + ". Available mixers:");
+                    for (Mixer.Info info : AudioUtils.getRecordingDataLines().keySet())
+                        System.err.println(" - " + info.getName());
+                    return;
+                }
+                source = new CaptureSource(mixerInfo);
+            } else {
+                FileSource fileSource = new FileSource(new File(spec));
+                fileSource.setLoop(loop);
+                source = fileSource;
+            }
+            source.setFftSize(fftSize);
+            source.setHopSize(hopSize);
+            source.setBandScale(bandScale);
+            source.setBandCount(bandCount);
+            sources.add(source);
+        }
+        sources.forEach(engine::add);
+        engine.startLogging(statsInterval > 0 ? statsInterval : 10, TimeUnit.SECONDS);
+        engine.awaitCompletion();
+    }
 
-        ForkJoinPool.commonPool().execute(() -> {
-            try {
-                while (!shutdown.get()) {
-                    float[] samples = audioPlayer.getMixedChannel().get();
-                    fft.forward(samples);
-
-                    int width = driver.getWidth();
-                    int height = driver.getHeight();
-                    int total = fft.avgSize();
-                    int spacing = 2;
-                    int barWidth = width / total;
-                    int scaleFactor = 1;
-
-                    driver.clearBuffer();
-                    driver.drawString(width / 2, 20, formatDuration(Duration.ofSeconds((long) audioPlayer.getElapsed())));
-                    for (int i = 0; i < total; i++) {
-                        float value = fft.getAvg(i);
-                        int y = (int) (height - (value * scaleFactor));
-                        int barHeight = height - y;
-                        int x = i * barWidth;
-                        driver.drawBox(x, y, barWidth - spacing, barHeight);
-                    }
-                    driver.sendBuffer();
-
-                    Thread.sleep(5);
+    /**
+     * Expands the arguments to a list of audio files, directories are searched recursively for mp3 and wav files
+     */
+    private List<File> collectAudioFiles(List<String> paths) throws ParseException {
+        List<File> files = new ArrayList<>();
+        for (String arg : paths) {
+            Path path = Paths.get(arg);
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> stream = Files.walk(path)) {
+                    files.addAll(stream.filter(Files::isRegularFile)
+                            .filter(p -> {
+                                String name = p.getFileName().toString().toLowerCase();
+                                return name.endsWith(".mp3") || name.endsWith(".wav");
+                            })
+                            .sorted()
+                            .map(Path::toFile)
+                            .collect(Collectors.toList()));
+                } catch (IOException e) {
+                    throw new ParseException("Unable to list directory " + path + ": " + e.getMessage());
                 }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            } else if (Files.isRegularFile(path)) {
+                files.add(path.toFile());
+            } else {
+                throw new ParseException("File not found: " + path);
             }
-        });
+        }
+        return files;
     }
 
     private void populateOptions(Options options) {
@@ -159,38 +653,202 @@ public class SpectrumAnalyzer {
         options.addOption(Option.builder("p").hasArg().argName("port number").longOpt("port").desc("Port number (Default: 3580)").build());
         options.addOption(Option.builder("a").hasArg().argName("mp3 audio").longOpt("audio").desc("MP3 audio path").build());
         options.addOption(Option.builder("t").hasArg().argName("device path").longOpt("transport").desc("Transport device path (Default: /dev/spidev0.0)").build());
+        options.addOption(Option.builder().hasArg().argName("frames per second").longOpt("fps").desc("Target display frame rate (Default: " + RenderScheduler.DEFAULT_FPS + ")").build());
+        options.addOption(Option.builder().hasArg().argName("samples").longOpt("fftsize").desc("FFT frame size, power of two (Default: " + StftAnalyzer.DEFAULT_FRAME_SIZE + ")").build());
+        options.addOption(Option.builder().hasArg().argName("samples").longOpt("hop").desc("Number of samples between analysis frames (Default: " + StftAnalyzer.DEFAULT_HOP_SIZE + ")").build());
+        options.addOption(Option.builder().hasArg().argName("scale").longOpt("scale").desc("Band scale: linear, logarithmic, octave, third_octave or bark (Default: third_octave)").build());
+        options.addOption(Option.builder().hasArg().argName("count").longOpt("bands").desc("Number of bands to display (Default: 30)").build());
+        options.addOption(Option.builder().hasArg().argName("directory").longOpt("cache").desc("Cache decoded audio in this directory (file sources only)").build());
+        options.addOption(Option.builder().hasArg().argName("megabytes").longOpt("cachesize").desc("Maximum size of the decoded audio cache (Default: 2048)").build());
+        options.addOption(Option.builder().hasArg().argName("milliseconds").longOpt("pcmbuffer").desc("Decoded audio buffered ahead of the audio line (Default: " + AudioPlayback.DEFAULT_PCM_BUFFER_MILLIS + ")").build());
+        options.addOption(Option.builder().hasArg().argName("milliseconds").longOpt("avoffset").desc("Shifts the displayed spectrum against the audio. Negative values compensate for audio output latency, positive values for display latency (Default: 0)").build());
+        options.addOption(Option.builder().hasArg().argName("seconds").longOpt("stats").desc("Log pipeline timings and counters at this interval").build());
+        options.addOption(Option.builder().longOpt("live").desc("Analyze live audio input instead of playing a file").build());
+        options.addOption(Option.builder().hasArg().argName("mixer name").longOpt("mixer").desc("Recording mixer to capture from in live mode, full or partial name (Default: system default)").build());
+        options.addOption(Option.builder().hasArg().argName("frames").longOpt("period").desc("Number of frames captured and analyzed at once in live mode (Default: " + AudioCapture.DEFAULT_PERIOD_FRAMES + ")").build());
+        options.addOption(Option.builder().hasArg().argName("seconds").longOpt("rescan").desc("Look for audio devices that were plugged in or removed at this interval (Default: devices are enumerated once)").build());
+        options.addOption(Option.builder().longOpt("monitor").desc("Play the live input back through the default playback mixer").build());
+        options.addOption(Option.builder().hasArg().argName("directory").longOpt("batch").desc("Analyze the audio files and directories given as arguments without playing them and write the band levels of every frame to this directory").build());
+        options.addOption(Option.builder().hasArg().argName("format").longOpt("format").desc("Batch output format: csv or binary (Default: binary)").build());
+        options.addOption(Option.builder().hasArg().argName("count").longOpt("threads").desc("Number of files analyzed in parallel in batch mode, or of worker threads shared by all sources in multi-source mode (Default: number of processors)").build());
+        options.addOption(Option.builder().longOpt("playlist").desc("Play the audio files and directories given as arguments back to back without gaps").build());
+        options.addOption(Option.builder().longOpt("repeat").desc("Start the playlist over after the last track").build());
+        options.addOption(Option.builder().longOpt("multi").desc("Analyze several sources at once in real time, given as arguments: audio files, directories or capture[:<mixer name>]").build());
+        options.addOption(Option.builder().longOpt("loop").desc("Start files over when they end in multi-source mode").build());
+        options.addOption(Option.builder().hasArg().argName("seconds").longOpt("segment").desc("Split every file into segments of this length to analyze it on several cores in batch mode").build());
+        options.addOption(Option.builder().hasArg().optionalArg(true).argName("directory").longOpt("headless").desc("Render into an in-memory frame buffer instead of a display, optionally writing every frame to the directory").build());
+        options.addOption(Option.builder().hasArg().argName("format").longOpt("dumpformat").desc("Image format of the frames written in headless mode: png or pbm (Default: png)").build());
+        options.addOption(Option.builder().longOpt("stream").desc("In simulation mode, stream delta compressed frames to the frame viewer instead of sending draw calls to the emulator").build());
+        options.addOption(Option.builder().hasArg().argName("frames").longOpt("keyframe").desc("Number of delta frames streamed between two full frames (Default: " + StreamingDisplaySink.DEFAULT_KEYFRAME_INTERVAL + ")").build());
+        options.addOption(Option.builder().hasArg().argName("display").longOpt("display").desc("Add a display, can be given multiple times to render the same analysis on several displays: spi[:<device path>], emulator[:<host>[:<port>]], stream[:<host>[:<port>]] or headless[:<directory>], optionally followed by ,bands=<count> and ,fps=<rate> (Default: a single display selected by the other arguments)").build());
         options.addOption(Option.builder("g").hasArg().argName("device path").longOpt("gpio").desc("GPIO device path (Default: /dev/gpiochip0)").build());
     }
 
-    private static String formatDuration(Duration duration) {
-        long seconds = duration.getSeconds();
-        long absSeconds = Math.abs(seconds);
-        String positive = String.format(
-                "%d:%02d:%02d",
-                absSeconds / 3600,
-                (absSeconds % 3600) / 60,
-                absSeconds % 60);
-        return seconds < 0 ? "-" + positive : positive;
-    }
-
-    private GlcdBaseDriver createDriver(GlcdConfig config) {
-        if (simulation) {
-            Transport dataTransport = new TcpTransport();
-            dataTransport.setOption(TcpTransporOptions.IP_ADDRESS, ipAddress);
-            dataTransport.setOption(TcpTransporOptions.PORT_NUMBER, portNumber); //3580
-            dataTransport.setOption(GeneralOptions.DEBUG_OUTPUT, false);
-            config.setRotation(GlcdRotation.ROTATION_NONE);
-            return new GlcdRemoteClient(config, dataTransport);
-        } else {
-            GlcdPinMapConfig pinMap = new GlcdPinMapConfig()
-                    .map(GlcdPin.SPI_CLOCK, 14)
-                    .map(GlcdPin.SPI_MOSI, 12)
-                    .map(GlcdPin.CS, 10);
-            config.setRotation(GlcdRotation.ROTATION_180);
-            config.setPinMapConfig(pinMap);
-            config.setTransportDevice(transportDevice);
-            config.setGpioDevice(gpioDevice);
-            return new GlcdDriver(config);
+    /**
+     * Creates the single display selected by the simulation, stream and headless arguments
+     */
+    private DisplaySink createDisplay() throws IOException {
+        if (headless)
+            return createMemoryDisplay(dumpDirectory);
+        if (stream)
+            return createStreamingDisplay(ipAddress != null ? ipAddress : "localhost", portNumber);
+        return createGlcdDisplay(simulation ? createEmulatorDriver(ipAddress, portNumber) : createSpiDriver(transportDevice));
+    }
+
+    private DisplaySink createDisplay(DisplaySpec spec) throws IOException {
+        switch (spec.type) {
+            case "spi":
+                return createGlcdDisplay(createSpiDriver(spec.target != null ? spec.target : transportDevice));
+            case "emulator":
+                return createGlcdDisplay(createEmulatorDriver(spec.getHost(), spec.getPort()));
+            case "stream":
+                return createStreamingDisplay(spec.getHost(), spec.getPort());
+            default:
+                return createMemoryDisplay(spec.target != null ? Paths.get(spec.target) : null);
+        }
+    }
+
+    private DisplaySink createMemoryDisplay(Path dumpDirectory) throws IOException {
+        MemoryDisplaySink sink = new MemoryDisplaySink(128, 64);
+        if (dumpDirectory != null)
+            sink.setFrameDump(dumpDirectory, dumpFormat);
+        memoryDisplays.add(sink);
+        return sink;
+    }
+
+    private DisplaySink createStreamingDisplay(String host, int port) {
+        StreamingDisplaySink sink = new StreamingDisplaySink(128, 64, new InetSocketAddress(host, port));
+        sink.setKeyframeInterval(keyframeInterval);
+        memoryDisplays.add(sink);
+        return sink;
+    }
+
+    private DisplaySink createGlcdDisplay(GlcdBaseDriver driver) {
+        driver.setFont(GlcdFont.FONT_6X13_MR);
+        return new GlcdDisplaySink(driver);
+    }
+
+    private GlcdConfig createGlcdConfig() {
+        GlcdConfig config = new GlcdConfig();
+        config.setDisplay(Glcd.ST7920.D_128x64); //Glcd.RA8835.D_320x240
+        config.setBusInterface(GlcdBusInterface.SPI_HW_4WIRE_ST7920);
+        return config;
+    }
+
+    private GlcdBaseDriver createEmulatorDriver(String host, int port) {
+        GlcdConfig config = createGlcdConfig();
+        Transport dataTransport = new TcpTransport();
+        dataTransport.setOption(TcpTransporOptions.IP_ADDRESS, host);
+        dataTransport.setOption(TcpTransporOptions.PORT_NUMBER, port); //3580
+        dataTransport.setOption(GeneralOptions.DEBUG_OUTPUT, false);
+        config.setRotation(GlcdRotation.ROTATION_NONE);
+        return new GlcdRemoteClient(config, dataTransport);
+    }
+
+    private GlcdBaseDriver createSpiDriver(String transportDevice) {
+        GlcdConfig config = createGlcdConfig();
+        GlcdPinMapConfig pinMap = new GlcdPinMapConfig()
+                .map(GlcdPin.SPI_CLOCK, 14)
+                .map(GlcdPin.SPI_MOSI, 12)
+                .map(GlcdPin.CS, 10);
+        config.setRotation(GlcdRotation.ROTATION_180);
+        config.setPinMapConfig(pinMap);
+        config.setTransportDevice(transportDevice);
+        config.setGpioDevice(gpioDevice);
+        return new GlcdDriver(config);
+    }
+
+    /**
+     * A display given with the display argument: {@code <type>[:<target>][,bands=<count>][,fps=<rate>]}
+     */
+    private final class DisplaySpec {
+
+        private final String type;
+
+        private final String target;
+
+        private final String host;
+
+        //-1 for the port argument
+        private final int port;
+
+        private final int bands;
+
+        private final int fps;
+
+        private DisplaySpec(String type, String target, String host, int port, int bands, int fps) {
+            this.type = type;
+            this.target = target;
+            this.host = host;
+            this.port = port;
+            this.bands = bands;
+            this.fps = fps;
+        }
+
+        private String getHost() {
+            if (host == null)
+                return ipAddress != null ? ipAddress : "localhost";
+            return host;
+        }
+
+        private int getPort() {
+            return port < 0 ? portNumber : port;
+        }
+    }
+
+    private DisplaySpec parseDisplaySpec(String value) throws ParseException {
+        String[] parts = value.split(",");
+        int colon = parts[0].indexOf(':');
+        String type = (colon < 0 ? parts[0] : parts[0].substring(0, colon)).toLowerCase();
+        String target = colon < 0 ? null : parts[0].substring(colon + 1);
+        if (!type.equals("spi") && !type.equals("emulator") && !type.equals("stream") && !type.equals("headless"))
+            throw new ParseException("Unknown display type: " + type);
+        int bands = bandCount;
+        int fps = targetFps;
+        for (int i = 1; i < parts.length; i++) {
+            String[] setting = parts[i].split("=", 2);
+            try {
+                if (setting.length == 2 && setting[0].equals("bands"))
+                    bands = Integer.parseInt(setting[1]);
+                else if (setting.length == 2 && setting[0].equals("fps"))
+                    fps = Integer.parseInt(setting[1]);
+                else
+                    throw new ParseException("Unknown display setting: " + parts[i]);
+            } catch (NumberFormatException e) {
+                throw new ParseException("Invalid display setting: " + parts[i]);
+            }
+        }
+        if (bands <= 0 || fps <= 0)
+            throw new ParseException("Band count and frame rate of a display must be greater than zero");
+        String host = null;
+        int port = -1;
+        if ((type.equals("emulator") || type.equals("stream")) && target != null) {
+            //An IPv6 address has to be bracketed to tell its colons from the port separator
+            int separator;
+            if (target.startsWith("[")) {
+                int bracket = target.indexOf(']');
+                if (bracket < 0 || (bracket + 1 < target.length() && target.charAt(bracket + 1) != ':'))
+                    throw new ParseException("Invalid host in display: " + value);
+                host = target.substring(1, bracket);
+                separator = bracket + 1 < target.length() ? bracket + 1 : -1;
+            } else {
+                separator = target.indexOf(':');
+                if (separator >= 0 && target.indexOf(':', separator + 1) >= 0)
+                    throw new ParseException("An IPv6 host must be enclosed in brackets, e.g. [::1]:3580: " + value);
+                host = separator < 0 ? target : target.substring(0, separator);
+            }
+            if (host.isEmpty())
+                throw new ParseException("Invalid host in display: " + value);
+            if (separator >= 0) {
+                try {
+                    port = Integer.parseInt(target.substring(separator + 1));
+                } catch (NumberFormatException e) {
+                    throw new ParseException("Invalid port in display: " + value);
+                }
+                if (port < 0 || port > 65535)
+                    throw new ParseException("Invalid port in display: " + value);
+            }
         }
+        return new DisplaySpec(type, target, host, port, bands, fps);
     }
 }
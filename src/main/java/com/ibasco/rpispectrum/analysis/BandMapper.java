@@ -0,0 +1,193 @@
+package com.ibasco.rpispectrum.analysis;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reduces a magnitude spectrum to a fixed number of bands.
+ * <p>
+ * The bin to band assignment is computed once from the band edges of the selected {@link BandScale}. Each bin
+ * contributes to a band in proportion to how much of the bin's frequency range overlaps the band, so bands narrower
+ * than a single bin (typical for the bass end of logarithmic scales) still receive a value. Mappers are immutable and
+ * cached per configuration, so obtaining one for a format that was seen before is free.
+ */
+public final class BandMapper {
+
+    public static final float DEFAULT_MIN_FREQUENCY = 20.0f;
+
+    public static final float DEFAULT_MAX_FREQUENCY = 20000.0f;
+
+    private static final ConcurrentHashMap<Key, BandMapper> cache = new ConcurrentHashMap<>();
+
+    private final BandScale scale;
+
+    private final int bandCount;
+
+    private final int binCount;
+
+    private final float[] edges;
+
+    //Entries of band b are located at [offsets[b], offsets[b + 1])
+    private final int[] offsets;
+
+    private final int[] bins;
+
+    private final float[] weights;
+
+    private final float[] norms;
+
+    /**
+     * Returns a cached mapper for the specified configuration using the default frequency range (capped at Nyquist)
+     */
+    public static BandMapper get(BandScale scale, int bandCount, int fftSize, float sampleRate) {
+        return get(scale, bandCount, fftSize, sampleRate, DEFAULT_MIN_FREQUENCY, DEFAULT_MAX_FREQUENCY);
+    }
+
+    public static BandMapper get(BandScale scale, int bandCount, int fftSize, float sampleRate, float minFrequency, float maxFrequency) {
+        Key key = new Key(scale, bandCount, fftSize, sampleRate, minFrequency, maxFrequency);
+        return cache.computeIfAbsent(key, BandMapper::new);
+    }
+
+    private BandMapper(Key key) {
+        if (key.bandCount <= 0)
+            throw new IllegalArgumentException("Band count must be greater than zero");
+        this.scale = key.scale;
+        this.bandCount = key.bandCount;
+        this.binCount = key.fftSize / 2 + 1;
+
+        double binWidth = (double) key.sampleRate / key.fftSize;
+        double nyquist = key.sampleRate / 2.0;
+        double maxFrequency = Math.min(key.maxFrequency, nyquist);
+        double minFrequency = Math.max(Math.min(key.minFrequency, maxFrequency), binWidth / 2);
+
+        edges = new float[bandCount + 1];
+        for (int i = 0; i <= bandCount; i++)
+            edges[i] = (float) scale.edge(i, bandCount, minFrequency, maxFrequency);
+
+        //First pass counts the entries, second pass fills in the tables
+        offsets = new int[bandCount + 1];
+        for (int b = 0; b < bandCount; b++) {
+            int count = 0;
+            for (int k = firstBin(b, binWidth); k <= lastBin(b, binWidth); k++) {
+                if (overlap(k, b, binWidth) > 0)
+                    count++;
+            }
+            offsets[b + 1] = offsets[b] + count;
+        }
+        bins = new int[offsets[bandCount]];
+        weights = new float[offsets[bandCount]];
+        norms = new float[bandCount];
+        for (int b = 0; b < bandCount; b++) {
+            int entry = offsets[b];
+            double sum = 0;
+            for (int k = firstBin(b, binWidth); k <= lastBin(b, binWidth); k++) {
+                double overlap = overlap(k, b, binWidth);
+                if (overlap <= 0)
+                    continue;
+                bins[entry] = k;
+                weights[entry] = (float) (overlap / binWidth);
+                sum += weights[entry];
+                entry++;
+            }
+            norms[b] = sum > 0 ? (float) (1.0 / sum) : 0.0f;
+        }
+    }
+
+    private int firstBin(int band, double binWidth) {
+        return Math.max(0, (int) Math.floor(edges[band] / binWidth + 0.5));
+    }
+
+    private int lastBin(int band, double binWidth) {
+        return Math.min(binCount - 1, (int) Math.floor(edges[band + 1] / binWidth + 0.5));
+    }
+
+    /**
+     * @return The width in Hz of the overlap between the frequency range covered by the bin and the band
+     */
+    private double overlap(int bin, int band, double binWidth) {
+        double binLo = (bin - 0.5) * binWidth, binHi = (bin + 0.5) * binWidth;
+        return Math.min(edges[band + 1], binHi) - Math.max(edges[band], binLo);
+    }
+
+    /**
+     * Computes the weighted average magnitude of every band
+     *
+     * @param spectrum
+     *         A magnitude spectrum with at least {@link #getBinCount()} bins
+     * @param out
+     *         Destination array of at least {@link #getBandCount()} elements
+     */
+    public void map(float[] spectrum, float[] out) {
+        int entry = 0;
+        for (int b = 0; b < bandCount; b++) {
+            int end = offsets[b + 1];
+            float sum = 0;
+            for (; entry < end; entry++)
+                sum += spectrum[bins[entry]] * weights[entry];
+            out[b] = sum * norms[b];
+        }
+    }
+
+    public BandScale getScale() {
+        return scale;
+    }
+
+    public int getBandCount() {
+        return bandCount;
+    }
+
+    public int getBinCount() {
+        return binCount;
+    }
+
+    /**
+     * @return The lower edge frequency in Hz of the band (an index equal to the band count returns the upper edge of
+     * the last band)
+     */
+    public float getEdgeFrequency(int index) {
+        return edges[index];
+    }
+
+    private static final class Key {
+        private final BandScale scale;
+
+        private final int bandCount;
+
+        private final int fftSize;
+
+        private final float sampleRate;
+
+        private final float minFrequency;
+
+        private final float maxFrequency;
+
+        private Key(BandScale scale, int bandCount, int fftSize, float sampleRate, float minFrequency, float maxFrequency) {
+            this.scale = Objects.requireNonNull(scale, "Scale cannot be null");
+            this.bandCount = bandCount;
+            this.fftSize = fftSize;
+            this.sampleRate = sampleRate;
+            this.minFrequency = minFrequency;
+            this.maxFrequency = maxFrequency;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key key = (Key) o;
+            return bandCount == key.bandCount &&
+                    fftSize == key.fftSize &&
+                    Float.compare(key.sampleRate, sampleRate) == 0 &&
+                    Float.compare(key.minFrequency, minFrequency) == 0 &&
+                    Float.compare(key.maxFrequency, maxFrequency) == 0 &&
+                    scale == key.scale;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(scale, bandCount, fftSize, sampleRate, minFrequency, maxFrequency);
+        }
+    }
+}
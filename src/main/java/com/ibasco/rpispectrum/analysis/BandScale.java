@@ -0,0 +1,75 @@
+package com.ibasco.rpispectrum.analysis;
+
+/**
+ * Frequency scales used to distribute spectrum bins over a number of display bands
+ */
+public enum BandScale {
+    /**
+     * Equally wide bands between the minimum and maximum frequency
+     */
+    LINEAR {
+        @Override
+        double edge(int index, int bandCount, double minFrequency, double maxFrequency) {
+            return minFrequency + (maxFrequency - minFrequency) * index / bandCount;
+        }
+    },
+    /**
+     * Logarithmically spaced bands between the minimum and maximum frequency
+     */
+    LOGARITHMIC {
+        @Override
+        double edge(int index, int bandCount, double minFrequency, double maxFrequency) {
+            return minFrequency * Math.pow(maxFrequency / minFrequency, (double) index / bandCount);
+        }
+    },
+    /**
+     * One octave wide bands ending at the maximum frequency. Bands that would extend below the minimum frequency are
+     * clamped to it (and are empty if they lie below it entirely).
+     */
+    OCTAVE {
+        @Override
+        double edge(int index, int bandCount, double minFrequency, double maxFrequency) {
+            return fractionalOctaveEdge(index, bandCount, minFrequency, maxFrequency, 1);
+        }
+    },
+    /**
+     * One third octave wide bands ending at the maximum frequency. Bands that would extend below the minimum frequency
+     * are clamped to it (and are empty if they lie below it entirely).
+     */
+    THIRD_OCTAVE {
+        @Override
+        double edge(int index, int bandCount, double minFrequency, double maxFrequency) {
+            return fractionalOctaveEdge(index, bandCount, minFrequency, maxFrequency, 3);
+        }
+    },
+    /**
+     * Bands equally spaced on the Bark (critical band) scale using Traunmueller's approximation
+     */
+    BARK {
+        @Override
+        double edge(int index, int bandCount, double minFrequency, double maxFrequency) {
+            double lo = toBark(minFrequency);
+            double hi = toBark(maxFrequency);
+            return fromBark(lo + (hi - lo) * index / bandCount);
+        }
+    };
+
+    /**
+     * @return The lower edge frequency in Hz of the band at the specified index. An index equal to the band count
+     * returns the upper edge of the last band.
+     */
+    abstract double edge(int index, int bandCount, double minFrequency, double maxFrequency);
+
+    private static double fractionalOctaveEdge(int index, int bandCount, double minFrequency, double maxFrequency, int bandsPerOctave) {
+        double edge = maxFrequency / Math.pow(2.0, (double) (bandCount - index) / bandsPerOctave);
+        return Math.min(maxFrequency, Math.max(minFrequency, edge));
+    }
+
+    private static double toBark(double frequency) {
+        return 26.81 * frequency / (1960.0 + frequency) - 0.53;
+    }
+
+    private static double fromBark(double bark) {
+        return 1960.0 * (bark + 0.53) / (26.28 - bark);
+    }
+}
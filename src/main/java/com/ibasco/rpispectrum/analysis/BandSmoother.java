@@ -0,0 +1,194 @@
+package com.ibasco.rpispectrum.analysis;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts band magnitudes to display levels and smooths them over time.
+ * <p>
+ * Magnitudes are converted to decibels relative to a reference magnitude and mapped linearly between a floor and a
+ * ceiling to a level of 0.0 - 1.0. Each band then follows its target with separate exponential attack and release
+ * time constants, and a peak marker holds the highest level for a while before falling at a constant rate. The
+ * smoothing coefficients are derived from the actual time between frames, so the motion is the same regardless of
+ * the frame rate. All state is kept in primitive arrays and each call costs constant time per band.
+ * <p>
+ * Not thread-safe, owned by the render thread.
+ */
+public class BandSmoother {
+
+    private static final float SETTLE_THRESHOLD = 0.001f;
+
+    private final float[] levels;
+
+    private final float[] peaks;
+
+    private final long[] peakHoldUntil;
+
+    private float attackMillis = 10;
+
+    private float releaseMillis = 150;
+
+    private long peakHoldNanos = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private float peakDecayPerSecond = 0.5f;
+
+    private float floorDb = -60;
+
+    private float ceilingDb = 0;
+
+    private float reference = 1;
+
+    private long lastUpdate = Long.MIN_VALUE;
+
+    private boolean settled = true;
+
+    public BandSmoother(int bandCount) {
+        this.levels = new float[bandCount];
+        this.peaks = new float[bandCount];
+        this.peakHoldUntil = new long[bandCount];
+    }
+
+    /**
+     * Advances the smoothing state towards the specified band magnitudes
+     *
+     * @param magnitudes
+     *         The current band magnitudes
+     * @param nanoTime
+     *         The current time as returned by {@link System#nanoTime()}
+     */
+    public void process(float[] magnitudes, long nanoTime) {
+        float dt = lastUpdate == Long.MIN_VALUE ? 0 : (nanoTime - lastUpdate) / 1e9f;
+        lastUpdate = nanoTime;
+
+        //Coefficients are shared by all bands, so the exponentials are computed once per frame
+        float attack = attackMillis <= 0 ? 1 : 1 - (float) Math.exp(-dt * 1000 / attackMillis);
+        float release = releaseMillis <= 0 ? 1 : 1 - (float) Math.exp(-dt * 1000 / releaseMillis);
+        float peakDecay = peakDecayPerSecond * dt;
+        float range = ceilingDb - floorDb;
+
+        boolean settled = true;
+        for (int i = 0; i < levels.length; i++) {
+            float target = toLevel(magnitudes[i], range);
+            float level = levels[i];
+            level += (target - level) * (target > level ? attack : release);
+            levels[i] = level;
+
+            if (level >= peaks[i]) {
+                peaks[i] = level;
+                peakHoldUntil[i] = nanoTime + peakHoldNanos;
+            } else if (nanoTime - peakHoldUntil[i] > 0) {
+                peaks[i] = Math.max(level, peaks[i] - peakDecay);
+            }
+
+            if (Math.abs(target - level) > SETTLE_THRESHOLD || peaks[i] - level > SETTLE_THRESHOLD)
+                settled = false;
+        }
+        this.settled = settled;
+    }
+
+    private float toLevel(float magnitude, float range) {
+        if (magnitude <= 0 || range <= 0)
+            return 0;
+        float db = 20 * (float) Math.log10(magnitude / reference);
+        float level = (db - floorDb) / range;
+        return level < 0 ? 0 : (level > 1 ? 1 : level);
+    }
+
+    /**
+     * @return The smoothed band levels (0.0 - 1.0). The returned array is live and must not be modified.
+     */
+    public float[] getLevels() {
+        return levels;
+    }
+
+    /**
+     * @return The peak levels (0.0 - 1.0). The returned array is live and must not be modified.
+     */
+    public float[] getPeaks() {
+        return peaks;
+    }
+
+    /**
+     * @return {@code true} if every level has reached its target and no peak marker is still falling, i.e. another
+     * call with the same input would not visibly change anything
+     */
+    public boolean isSettled() {
+        return settled;
+    }
+
+    public void reset() {
+        Arrays.fill(levels, 0);
+        Arrays.fill(peaks, 0);
+        Arrays.fill(peakHoldUntil, 0);
+        lastUpdate = Long.MIN_VALUE;
+        settled = true;
+    }
+
+    public int getBandCount() {
+        return levels.length;
+    }
+
+    public float getAttackMillis() {
+        return attackMillis;
+    }
+
+    public void setAttackMillis(float attackMillis) {
+        this.attackMillis = attackMillis;
+    }
+
+    public float getReleaseMillis() {
+        return releaseMillis;
+    }
+
+    public void setReleaseMillis(float releaseMillis) {
+        this.releaseMillis = releaseMillis;
+    }
+
+    public long getPeakHoldMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(peakHoldNanos);
+    }
+
+    public void setPeakHoldMillis(long peakHoldMillis) {
+        this.peakHoldNanos = TimeUnit.MILLISECONDS.toNanos(peakHoldMillis);
+    }
+
+    public float getPeakDecayPerSecond() {
+        return peakDecayPerSecond;
+    }
+
+    /**
+     * @param peakDecayPerSecond
+     *         How fast a peak marker falls once its hold time expired, in levels per second (1.0 = full height)
+     */
+    public void setPeakDecayPerSecond(float peakDecayPerSecond) {
+        this.peakDecayPerSecond = peakDecayPerSecond;
+    }
+
+    public float getFloorDb() {
+        return floorDb;
+    }
+
+    public void setFloorDb(float floorDb) {
+        this.floorDb = floorDb;
+    }
+
+    public float getCeilingDb() {
+        return ceilingDb;
+    }
+
+    public void setCeilingDb(float ceilingDb) {
+        this.ceilingDb = ceilingDb;
+    }
+
+    public float getReference() {
+        return reference;
+    }
+
+    /**
+     * @param reference
+     *         The magnitude that corresponds to 0 dB
+     */
+    public void setReference(float reference) {
+        this.reference = reference;
+    }
+}
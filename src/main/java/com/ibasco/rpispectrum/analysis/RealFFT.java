@@ -0,0 +1,166 @@
+package com.ibasco.rpispectrum.analysis;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Radix-2 FFT for real-valued input.
+ * <p>
+ * An N point real sequence is packed into an N/2 point complex sequence (even samples as the real part, odd samples
+ * as the imaginary part), transformed with an iterative radix-2 FFT and then split into the N/2 + 1 bins of the real
+ * spectrum. This does roughly half the work of a complex FFT over zero-padded imaginary input. Twiddle factors and
+ * the bit-reversal permutation are computed once per size and shared between instances.
+ */
+public final class RealFFT implements SpectrumTransform {
+
+    private static final ConcurrentHashMap<Integer, Plan> plans = new ConcurrentHashMap<>();
+
+    private final int size;
+
+    private final float sampleRate;
+
+    private final Plan plan;
+
+    public RealFFT(int size, float sampleRate) {
+        if (size < 4 || Integer.bitCount(size) != 1)
+            throw new IllegalArgumentException("FFT size must be a power of two greater than or equal to 4 (actual: " + size + ")");
+        this.size = size;
+        this.sampleRate = sampleRate;
+        this.plan = plans.computeIfAbsent(size, Plan::new);
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public float getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public int getBinCount() {
+        return size / 2 + 1;
+    }
+
+    @Override
+    public void forward(float[] data) {
+        if (data.length != size)
+            throw new IllegalArgumentException("Expected " + size + " samples (actual: " + data.length + ")");
+        int half = size >> 1;
+        complexTransform(data, half);
+
+        float[] cos = plan.cos;
+        float[] sin = plan.sin;
+
+        //Split the half-length complex spectrum into the spectrum of the real input
+        float zr0 = data[0];
+        float zi0 = data[1];
+        data[0] = zr0 + zi0;
+        data[1] = zr0 - zi0;
+        for (int k = 1, m = half - 1; k <= m; k++, m--) {
+            int ik = k << 1, im = m << 1;
+            float zrk = data[ik], zik = data[ik + 1];
+            float zrm = data[im], zim = data[im + 1];
+
+            float feR = 0.5f * (zrk + zrm);
+            float feI = 0.5f * (zik - zim);
+            float foR = 0.5f * (zik + zim);
+            float foI = -0.5f * (zrk - zrm);
+
+            //t = W^k * Fo where W^k = exp(-2*pi*i*k/N)
+            float c = cos[k], s = sin[k];
+            float tR = c * foR + s * foI;
+            float tI = c * foI - s * foR;
+
+            data[ik] = feR + tR;
+            data[ik + 1] = feI + tI;
+            data[im] = feR - tR;
+            data[im + 1] = tI - feI;
+        }
+    }
+
+    @Override
+    public void magnitude(float[] spectrum, float[] out) {
+        int half = size >> 1;
+        out[0] = Math.abs(spectrum[0]);
+        out[half] = Math.abs(spectrum[1]);
+        for (int k = 1; k < half; k++) {
+            float re = spectrum[k << 1], im = spectrum[(k << 1) + 1];
+            out[k] = (float) Math.sqrt(re * re + im * im);
+        }
+    }
+
+    @Override
+    public void power(float[] spectrum, float[] out) {
+        int half = size >> 1;
+        out[0] = spectrum[0] * spectrum[0];
+        out[half] = spectrum[1] * spectrum[1];
+        for (int k = 1; k < half; k++) {
+            float re = spectrum[k << 1], im = spectrum[(k << 1) + 1];
+            out[k] = re * re + im * im;
+        }
+    }
+
+    private void complexTransform(float[] data, int n) {
+        int[] reverse = plan.reverse;
+        for (int i = 0; i < n; i++) {
+            int j = reverse[i];
+            if (i < j) {
+                int a = i << 1, b = j << 1;
+                float tr = data[a], ti = data[a + 1];
+                data[a] = data[b];
+                data[a + 1] = data[b + 1];
+                data[b] = tr;
+                data[b + 1] = ti;
+            }
+        }
+        float[] cos = plan.cos;
+        float[] sin = plan.sin;
+        for (int len = 2; len <= n; len <<= 1) {
+            int halfLen = len >> 1;
+            //Twiddles for an n point transform are every other entry of the 2n point table
+            int step = (n / len) << 1;
+            for (int k = 0; k < halfLen; k++) {
+                float wr = cos[k * step];
+                float wi = -sin[k * step];
+                for (int i = k; i < n; i += len) {
+                    int a = i << 1, b = (i + halfLen) << 1;
+                    float xr = data[b] * wr - data[b + 1] * wi;
+                    float xi = data[b] * wi + data[b + 1] * wr;
+                    data[b] = data[a] - xr;
+                    data[b + 1] = data[a + 1] - xi;
+                    data[a] += xr;
+                    data[a + 1] += xi;
+                }
+            }
+        }
+    }
+
+    /**
+     * Precomputed tables for a given transform size
+     */
+    private static final class Plan {
+        private final float[] cos;
+
+        private final float[] sin;
+
+        private final int[] reverse;
+
+        private Plan(int size) {
+            int half = size >> 1;
+            cos = new float[half];
+            sin = new float[half];
+            for (int k = 0; k < half; k++) {
+                double angle = 2.0 * Math.PI * k / size;
+                cos[k] = (float) Math.cos(angle);
+                sin[k] = (float) Math.sin(angle);
+            }
+            int bits = Integer.numberOfTrailingZeros(half);
+            reverse = new int[half];
+            for (int i = 0; i < half; i++) {
+                reverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+            }
+        }
+    }
+}
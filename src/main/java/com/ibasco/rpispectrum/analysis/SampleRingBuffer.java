@@ -0,0 +1,72 @@
+package com.ibasco.rpispectrum.analysis;
+
+import java.util.Arrays;
+
+/**
+ * Fixed capacity ring of the most recent samples. Not thread-safe, owned by a single thread.
+ */
+public final class SampleRingBuffer {
+
+    private final float[] samples;
+
+    private int writeIndex;
+
+    private long totalWritten;
+
+    public SampleRingBuffer(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be greater than zero");
+        this.samples = new float[capacity];
+    }
+
+    public void write(float[] src, int offset, int length) {
+        int capacity = samples.length;
+        totalWritten += length;
+        //Only the last 'capacity' samples can survive
+        if (length > capacity) {
+            offset += length - capacity;
+            length = capacity;
+        }
+        int first = Math.min(length, capacity - writeIndex);
+        System.arraycopy(src, offset, samples, writeIndex, first);
+        if (first < length)
+            System.arraycopy(src, offset + first, samples, 0, length - first);
+        writeIndex = (writeIndex + length) % capacity;
+    }
+
+    /**
+     * Copies the most recent samples, oldest first, into the destination. Positions that were never written are
+     * zero.
+     *
+     * @param dest
+     *         The destination array, its length determines how many samples are copied (at most the capacity)
+     */
+    public void copyLatest(float[] dest) {
+        int capacity = samples.length;
+        int count = Math.min(dest.length, capacity);
+        int start = writeIndex - count;
+        if (start < 0)
+            start += capacity;
+        int first = Math.min(count, capacity - start);
+        System.arraycopy(samples, start, dest, 0, first);
+        if (first < count)
+            System.arraycopy(samples, 0, dest, first, count - first);
+    }
+
+    public int getCapacity() {
+        return samples.length;
+    }
+
+    /**
+     * @return The total number of samples written since creation or the last {@link #clear()}
+     */
+    public long getTotalWritten() {
+        return totalWritten;
+    }
+
+    public void clear() {
+        Arrays.fill(samples, 0.0f);
+        writeIndex = 0;
+        totalWritten = 0;
+    }
+}
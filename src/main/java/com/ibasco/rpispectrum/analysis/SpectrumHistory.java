@@ -0,0 +1,138 @@
+package com.ibasco.rpispectrum.analysis;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Ring of the most recent spectra, each tagged with the stream frame position it describes.
+ * <p>
+ * The analyzer runs ahead of what is audible by everything buffered between the decoder and the speaker. Keeping a
+ * short history lets the render thread pick the spectrum matching the current playback position instead of the
+ * newest one. There is a single writer, and readers use an optimistic read that is retried if the writer raced them,
+ * so neither side blocks or allocates.
+ */
+public final class SpectrumHistory {
+
+    private final float[][] spectra;
+
+    private final long[] positions;
+
+    private final StampedLock lock = new StampedLock();
+
+    //Number of spectra published since the last clear, the newest one is at (count - 1) % capacity
+    private long count;
+
+    private volatile long sequence;
+
+    /**
+     * @param capacity
+     *         The number of spectra to keep
+     * @param binCount
+     *         The number of bins of a spectrum
+     */
+    public SpectrumHistory(int capacity, int binCount) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be greater than zero");
+        this.spectra = new float[capacity][binCount];
+        this.positions = new long[capacity];
+    }
+
+    /**
+     * Adds a spectrum to the history, replacing the oldest one if it is full. Positions must increase between calls
+     * to {@link #clear()}. Must only be called from a single writer thread.
+     */
+    public void publish(float[] spectrum, long position) {
+        long stamp = lock.writeLock();
+        try {
+            int slot = (int) (count % spectra.length);
+            System.arraycopy(spectrum, 0, spectra[slot], 0, spectra[slot].length);
+            positions[slot] = position;
+            count++;
+            sequence++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Copies the newest spectrum at or before the specified position (or the oldest one if the position precedes
+     * the whole history) into the destination array
+     *
+     * @return The position of the spectrum that was copied, or {@link Long#MIN_VALUE} if the history is empty
+     */
+    public long read(long position, float[] dest) {
+        while (true) {
+            long stamp = lock.tryOptimisticRead();
+            int slot = find(position);
+            long result = Long.MIN_VALUE;
+            if (slot >= 0) {
+                System.arraycopy(spectra[slot], 0, dest, 0, spectra[slot].length);
+                result = positions[slot];
+            }
+            if (stamp != 0 && lock.validate(stamp))
+                return result;
+            Thread.yield();
+        }
+    }
+
+    /**
+     * @return The position of the spectrum {@link #read(long, float[])} would return, without copying it
+     */
+    public long positionAt(long position) {
+        while (true) {
+            long stamp = lock.tryOptimisticRead();
+            int slot = find(position);
+            long result = slot < 0 ? Long.MIN_VALUE : positions[slot];
+            if (stamp != 0 && lock.validate(stamp))
+                return result;
+            Thread.yield();
+        }
+    }
+
+    private int find(long position) {
+        long total = count;
+        if (total == 0)
+            return -1;
+        int size = (int) Math.min(total, spectra.length);
+        long oldest = total - size;
+        //Binary search for the last entry whose position is <= the target
+        int lo = 0, hi = size - 1, found = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (positions[(int) ((oldest + mid) % spectra.length)] <= position) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return (int) ((oldest + found) % spectra.length);
+    }
+
+    /**
+     * Discards all spectra, e.g. after a seek. Must be called from the writer thread.
+     */
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            count = 0;
+            sequence++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return A number that changes whenever a spectrum is published or the history is cleared
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public int getCapacity() {
+        return spectra.length;
+    }
+
+    public int getBinCount() {
+        return spectra[0].length;
+    }
+}
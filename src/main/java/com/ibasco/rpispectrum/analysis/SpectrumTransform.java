@@ -0,0 +1,57 @@
+package com.ibasco.rpispectrum.analysis;
+
+/**
+ * A forward transform from a block of real-valued time domain samples to a frequency spectrum. Implementations work in
+ * place on caller supplied arrays and must not allocate per call.
+ */
+public interface SpectrumTransform {
+
+    /**
+     * @return The number of time domain samples consumed per transform
+     */
+    int getSize();
+
+    float getSampleRate();
+
+    /**
+     * @return The number of frequency bins (DC up to and including Nyquist)
+     */
+    int getBinCount();
+
+    /**
+     * Transforms the samples in place. On return the array holds the packed spectrum: index 0 holds the DC
+     * component, index 1 the Nyquist component and indices {@code 2k}/{@code 2k + 1} the real/imaginary parts of bin
+     * {@code k}.
+     *
+     * @param data
+     *         An array of exactly {@link #getSize()} samples
+     */
+    void forward(float[] data);
+
+    /**
+     * Extracts the magnitude of each bin from a packed spectrum produced by {@link #forward(float[])}
+     *
+     * @param spectrum
+     *         The packed spectrum
+     * @param out
+     *         Destination array of at least {@link #getBinCount()} elements
+     */
+    void magnitude(float[] spectrum, float[] out);
+
+    /**
+     * Extracts the power (squared magnitude) of each bin from a packed spectrum produced by {@link #forward(float[])}
+     *
+     * @param spectrum
+     *         The packed spectrum
+     * @param out
+     *         Destination array of at least {@link #getBinCount()} elements
+     */
+    void power(float[] spectrum, float[] out);
+
+    /**
+     * @return The center frequency in Hz of the bin at the specified index
+     */
+    default float getBinFrequency(int bin) {
+        return bin * getSampleRate() / getSize();
+    }
+}
@@ -0,0 +1,178 @@
+package com.ibasco.rpispectrum.analysis;
+
+import com.ibasco.rpispectrum.metrics.LatencyHistogram;
+
+/**
+ * Streaming short-time Fourier transform.
+ * <p>
+ * Samples are pushed in blocks of arbitrary size (typically from the decoder thread) into a ring buffer. Every
+ * {@code hopSize} samples the most recent {@code frameSize} samples are windowed and transformed. The analysis rate is
+ * therefore determined by the hop size alone and independent of the size of the blocks being pushed.
+ * <p>
+ * Each spectrum is added to a {@link SpectrumHistory}, tagged with the stream frame position at the center of
+ * its analysis window, so the display can show the spectrum of what is currently audible rather than of what was
+ * decoded last.
+ * <p>
+ * {@link #process(float[], int, int)} must be called from a single thread and does not allocate.
+ */
+public class StftAnalyzer {
+
+    public static final int DEFAULT_FRAME_SIZE = 2048;
+
+    public static final int DEFAULT_HOP_SIZE = 512;
+
+    public static final int DEFAULT_HISTORY_SIZE = 64;
+
+    /**
+     * Receives every analyzed spectrum on the thread calling {@link #process(float[], int, int)}. Implementations
+     * must not hold on to the array.
+     */
+    @FunctionalInterface
+    public interface FrameListener {
+        /**
+         * @param framePosition
+         *         The stream frame position at the center of the analysis window
+         */
+        void onFrame(float[] magnitudes, long framePosition);
+    }
+
+    private final int frameSize;
+
+    private final int hopSize;
+
+    private final SpectrumTransform transform;
+
+    private final SampleRingBuffer ring;
+
+    private final float[] window;
+
+    private final float[] frame;
+
+    private final float[] magnitudes;
+
+    private final SpectrumHistory history;
+
+    private final LatencyHistogram frameTime = new LatencyHistogram();
+
+    private FrameListener frameListener;
+
+    private int pending;
+
+    private long frameCount;
+
+    //Stream frame position of the next sample to be pushed
+    private long position;
+
+    public StftAnalyzer(int frameSize, int hopSize, float sampleRate, WindowFunction window) {
+        this(frameSize, hopSize, sampleRate, window, DEFAULT_HISTORY_SIZE);
+    }
+
+    /**
+     * @param historySize
+     *         The number of spectra kept for position lookups, should cover the audio buffered between the decoder
+     *         and the speaker
+     */
+    public StftAnalyzer(int frameSize, int hopSize, float sampleRate, WindowFunction window, int historySize) {
+        if (hopSize <= 0 || hopSize > frameSize)
+            throw new IllegalArgumentException("Hop size must be between 1 and the frame size (" + frameSize + ")");
+        this.frameSize = frameSize;
+        this.hopSize = hopSize;
+        this.transform = new RealFFT(frameSize, sampleRate);
+        this.ring = new SampleRingBuffer(frameSize);
+        this.window = window.getShared(frameSize);
+        this.frame = new float[frameSize];
+        this.magnitudes = new float[transform.getBinCount()];
+        this.history = new SpectrumHistory(historySize, transform.getBinCount());
+    }
+
+    /**
+     * Pushes a block of samples starting at the specified stream frame position. A position that does not continue
+     * the previous block (e.g. after a seek) discards the buffered samples first.
+     */
+    public void process(float[] samples, int offset, int length, long framePosition) {
+        if (framePosition != position) {
+            reset();
+            position = framePosition;
+        }
+        process(samples, offset, length);
+    }
+
+    /**
+     * Pushes a block of samples, emitting a new spectrum for every completed hop
+     */
+    public void process(float[] samples, int offset, int length) {
+        while (length > 0) {
+            int count = Math.min(length, hopSize - pending);
+            ring.write(samples, offset, count);
+            offset += count;
+            length -= count;
+            pending += count;
+            position += count;
+            if (pending == hopSize) {
+                pending = 0;
+                analyzeFrame();
+            }
+        }
+    }
+
+    private void analyzeFrame() {
+        long start = System.nanoTime();
+        ring.copyLatest(frame);
+        for (int i = 0; i < frameSize; i++)
+            frame[i] *= window[i];
+        transform.forward(frame);
+        transform.magnitude(frame, magnitudes);
+        history.publish(magnitudes, position - frameSize / 2);
+        frameCount++;
+        frameTime.recordSince(start);
+        if (frameListener != null)
+            frameListener.onFrame(magnitudes, position - frameSize / 2);
+    }
+
+    /**
+     * Discards buffered samples, e.g. after a seek. Must be called from the thread that calls {@link #process(float[], int, int)}
+     */
+    public void reset() {
+        ring.clear();
+        pending = 0;
+        history.clear();
+    }
+
+    /**
+     * @return The recent spectra tagged with the stream frame position at the center of their analysis window
+     */
+    public SpectrumHistory getHistory() {
+        return history;
+    }
+
+    public FrameListener getFrameListener() {
+        return frameListener;
+    }
+
+    public void setFrameListener(FrameListener frameListener) {
+        this.frameListener = frameListener;
+    }
+
+    public SpectrumTransform getTransform() {
+        return transform;
+    }
+
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    public int getHopSize() {
+        return hopSize;
+    }
+
+    /**
+     * @return The time spent windowing, transforming and publishing a frame
+     */
+    public LatencyHistogram getFrameTime() {
+        return frameTime;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+}
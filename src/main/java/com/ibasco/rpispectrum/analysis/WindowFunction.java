@@ -0,0 +1,67 @@
+package com.ibasco.rpispectrum.analysis;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Window functions applied to a frame before it is transformed to reduce spectral leakage.
+ * <p>
+ * The windows are periodic (the period is the frame size rather than the frame size minus one), which is the form
+ * suited for spectral analysis of overlapping frames: Hann windows at hops of a quarter or half the frame size add up
+ * to a constant and the window spectrum is aligned with the FFT bins.
+ */
+public enum WindowFunction {
+    RECTANGULAR {
+        @Override
+        double value(int n, int size) {
+            return 1.0;
+        }
+    },
+    HANN {
+        @Override
+        double value(int n, int size) {
+            return 0.5 - 0.5 * Math.cos(2.0 * Math.PI * n / size);
+        }
+    },
+    BLACKMAN_HARRIS {
+        @Override
+        double value(int n, int size) {
+            double x = 2.0 * Math.PI * n / size;
+            return 0.35875 - 0.48829 * Math.cos(x) + 0.14128 * Math.cos(2 * x) - 0.01168 * Math.cos(3 * x);
+        }
+    };
+
+    private final ConcurrentHashMap<Integer, float[]> shared = new ConcurrentHashMap<>();
+
+    abstract double value(int n, int size);
+
+    /**
+     * @return The coefficients for the specified size, computed once and shared between all callers, which must not
+     * modify them
+     */
+    float[] getShared(int size) {
+        return shared.computeIfAbsent(size, this::create);
+    }
+
+    /**
+     * Computes the window coefficients, scaled so that they sum up to the window size. This keeps magnitudes on the
+     * same scale as an un-windowed (rectangular) transform of the same size.
+     *
+     * @param size
+     *         The number of coefficients
+     *
+     * @return A new array of window coefficients
+     */
+    public float[] create(int size) {
+        double[] values = new double[size];
+        double sum = 0;
+        for (int n = 0; n < size; n++) {
+            values[n] = size == 1 ? 1.0 : value(n, size);
+            sum += values[n];
+        }
+        float[] coefficients = new float[size];
+        double scale = sum > 0 ? size / sum : 1.0;
+        for (int n = 0; n < size; n++)
+            coefficients[n] = (float) (values[n] * scale);
+        return coefficients;
+    }
+}
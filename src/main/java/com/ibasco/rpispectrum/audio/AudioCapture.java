@@ -2,86 +2,266 @@ package com.ibasco.rpispectrum.audio;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.tritonus.share.sampled.FloatSampleBuffer;
 
 import javax.sound.sampled.*;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
-public class AudioCapture {
+/**
+ * Live audio input source.
+ * <p>
+ * A capture thread does blocking reads of one period at a time from a {@link TargetDataLine} into a reused buffer,
+ * converts the period to float samples and passes the mixed down samples to a {@link AudioPlayback.SampleListener},
+ * the same way {@link AudioPlayback} feeds decoded audio to the analysis. Small periods and a line buffer of only a
+ * few periods keep the latency from the input jack to the analysis in the order of milliseconds. Optionally the input
+ * is monitored through the default playback mixer.
+ */
+public class AudioCapture implements AutoCloseable {
     private static final Logger log = LoggerFactory.getLogger(AudioCapture.class);
 
+    public static final int DEFAULT_PERIOD_FRAMES = 256;
+
+    public static final int DEFAULT_BUFFER_PERIODS = 4;
+
     private SourceDataLine sourceDataLine;
 
     private TargetDataLine targetDataLine;
 
     private Mixer.Info mixer;
 
-    private void initDataLine() {
-        float sampleRate = 44100;
-        int sampleSizeInBits = 16;
-        int frameSize = 2 * (sampleSizeInBits / 8);
-        AudioFormat targetFormat = new AudioFormat(44100, 16, 2, true, false);
-        DataLine.Info info = new DataLine.Info(TargetDataLine.class, targetFormat); // format is an AudioFormat object
+    private AudioFormat format = new AudioFormat(44100, 16, 2, true, false);
+
+    private int periodFrames = DEFAULT_PERIOD_FRAMES;
+
+    private int bufferPeriods = DEFAULT_BUFFER_PERIODS;
+
+    private boolean monitor;
+
+    private volatile AudioPlayback.SampleListener sampleListener;
+
+    private volatile Thread thread;
 
-        Mixer mixer = AudioSystem.getMixer(getMixer());
+    private volatile boolean running;
 
-        log.debug("Using capture device mixer: {}", mixer);
+    private volatile long position;
 
-        if (!mixer.isLineSupported(info)) {
-            log.error("Line not supported: {}", info);
+    private volatile long overruns;
 
-            log.debug("Listing available target lines for this mixer");
-            for (Line line : mixer.getTargetLines()) {
-                log.debug("- Target Line: {}", line.getLineInfo().getLineClass());
+    /**
+     * Opens the capture line (and the monitor line if enabled) without starting to capture
+     */
+    public synchronized void open() throws LineUnavailableException {
+        close();
+        DataLine.Info info = new DataLine.Info(TargetDataLine.class, format);
+        if (mixer != null) {
+            Mixer m = MixerRegistry.getDefault().getMixer(mixer);
+            log.debug("Using capture device mixer: {}", m.getMixerInfo());
+            if (!MixerRegistry.getDefault().isLineSupported(mixer, TargetDataLine.class, format)) {
+                log.error("Line not supported: {}", info);
+                log.debug("Listing available target lines for this mixer");
+                for (Line line : m.getTargetLines()) {
+                    log.debug("- Target Line: {}", line.getLineInfo().getLineClass());
+                }
+                throw new LineUnavailableException("Capture format " + format + " not supported by mixer " + mixer.getName());
             }
+            targetDataLine = (TargetDataLine) m.getLine(info);
+        } else {
+            targetDataLine = (TargetDataLine) AudioSystem.getLine(info);
+        }
+        targetDataLine.open(format, getPeriodBytes() * bufferPeriods);
+        log.info("Opened capture line: {}, Format = {}, Period = {} frames, Buffer Size = {}", targetDataLine.getLineInfo(), format, periodFrames, targetDataLine.getBufferSize());
+
+        if (monitor) {
+            DataLine.Info sourceInfo = new DataLine.Info(SourceDataLine.class, format);
+            sourceDataLine = (SourceDataLine) AudioUtils.getDefaultPlaybackMixer().getLine(sourceInfo);
+            sourceDataLine.open(format, targetDataLine.getBufferSize());
+        }
+    }
 
+    /**
+     * Starts capturing on a new thread, opening the lines first if necessary
+     */
+    public synchronized void start() throws LineUnavailableException {
+        if (running)
             return;
+        if (targetDataLine == null || !targetDataLine.isOpen())
+            open();
+        running = true;
+        position = 0;
+        overruns = 0;
+        targetDataLine.start();
+        if (sourceDataLine != null)
+            sourceDataLine.start();
+        Thread t = new Thread(this::run, "AudioCapture");
+        t.setDaemon(true);
+        t.setPriority(Thread.MAX_PRIORITY);
+        thread = t;
+        t.start();
+    }
+
+    /**
+     * Opens the lines and starts capturing
+     */
+    public void init() throws LineUnavailableException {
+        start();
+    }
+
+    @Override
+    public synchronized void close() {
+        running = false;
+        Thread t = thread;
+        thread = null;
+        //Stopping and closing the line releases a blocked read
+        if (targetDataLine != null) {
+            targetDataLine.stop();
+            targetDataLine.close();
         }
-        // Obtain and open the line.
-        try {
-            if (targetDataLine != null) {
-                if (targetDataLine.isOpen()) {
-                    log.debug("Line is open. Closing target line");
-                    targetDataLine.close();
-                }
+        if (t != null && t != Thread.currentThread()) {
+            try {
+                t.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+        }
+        if (sourceDataLine != null) {
+            sourceDataLine.stop();
+            sourceDataLine.close();
+            sourceDataLine = null;
+        }
+        targetDataLine = null;
+    }
 
-            targetDataLine = (TargetDataLine) mixer.getLine(info);
-            targetDataLine.open(targetFormat, 1024 * 15);
-            targetDataLine.start();
-            log.debug("Successfully opened capture line: {}, Buffer Size = {}", targetDataLine, targetDataLine.getBufferSize());
+    private void run() {
+        TargetDataLine line = targetDataLine;
+        SourceDataLine monitorLine = sourceDataLine;
+        int frameSize = format.getFrameSize();
+        byte[] data = new byte[getPeriodBytes()];
+        FloatSampleBuffer sampleBuffer = new FloatSampleBuffer(format.getChannels(), periodFrames, format.getSampleRate());
+        float[] mixed = new float[periodFrames];
+        log.info("Capture started");
+        while (running) {
+            if (line.available() >= line.getBufferSize()) {
+                overruns++;
+                if (log.isDebugEnabled())
+                    log.debug("Capture overrun : " + line.available() + "/" + line.getBufferSize());
+            }
+            //Blocks until a full period is available (or the line is stopped)
+            int bytesRead = line.read(data, 0, data.length);
+            if (bytesRead <= 0) {
+                if (!line.isOpen())
+                    break;
+                continue;
+            }
+            int frames = bytesRead / frameSize;
+            sampleBuffer.setSamplesFromBytes(data, 0, format, 0, frames);
+            float[] left = sampleBuffer.getChannel(0);
+            float[] right = sampleBuffer.getChannelCount() > 1 ? sampleBuffer.getChannel(1) : left;
+            for (int i = 0; i < frames; i++)
+                mixed[i] = left[i] + right[i];
 
-            AudioFormat sourecTargetFormat = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, sampleRate, 16, 2, frameSize, sampleRate / frameSize, false);
-            DataLine.Info sourceInfo = new DataLine.Info(SourceDataLine.class, sourecTargetFormat);
-            sourceDataLine = (SourceDataLine) AudioSystem.getMixer(null).getLine(sourceInfo);
-            sourceDataLine.open(targetFormat, targetDataLine.getBufferSize());
-            sourceDataLine.start();
+            AudioPlayback.SampleListener listener = sampleListener;
+            if (listener != null)
+                listener.onSamples(mixed, 0, frames, position);
+            position += frames;
 
-            CompletableFuture.runAsync(() -> {
-                while (true) {
-                    if (targetDataLine.available() > 0) {
-                        byte[] buffer = new byte[targetDataLine.getBufferSize()];
-                        int bytesRead = targetDataLine.read(buffer, 0, buffer.length);
-                        if (bytesRead == -1) {
-                            break;
-                        }
-                        sourceDataLine.write(buffer, 0, bytesRead);
-                    }
-                }
-            });
-        } catch (LineUnavailableException ex) {
-            log.error("Line unavailable: {}", ex);
+            if (monitorLine != null)
+                monitorLine.write(data, 0, bytesRead);
         }
+        log.info("Capture stopped (frames: {}, overruns: {})", position, overruns);
+    }
+
+    private int getPeriodBytes() {
+        return periodFrames * format.getFrameSize();
     }
 
     public Mixer.Info getMixer() {
         return mixer;
     }
 
+    /**
+     * @param mixer
+     *         The mixer to capture from (see {@link AudioUtils#getRecordingDataLines()}), or {@code null} for the
+     *         system default
+     */
     public void setMixer(Mixer.Info mixer) {
         this.mixer = mixer;
     }
 
-    public void init() {
-        initDataLine();
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * @param format
+     *         A signed or unsigned PCM format to capture in, takes effect the next time the line is opened
+     */
+    public void setFormat(AudioFormat format) {
+        this.format = format;
+    }
+
+    public int getPeriodFrames() {
+        return periodFrames;
+    }
+
+    /**
+     * @param periodFrames
+     *         The number of frames read and analyzed at once, which bounds the capture latency
+     */
+    public void setPeriodFrames(int periodFrames) {
+        if (periodFrames <= 0)
+            throw new IllegalArgumentException("Period size must be greater than zero");
+        this.periodFrames = periodFrames;
+    }
+
+    public int getBufferPeriods() {
+        return bufferPeriods;
+    }
+
+    /**
+     * @param bufferPeriods
+     *         The size of the line buffer in periods
+     */
+    public void setBufferPeriods(int bufferPeriods) {
+        if (bufferPeriods < 2)
+            throw new IllegalArgumentException("The line buffer must hold at least two periods");
+        this.bufferPeriods = bufferPeriods;
+    }
+
+    public boolean isMonitor() {
+        return monitor;
+    }
+
+    /**
+     * @param monitor
+     *         {@code true} to play the captured audio back through the default playback mixer
+     */
+    public void setMonitor(boolean monitor) {
+        this.monitor = monitor;
+    }
+
+    public AudioPlayback.SampleListener getSampleListener() {
+        return sampleListener;
+    }
+
+    public void setSampleListener(AudioPlayback.SampleListener sampleListener) {
+        this.sampleListener = sampleListener;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return The number of frames captured since the capture was started
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return The number of times the line buffer was found full, i.e. input may have been lost
+     */
+    public long getOverruns() {
+        return overruns;
     }
 }
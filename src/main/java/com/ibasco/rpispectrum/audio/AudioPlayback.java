@@ -1,15 +1,26 @@
 package com.ibasco.rpispectrum.audio;
 
+import com.ibasco.rpispectrum.metrics.LatencyHistogram;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.tritonus.share.sampled.FloatSampleBuffer;
 
 import javax.sound.sampled.*;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.net.URL;
-import java.util.ArrayList;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Modified version of javazoom's BasicPlayer class
@@ -25,6 +36,14 @@ public class AudioPlayback implements Runnable, AutoCloseable {
 
     public static int EXTERNAL_BUFFER_SIZE = 1024 * 4;//4000 * 4;
 
+    public static final int DEFAULT_PCM_BUFFER_MILLIS = 500;
+
+    //How long a new playback thread waits for the one it replaces to finish
+    private static final long THREAD_JOIN_MILLIS = 2000;
+
+    //How long a stopped playback waits for the line writer before flushing the line again
+    private static final long WRITER_JOIN_MILLIS = 50;
+
     protected AudioInputStream m_encodedaudioInputStream;
 
     protected AudioInputStream m_audioInputStream;
@@ -47,25 +66,61 @@ public class AudioPlayback implements Runnable, AutoCloseable {
 
     protected Thread m_thread = null;
 
-    private AudioBuffer leftChannelBuffer;
-
-    private AudioBuffer rightChannelBuffer;
-
-    private AudioBuffer monoChannelBuffer;
-
-    private AudioBuffer mixedChannelBuffer;
+    protected Thread m_writerThread = null;
 
     private FloatSampleBuffer sampleBuffer;
 
+    private float[] mixedSamples;
+
     private int m_SampleCount = DEFAULT_SAMPLE_COUNT;
 
     private long threadSleep = -1;
 
-    private int m_status = UNKNOWN;
+    private final AtomicInteger status = new AtomicInteger(UNKNOWN);
+
+    //Signalled on every status transition, so paused threads continue as soon as the status changes
+    private final ReentrantLock statusLock = new ReentrantLock();
+
+    private final Condition statusChanged = statusLock.newCondition();
 
     private final Object mutext = new Object();
 
-    private ArrayList<StatusListener> statusListeners = new ArrayList<>();
+    private final PlayerEventDispatcher eventDispatcher = new PlayerEventDispatcher("CustomPlayer-Events");
+
+    private volatile SampleListener sampleListener;
+
+    private volatile NextTrackProvider nextTrackProvider;
+
+    private PcmCache pcmCache;
+
+    private Mp3FrameIndex frameIndex;
+
+    private File frameIndexSource;
+
+    private boolean saveFrameIndex;
+
+    private int pcmBufferMillis = DEFAULT_PCM_BUFFER_MILLIS;
+
+    private volatile PcmRingBuffer pcmBuffer;
+
+    private volatile long lineUnderruns;
+
+    private final LatencyHistogram decodeTime = new LatencyHistogram();
+
+    private final LatencyHistogram conversionTime = new LatencyHistogram();
+
+    private int mixedCount;
+
+    //Stream frame position of the next frame to be decoded
+    private long decodePosition;
+
+    //Stream frame position at which the current line started playing
+    private volatile long lineStartPosition;
+
+    //Stream frame position at which the current track starts, and at which the next track (already being decoded) starts
+    private volatile long trackStartPosition;
+
+    private volatile long nextTrackStartPosition = -1;
 
     /*
     Sample rate = number of samples / second
@@ -78,14 +133,45 @@ public class AudioPlayback implements Runnable, AutoCloseable {
     public void close() {
         log.info("Closing player");
         stopPlayback();
-        this.statusListeners.clear();
+        eventDispatcher.close();
     }
 
+    /**
+     * Receives player events on the event dispatcher thread (see {@link PlayerEventDispatcher}), never on the playback
+     * thread. A slow listener delays later events, not the audio.
+     */
     @FunctionalInterface
     public interface StatusListener {
         void onStatusChange(PlayerEvent event, int position, double value, Object... params);
     }
 
+    /**
+     * Receives the mixed down samples of every decoded chunk on the playback thread. Implementations must not block
+     * and must not hold on to the array.
+     */
+    @FunctionalInterface
+    public interface SampleListener {
+        /**
+         * @param framePosition
+         *         The position of the first sample within the stream, comparable to {@link AudioPlayback#getPlaybackPosition()}
+         */
+        void onSamples(float[] samples, int offset, int length, long framePosition);
+    }
+
+    /**
+     * Supplies the track that follows the current one, for gapless playback
+     */
+    @FunctionalInterface
+    public interface NextTrackProvider {
+        /**
+         * Called on the decoder thread when the current track has been decoded completely. The audio still buffered
+         * for the line keeps playing meanwhile, so the call may wait briefly for a track that is still being prepared.
+         *
+         * @return The next track (see {@link AudioPlayback#prepare(File)}), or {@code null} to end playback
+         */
+        PreparedTrack next();
+    }
+
     public static final int UNKNOWN = -1;
     public static final int PLAYING = 0;
     public static final int PAUSED = 1;
@@ -105,7 +191,8 @@ public class AudioPlayback implements Runnable, AutoCloseable {
         SEEKED(7),
         EOM(8),
         PAN(9),
-        GAIN(10);
+        GAIN(10),
+        TRACK_CHANGED(11);
 
         private int code;
 
@@ -127,15 +214,122 @@ public class AudioPlayback implements Runnable, AutoCloseable {
     }
 
     public void addListener(StatusListener statusListener) {
-        statusListeners.add(statusListener);
+        eventDispatcher.addListener(statusListener);
     }
 
     public void removeListener(StatusListener statusListener) {
-        statusListeners.remove(statusListener);
+        eventDispatcher.removeListener(statusListener);
     }
 
     public boolean hasListener(StatusListener statusListener) {
-        return statusListeners.contains(statusListener);
+        return eventDispatcher.hasListener(statusListener);
+    }
+
+    /**
+     * @return The dispatcher delivering events to the status listeners, e.g. to configure its queue
+     */
+    public PlayerEventDispatcher getEventDispatcher() {
+        return eventDispatcher;
+    }
+
+    public SampleListener getSampleListener() {
+        return sampleListener;
+    }
+
+    public void setSampleListener(SampleListener sampleListener) {
+        this.sampleListener = sampleListener;
+    }
+
+    public NextTrackProvider getNextTrackProvider() {
+        return nextTrackProvider;
+    }
+
+    /**
+     * @param nextTrackProvider
+     *         Supplies the track decoding continues with at the end of the current one, or {@code null} to stop at
+     *         the end of the current track
+     */
+    public void setNextTrackProvider(NextTrackProvider nextTrackProvider) {
+        this.nextTrackProvider = nextTrackProvider;
+    }
+
+    public PcmCache getPcmCache() {
+        return pcmCache;
+    }
+
+    /**
+     * @param pcmCache
+     *         The cache used to store and replay decoded PCM data of file sources, or {@code null} to always decode
+     */
+    public void setPcmCache(PcmCache pcmCache) {
+        this.pcmCache = pcmCache;
+    }
+
+    public boolean isSaveFrameIndex() {
+        return saveFrameIndex;
+    }
+
+    /**
+     * @param saveFrameIndex
+     *         {@code true} to save the seek index of MP3 files next to them, so it does not have to be rebuilt the
+     *         next time the file is opened
+     */
+    public void setSaveFrameIndex(boolean saveFrameIndex) {
+        this.saveFrameIndex = saveFrameIndex;
+    }
+
+    public int getPcmBufferMillis() {
+        return pcmBufferMillis;
+    }
+
+    /**
+     * @param pcmBufferMillis
+     *         The amount of decoded audio buffered ahead of the line, takes effect on the next call to {@link #play()}
+     */
+    public void setPcmBufferMillis(int pcmBufferMillis) {
+        if (pcmBufferMillis <= 0)
+            throw new IllegalArgumentException("PCM buffer size must be greater than zero");
+        this.pcmBufferMillis = pcmBufferMillis;
+    }
+
+    /**
+     * @return The read-ahead buffer between the decoder and the line writer (for fill level and underrun
+     * statistics), or {@code null} if playback has not been started yet
+     */
+    public PcmRingBuffer getPcmBuffer() {
+        return pcmBuffer;
+    }
+
+    /**
+     * @return The number of times the line had played all of its data before the writer could supply more
+     */
+    public long getLineUnderruns() {
+        return lineUnderruns;
+    }
+
+    /**
+     * @return The time spent decoding a chunk of {@link #EXTERNAL_BUFFER_SIZE} bytes
+     */
+    public LatencyHistogram getDecodeTime() {
+        return decodeTime;
+    }
+
+    /**
+     * @return The time spent converting a decoded chunk to float samples and publishing the channel buffers
+     */
+    public LatencyHistogram getConversionTime() {
+        return conversionTime;
+    }
+
+    /**
+     * @return The fill ratio (0.0 - 1.0) of the line buffer
+     */
+    public float getLineFillRatio() {
+        SourceDataLine line = m_line;
+        if (line == null || !line.isOpen())
+            return 0;
+        int size = line.getBufferSize();
+        return size <= 0 ? 0 : 1 - (float) line.available() / size;
     }
 
     public String getMixerName() {
@@ -223,14 +417,12 @@ public class AudioPlayback implements Runnable, AutoCloseable {
     }
 
     private void notify(PlayerEvent event, int position, double value, Object... params) {
-        if (statusListeners.isEmpty())
-            return;
-        statusListeners.forEach(l -> l.onStatusChange(event, position, value, params));
+        eventDispatcher.post(event, position, value, params);
     }
 
     protected void reset() {
         log.info("reset(): Resetting audio properties");
-        m_status = UNKNOWN;
+        setStatus(UNKNOWN);
         if (m_audioInputStream != null) {
             synchronized (mutext) {
                 closeStream();
@@ -249,31 +441,20 @@ public class AudioPlayback implements Runnable, AutoCloseable {
         m_panControl = null;
 
         totalBytes = 0;
+        elapsed = 0;
+        decodePosition = 0;
+        trackStartPosition = 0;
+        nextTrackStartPosition = -1;
         sampleBuffer = null;
-        leftChannelBuffer = null;
-        rightChannelBuffer = null;
-        monoChannelBuffer = null;
-        mixedChannelBuffer = null;
+        mixedSamples = null;
     }
 
     public final AudioFormat getAudioFormat() {
         return m_audioInputStream.getFormat();
     }
 
-    public final AudioBuffer getLeftChannel() {
-        return leftChannelBuffer;
-    }
-
-    public final AudioBuffer getRightChannel() {
-        return rightChannelBuffer;
-    }
-
-    public final AudioBuffer getMonoChannel() {
-        return monoChannelBuffer;
-    }
-
-    public final AudioBuffer getMixedChannel() {
-        return mixedChannelBuffer;
+    final FloatSampleBuffer getSampleBuffer() {
+        return sampleBuffer;
     }
 
     public int getSampleCount() {
@@ -332,12 +513,11 @@ public class AudioPlayback implements Runnable, AutoCloseable {
             }
 
             log.info("Initializing sample and channel buffers");
-            initSampleBuffer(m_audioInputStream.getFormat(), getSampleCount());
-            initAudioBuffers(sampleBuffer.getSampleCount());
+            initBuffers(m_audioInputStream.getFormat());
 
             createLine();
 
-            m_status = OPENED;
+            setStatus(OPENED);
             notify(PlayerEvent.OPENED, getEncodedStreamPosition(), -1);
         } catch (LineUnavailableException | UnsupportedAudioFileException | IOException e) {
             throw new AudioPlayerException(e);
@@ -349,11 +529,7 @@ public class AudioPlayback implements Runnable, AutoCloseable {
         if (m_line == null) {
             AudioFormat sourceFormat = m_audioInputStream.getFormat();
             log.info("Create Line : Source format : " + sourceFormat.toString());
-            int nSampleSizeInBits = sourceFormat.getSampleSizeInBits();
-            if (nSampleSizeInBits <= 0) nSampleSizeInBits = 16;
-            if ((sourceFormat.getEncoding() == AudioFormat.Encoding.ULAW) || (sourceFormat.getEncoding() == AudioFormat.Encoding.ALAW)) nSampleSizeInBits = 16;
-            if (nSampleSizeInBits != 8) nSampleSizeInBits = 16;
-            AudioFormat targetFormat = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, sourceFormat.getSampleRate(), nSampleSizeInBits, sourceFormat.getChannels(), sourceFormat.getChannels() * (nSampleSizeInBits / 8), sourceFormat.getSampleRate(), false);
+            AudioFormat targetFormat = AudioUtils.getPcmFormat(sourceFormat);
 
             log.info("Create Line : Target format: " + targetFormat);
             // Keep a reference on encoded stream to progress notification.
@@ -364,22 +540,114 @@ public class AudioPlayback implements Runnable, AutoCloseable {
             } catch (IOException e) {
                 log.error("Cannot get m_encodedaudioInputStream.available()", e);
             }
-            // Create decoded stream.
-            m_audioInputStream = AudioSystem.getAudioInputStream(targetFormat, m_audioInputStream);
-            AudioFormat audioFormat = m_audioInputStream.getFormat();
-            DataLine.Info info = new DataLine.Info(SourceDataLine.class, audioFormat, AudioSystem.NOT_SPECIFIED);
-            Mixer mixer = getMixer(m_mixerName);
-            if (mixer != null) {
-                log.info("Mixer : " + mixer.getMixerInfo().toString());
-                m_line = (SourceDataLine) mixer.getLine(info);
+            // Create decoded stream (replayed from the PCM cache if available)
+            File file = m_dataSource instanceof File ? (File) m_dataSource : null;
+            AudioInputStream cachedStream = openCachedStream(file, targetFormat);
+            if (cachedStream != null) {
+                closeEncodedStream();
+                m_audioInputStream = cachedStream;
+            } else {
+                m_audioInputStream = AudioSystem.getAudioInputStream(targetFormat, m_audioInputStream);
+                m_audioInputStream = recordCachedStream(file, m_audioInputStream);
+            }
+            m_line = getLine(m_audioInputStream.getFormat());
+        }
+    }
+
+    private SourceDataLine getLine(AudioFormat audioFormat) throws LineUnavailableException {
+        SourceDataLine line;
+        DataLine.Info info = new DataLine.Info(SourceDataLine.class, audioFormat, AudioSystem.NOT_SPECIFIED);
+        Mixer mixer = getMixer(m_mixerName);
+        if (mixer != null) {
+            log.info("Mixer : " + mixer.getMixerInfo().toString());
+            line = (SourceDataLine) mixer.getLine(info);
+        } else {
+            line = (SourceDataLine) AudioSystem.getLine(info);
+            m_mixerName = null;
+        }
+        log.info("Line : " + line.toString());
+        log.debug("Line Info : " + line.getLineInfo().toString());
+        log.debug("Line AudioFormat: " + line.getFormat().toString());
+        return line;
+    }
+
+    private AudioInputStream openCachedStream(File file, AudioFormat targetFormat) {
+        if (pcmCache == null || file == null)
+            return null;
+        try {
+            return pcmCache.open(file, targetFormat);
+        } catch (IOException e) {
+            log.warn("Unable to read from PCM cache, decoding instead", e);
+            return null;
+        }
+    }
+
+    private AudioInputStream recordCachedStream(File file, AudioInputStream decodedStream) {
+        if (pcmCache == null || file == null)
+            return decodedStream;
+        try {
+            return pcmCache.record(file, decodedStream);
+        } catch (IOException e) {
+            log.warn("Unable to record to PCM cache", e);
+            return decodedStream;
+        }
+    }
+
+    /**
+     * Opens a file for gapless playback after the current track and decodes its first {@link #getPcmBufferMillis()}
+     * milliseconds, so decoding can continue with it without a gap. May be called from any thread.
+     *
+     * @return The prepared track, to be passed to the player by a {@link NextTrackProvider} or closed
+     */
+    public PreparedTrack prepare(File file) throws AudioPlayerException {
+        AudioInputStream encoded = null;
+        AudioInputStream decoded = null;
+        try {
+            encoded = AudioSystem.getAudioInputStream(file);
+            AudioFileFormat fileFormat = AudioSystem.getAudioFileFormat(file);
+            AudioFormat targetFormat = AudioUtils.getPcmFormat(encoded.getFormat());
+            int length = encoded.available();
+            decoded = openCachedStream(file, targetFormat);
+            if (decoded != null) {
+                encoded.close();
+                encoded = null;
+                length = -1;
             } else {
-                m_line = (SourceDataLine) AudioSystem.getLine(info);
-                m_mixerName = null;
+                decoded = recordCachedStream(file, AudioSystem.getAudioInputStream(targetFormat, encoded));
             }
-            log.info("Line : " + m_line.toString());
-            log.debug("Line Info : " + m_line.getLineInfo().toString());
-            log.debug("Line AudioFormat: " + m_line.getFormat().toString());
+
+            int frameSize = targetFormat.getFrameSize();
+            long bytes = (long) (targetFormat.getFrameRate() * frameSize * pcmBufferMillis / 1000);
+            byte[] head = new byte[(int) Math.min(Integer.MAX_VALUE / 2, bytes - bytes % frameSize)];
+            int count = 0;
+            int bytesRead;
+            while (count < head.length && (bytesRead = decoded.read(head, count, head.length - count)) != -1)
+                count += bytesRead;
+            log.info("Prepared {} ({} bytes decoded ahead)", file, count);
+            InputStream stream = new SequenceInputStream(new ByteArrayInputStream(head, 0, count), decoded);
+            return new PreparedTrack(file, fileFormat, encoded, length, new AudioInputStream(stream, targetFormat, AudioSystem.NOT_SPECIFIED));
+        } catch (UnsupportedAudioFileException | IOException e) {
+            try {
+                if (decoded != null)
+                    decoded.close();
+                if (encoded != null)
+                    encoded.close();
+            } catch (IOException ex) {
+                log.debug("Cannot close stream", ex);
+            }
+            throw new AudioPlayerException(e);
+        }
+    }
+
+    private void closeEncodedStream() {
+        try {
+            if (m_encodedaudioInputStream != null)
+                m_encodedaudioInputStream.close();
+        } catch (IOException e) {
+            log.info("Cannot close encoded stream", e);
         }
+        m_encodedaudioInputStream = null;
+        encodedLength = -1;
     }
 
     protected void openLine() throws LineUnavailableException {
@@ -430,6 +698,16 @@ public class AudioPlayback implements Runnable, AutoCloseable {
         return skipBytes(bytes);
     }
 
+    /**
+     * Seeks to the specified time
+     *
+     * @return The number of decoded bytes skipped
+     */
+    public long seek(double seconds) throws AudioPlayerException {
+        AudioFormat format = getAudioFormat();
+        return skipBytes((long) (seconds * format.getFrameRate()) * format.getFrameSize());
+    }
+
     public void stop() {
         stopPlayback();
     }
@@ -446,13 +724,21 @@ public class AudioPlayback implements Runnable, AutoCloseable {
         long totalSkipped = 0;
         if (m_dataSource instanceof File) {
             log.info("Bytes to skip : " + bytes);
-            int previousStatus = m_status;
-            m_status = SEEKING;
+            int previousStatus;
+            do {
+                previousStatus = status.get();
+                if (previousStatus == SEEKING)
+                    throw new AudioPlayerException("A seek is already in progress");
+            } while (!transition(previousStatus, SEEKING));
+            abortPcmBuffer();
             long skipped = 0;
             try {
                 synchronized (mutext) {
                     initAudioInputStream();
-                    if (m_audioInputStream != null) {
+                    Mp3FrameIndex index = getFrameIndex();
+                    if (m_audioInputStream != null && (index != null || m_encodedaudioInputStream == null)) {
+                        totalSkipped = skipExact(index, bytes);
+                    } else if (m_audioInputStream != null) {
                         // Loop until bytes are really skipped.
                         while (totalSkipped < (bytes - SKIP_INACCURACY_SIZE)) {
                             skipped = m_audioInputStream.skip(bytes - totalSkipped);
@@ -463,7 +749,7 @@ public class AudioPlayback implements Runnable, AutoCloseable {
                         }
                     }
                 }
-                m_status = OPENED;
+                setStatus(OPENED);
                 if (previousStatus == PLAYING) startPlayback();
                 else if (previousStatus == PAUSED) {
                     startPlayback();
@@ -476,51 +762,131 @@ public class AudioPlayback implements Runnable, AutoCloseable {
         return totalSkipped;
     }
 
+    /**
+     * Positions the freshly opened decoded stream at the specified byte position. Streams replayed from the PCM cache
+     * are skipped directly, otherwise decoding restarts at the frame given by the seek index and only the samples
+     * before the target position within that frame range are decoded and discarded.
+     */
+    private long skipExact(Mp3FrameIndex index, long bytes) throws IOException, AudioPlayerException {
+        AudioFormat format = m_audioInputStream.getFormat();
+        int frameSize = format.getFrameSize();
+        long target = Math.max(0, bytes / frameSize);
+        long position = 0;
+        if (m_encodedaudioInputStream != null) {
+            target = Math.min(target, index.getSampleCount());
+            int frame = index.getFrame(target);
+            int restart = index.getRestartFrame(frame);
+            int length = encodedLength;
+            closeStream();
+            FileChannel channel = FileChannel.open(((File) m_dataSource).toPath(), StandardOpenOption.READ);
+            channel.position(index.getOffset(restart));
+            try {
+                m_encodedaudioInputStream = AudioSystem.getAudioInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            } catch (UnsupportedAudioFileException e) {
+                channel.close();
+                throw new AudioPlayerException(e);
+            }
+            //Keep the length of the whole file so the encoded stream position stays absolute
+            encodedLength = length;
+            m_audioInputStream = AudioSystem.getAudioInputStream(format, m_encodedaudioInputStream);
+            //Frames lacking their bit reservoir decode to nothing, so the output starts at a later frame
+            position = index.getRestartSample(frame) * frameSize;
+            log.info("Restarting decode at frame {} (offset {}) for sample {}", restart, index.getOffset(restart), target);
+        }
+        long remaining = target * frameSize - position;
+        while (remaining > 0) {
+            long skipped = m_audioInputStream.skip(remaining);
+            if (skipped <= 0)
+                break;
+            remaining -= skipped;
+        }
+        long skipped = target * frameSize - remaining;
+        totalBytes = skipped;
+        decodePosition = skipped / frameSize;
+        elapsed = (double) decodePosition / format.getFrameRate();
+        return skipped;
+    }
+
+    /**
+     * @return The seek index of the current MP3 file source, or {@code null} if the source is not an MP3 file
+     */
+    private Mp3FrameIndex getFrameIndex() {
+        if (!(m_dataSource instanceof File) || m_audioFileFormat == null || !m_audioFileFormat.getFormat().getEncoding().toString().startsWith("MPEG"))
+            return null;
+        File file = (File) m_dataSource;
+        if (frameIndex == null || !frameIndex.isValidFor(file) || !file.equals(frameIndexSource)) {
+            try {
+                frameIndex = Mp3FrameIndex.forFile(file, saveFrameIndex);
+                frameIndexSource = file;
+            } catch (IOException e) {
+                log.warn("Unable to index {}, falling back to sequential skipping", file, e);
+                frameIndex = null;
+                frameIndexSource = null;
+            }
+        }
+        return frameIndex;
+    }
+
     protected void startPlayback() throws AudioPlayerException {
-        if (m_status == STOPPED) initAudioInputStream();
-        if (m_status == OPENED) {
+        int current = status.get();
+        if (current != STOPPED && current != OPENED)
+            return;
+        awaitPlaybackThread();
+        if (status.get() == STOPPED) initAudioInputStream();
+        if (status.get() == OPENED) {
             log.info("startPlayback called");
-            if (!(m_thread == null || !m_thread.isAlive())) {
-                log.info("WARNING: old thread still running!!");
-                int cnt = 0;
-                while (m_status != OPENED) {
-                    try {
-                        if (m_thread != null) {
-                            log.info("Waiting ... " + cnt);
-                            cnt++;
-                            Thread.sleep(1000);
-                            if (cnt > 2) {
-                                m_thread.interrupt();
-                            }
-                        }
-                    } catch (InterruptedException e) {
-                        throw new AudioPlayerException("Thread interrupted", e);
-                    }
-                }
-            }
             // Open SourceDataLine.
             try {
                 initLine();
             } catch (LineUnavailableException e) {
                 throw new AudioPlayerException("Unable to initialize line", e);
             }
+            initPcmBuffer();
+            //The playback thread only runs while playing or paused, so the status has to change before it starts
+            boolean playing = false;
+            if (m_line != null) {
+                lineStartPosition = decodePosition - m_line.getLongFramePosition();
+                m_line.start();
+                playing = transition(OPENED, PLAYING);
+            }
             log.info("Creating new thread");
             m_thread = new Thread(this, "CustomPlayer");
             m_thread.start();
-            if (m_line != null) {
-                m_line.start();
-                m_status = PLAYING;
+            if (playing)
                 notify(PlayerEvent.PLAYING, getEncodedStreamPosition(), -1);
+        }
+    }
+
+    /**
+     * Waits for the playback thread of the previous playback to finish, so it can not touch the line or the status of
+     * the playback replacing it. The thread has already left its decoding loop (the status is neither playing nor
+     * paused) and is only releasing its resources.
+     */
+    private void awaitPlaybackThread() throws AudioPlayerException {
+        Thread thread = m_thread;
+        if (thread == null || !thread.isAlive() || thread == Thread.currentThread())
+            return;
+        log.debug("Waiting for previous playback thread to finish");
+        try {
+            thread.join(THREAD_JOIN_MILLIS);
+            if (thread.isAlive()) {
+                log.warn("Previous playback thread did not finish within {} ms, interrupting it", THREAD_JOIN_MILLIS);
+                thread.interrupt();
+                thread.join(THREAD_JOIN_MILLIS);
+                if (thread.isAlive())
+                    throw new AudioPlayerException("Previous playback thread did not terminate");
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AudioPlayerException("Thread interrupted", e);
         }
     }
 
     protected void pausePlayback() {
         if (m_line != null) {
-            if (m_status == PLAYING) {
-                m_line.flush();
+            if (transition(PLAYING, PAUSED)) {
+                //The line keeps its data, so playback resumes exactly where it stopped and the position stays valid
                 m_line.stop();
-                m_status = PAUSED;
                 notify(PlayerEvent.PAUSED, getEncodedStreamPosition(), -1);
                 log.info("pausePlayback() completed");
             }
@@ -528,12 +894,12 @@ public class AudioPlayback implements Runnable, AutoCloseable {
     }
 
     protected void stopPlayback() {
-        if ((m_status == PLAYING) || (m_status == PAUSED)) {
+        if (transition(PLAYING, STOPPED) || transition(PAUSED, STOPPED)) {
             if (m_line != null) {
                 m_line.flush();
                 m_line.stop();
             }
-            m_status = STOPPED;
+            abortPcmBuffer();
             notify(PlayerEvent.STOPPED, getEncodedStreamPosition(), -1);
             synchronized (mutext) {
                 closeStream();
@@ -544,33 +910,93 @@ public class AudioPlayback implements Runnable, AutoCloseable {
 
     protected void resumePlayback() {
         if (m_line != null) {
-            if (m_status == PAUSED) {
+            //Only the caller that wins the transition starts the line, a concurrent stop or seek keeps it stopped
+            if (transition(PAUSED, PLAYING)) {
                 m_line.start();
-                m_status = PLAYING;
                 notify(PlayerEvent.RESUMED, getEncodedStreamPosition(), -1);
                 log.info("resumePlayback() completed");
             }
         }
     }
 
-    public Mixer getMixer(String name) {
-        Mixer mixer = null;
-        if (name != null) {
-            Mixer.Info[] mInfos = AudioSystem.getMixerInfo();
-            if (mInfos != null) {
-                for (Mixer.Info mInfo : mInfos) {
-                    if (mInfo.getName().equals(name)) {
-                        mixer = AudioSystem.getMixer(mInfo);
-                        break;
-                    }
-                }
-            }
+    private void initPcmBuffer() {
+        AudioFormat format = m_audioInputStream.getFormat();
+        int frameSize = format.getFrameSize();
+        long bytes = (long) (format.getFrameRate() * frameSize * pcmBufferMillis / 1000);
+        int capacity = (int) Math.max(lineBufferSize, Math.min(Integer.MAX_VALUE / 2, bytes));
+        capacity -= capacity % frameSize;
+        PcmRingBuffer buffer = pcmBuffer;
+        if (buffer == null || buffer.getCapacity() != capacity || buffer.getFrameSize() != frameSize) {
+            log.info("Creating PCM read-ahead buffer of {} bytes ({} ms)", capacity, pcmBufferMillis);
+            pcmBuffer = new PcmRingBuffer(capacity, frameSize);
+        } else {
+            buffer.clear();
         }
-        return mixer;
+        lineUnderruns = 0;
+    }
+
+    private void abortPcmBuffer() {
+        PcmRingBuffer buffer = pcmBuffer;
+        if (buffer != null)
+            buffer.abort();
+        unpark(m_thread);
+        unpark(m_writerThread);
+    }
+
+    private static void unpark(Thread thread) {
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    /**
+     * @return The mixer with the specified name from the {@link MixerRegistry}, or {@code null} if there is none
+     */
+    public Mixer getMixer(String name) {
+        return MixerRegistry.getDefault().getMixer(name);
     }
 
     public int getStatus() {
-        return m_status;
+        return status.get();
+    }
+
+    private void setStatus(int newStatus) {
+        status.set(newStatus);
+        signalStatusChange();
+    }
+
+    /**
+     * Changes the status only if it is the expected one, so concurrent transitions (e.g. a stop while the end of the
+     * media is reached) are applied exactly once
+     *
+     * @return {@code true} if the status was changed
+     */
+    private boolean transition(int expected, int newStatus) {
+        if (!status.compareAndSet(expected, newStatus))
+            return false;
+        signalStatusChange();
+        return true;
+    }
+
+    private void signalStatusChange() {
+        statusLock.lock();
+        try {
+            statusChanged.signalAll();
+        } finally {
+            statusLock.unlock();
+        }
+    }
+
+    /**
+     * Blocks the calling thread while playback is paused, without polling
+     */
+    private void awaitWhilePaused() throws InterruptedException {
+        statusLock.lock();
+        try {
+            while (status.get() == PAUSED)
+                statusChanged.await();
+        } finally {
+            statusLock.unlock();
+        }
     }
 
     protected int getEncodedStreamPosition() {
@@ -587,109 +1013,157 @@ public class AudioPlayback implements Runnable, AutoCloseable {
         return nEncodedBytes;
     }
 
-    private void initSampleBuffer(AudioFormat audioFormat, int sampleCount) {
+    void initSampleBuffer(AudioFormat audioFormat, int sampleCount) {
         if (sampleBuffer == null || (sampleBuffer.getSampleCount() < sampleCount)) {
             log.info("Creating float sample buffer with target format: {}, Sample Count: {}", audioFormat, sampleCount);
             sampleBuffer = new FloatSampleBuffer(audioFormat.getChannels(), sampleCount, audioFormat.getSampleRate());
         }
     }
 
-    private void initAudioBuffers(int size) {
-        if (leftChannelBuffer == null)
-            leftChannelBuffer = new AudioBuffer(size);
-        if (rightChannelBuffer == null)
-            rightChannelBuffer = new AudioBuffer(size);
-        if (monoChannelBuffer == null)
-            monoChannelBuffer = new AudioBuffer(size);
-        if (mixedChannelBuffer == null)
-            mixedChannelBuffer = new AudioBuffer(size);
+    void initAudioBuffers(int size) {
+        if (mixedSamples == null || mixedSamples.length != size)
+            mixedSamples = new float[size];
+    }
+
+    /**
+     * Sizes the sample and mix buffers for the chunks read from the decoder, whose number of frames depends on the
+     * frame size of the format
+     */
+    void initBuffers(AudioFormat format) {
+        initSampleBuffer(format, Math.max(getSampleCount(), EXTERNAL_BUFFER_SIZE / format.getFrameSize()));
+        initAudioBuffers(sampleBuffer.getSampleCount());
     }
 
-    private void applySampleBuffer(AudioFormat format, byte[] audioData) {
-        int frameCount = sampleBuffer.getByteArrayBufferSize(format) / format.getFrameSize();
+    /**
+     * Converts the specified number of bytes to float samples, the sample count of the buffer is adjusted to the
+     * number of frames they hold (without reallocating while they fit)
+     */
+    void applySampleBuffer(AudioFormat format, byte[] audioData, int length) {
+        int frameCount = length / format.getFrameSize();
+        sampleBuffer.setSampleCount(frameCount, false);
         sampleBuffer.setSamplesFromBytes(audioData, 0, format, 0, frameCount);
     }
 
-    private void applyChannelBuffers(FloatSampleBuffer sampleBuffer) {
+    void applyChannelBuffers(FloatSampleBuffer sampleBuffer) {
         if (sampleBuffer == null)
             throw new IllegalStateException("Sample buffer cannot be null");
 
-        //Extract audio samples
+        //Extract audio samples (FloatSampleBuffer de-interleaves in place into its own channel arrays)
+        int count = Math.min(sampleBuffer.getSampleCount(), mixedSamples.length);
         float[] left = sampleBuffer.getChannel(0);
-        float[] right = sampleBuffer.getChannel(1);
-        float[] mono = new float[sampleBuffer.getSampleCount()];
-        float[] mixed = new float[sampleBuffer.getSampleCount()];
+        float[] right = sampleBuffer.getChannelCount() > 1 ? sampleBuffer.getChannel(1) : left;
+        float[] mixed = mixedSamples;
 
-        for (int i = 0; i < mixed.length; i++) {
+        for (int i = 0; i < count; i++)
             mixed[i] = left[i] + right[i];
-        }
-        for (int i = 0; i < mono.length; i++) {
-            if (sampleBuffer.getChannelCount() == 2)
-                mono[i] = (left[i] + right[i]) / 2.0f;
-            else
-                mono[i] = left[i];
-        }
+        mixedCount = count;
+    }
 
-        //Store left, right and mixed to audio buffer
-        leftChannelBuffer.set(left);
-        rightChannelBuffer.set(right);
-        monoChannelBuffer.set(mono);
-        mixedChannelBuffer.set(mixed);
+    /**
+     * Passes the samples mixed by the last call to {@link #applyChannelBuffers(FloatSampleBuffer)} to the sample
+     * listener
+     */
+    void fireSamples(long framePosition, int frameCount) {
+        SampleListener listener = sampleListener;
+        if (listener != null)
+            listener.onSamples(mixedSamples, 0, Math.min(mixedCount, frameCount), framePosition);
+    }
 
+    /**
+     * Converts a decoded chunk, mixes it down and passes all of its frames to the sample listener
+     */
+    void processChunk(AudioFormat format, byte[] audioData, int length) {
+        long time = System.nanoTime();
+        applySampleBuffer(format, audioData, length);
+        applyChannelBuffers(sampleBuffer);
+        conversionTime.recordSince(time);
+
+        int frames = length / format.getFrameSize();
+        fireSamples(decodePosition, frames);
+        decodePosition += frames;
     }
 
-    private long totalBytes = 0;
+    private volatile long totalBytes = 0;
 
     private volatile double elapsed;
 
+    /**
+     * @return The playback time in seconds of the frame currently being played by the line, relative to the start of
+     * the track it belongs to
+     */
     public double getElapsed() {
+        SourceDataLine line = m_line;
+        if (line != null && line.isOpen()) {
+            long position = lineStartPosition + line.getLongFramePosition();
+            long next = nextTrackStartPosition;
+            long start = next >= 0 && position >= next ? next : trackStartPosition;
+            return (position - start) / (double) line.getFormat().getFrameRate();
+        }
         return elapsed;
     }
 
+    /**
+     * @return The stream frame position currently being played by the line (not including the latency of the audio
+     * device after the line), or -1 if the line is not open
+     */
+    public long getPlaybackPosition() {
+        SourceDataLine line = m_line;
+        if (line == null || !line.isOpen())
+            return -1;
+        return lineStartPosition + line.getLongFramePosition();
+    }
+
+    /**
+     * Decodes the stream and feeds the PCM read-ahead buffer. The line is fed from that buffer by a separate writer
+     * thread, so a late chunk from the decoder or the analysis does not immediately drain the line.
+     * <p>
+     * At the end of the stream decoding continues with the track supplied by the {@link NextTrackProvider}, if any.
+     * The stream frame positions continue across tracks, so neither the line nor the analysis notice the change.
+     */
     public void run() {
         log.info("Thread Running");
         int nBytesRead = 1;
         byte[] abData = new byte[EXTERNAL_BUFFER_SIZE];
-        int avgSize = 30;
+        PcmRingBuffer buffer = pcmBuffer;
+
+        startWriter(buffer);
 
         // Lock stream while playing.
         synchronized (mutext) {
             // Main play/pause loop.
-            while ((nBytesRead != -1) && (m_status != STOPPED) && (m_status != SEEKING) && (m_status != UNKNOWN)) {
-                if (m_status == PLAYING) {
-                    // Play.
+            int current;
+            while ((nBytesRead != -1) && ((current = status.get()) == PLAYING || current == PAUSED)) {
+                if (current == PLAYING) {
+                    // Decode.
                     try {
+                        long time = System.nanoTime();
                         nBytesRead = m_audioInputStream.read(abData, 0, abData.length);
+                        if (nBytesRead == -1) {
+                            PcmRingBuffer next = nextTrack(buffer);
+                            if (next == null)
+                                break;
+                            buffer = next;
+                            nBytesRead = 0;
+                            continue;
+                        }
 
                         if (nBytesRead >= 0) {
-                            //byte[] pcmData = new byte[nBytesRead];
-                            //System.arraycopy(abData, 0, pcmData, 0, nBytesRead);
-                            totalBytes += nBytesRead;
-
+                            decodeTime.recordSince(time);
                             AudioFormat format = m_audioInputStream.getFormat();
 
-                            //Store raw audio data to FloatSampleBuffer
-                            applySampleBuffer(format, abData);
+                            //Convert, mix down and analyze the chunk
+                            processChunk(format, abData, nBytesRead);
 
-                            //Extract audio samples from the available channels and apply FFT
-                            applyChannelBuffers(sampleBuffer);
-
-                            if (m_line.available() > m_line.getBufferSize())
-                                log.debug("Buffer underrun : " + m_line.available() + "/" + m_line.getBufferSize());
-
-                            long framesRead = totalBytes / format.getFrameSize();
-                            long totalFrames = m_audioFileFormat.getFrameLength();
-
-                            double totalSeconds = (double) totalFrames / format.getSampleRate();
-                            this.elapsed = ((double) framesRead / (double) totalFrames) * totalSeconds;
-
-                            //log.debug("total seconds: {}, elapsed: {}, frames read: {}, frame size: {}, frame length: {}", totalSeconds, elapsedSeconds, framesRead, format.getFrameSize(), totalFrames);
-                            m_line.write(abData, 0, nBytesRead);
+                            if (!buffer.write(abData, 0, nBytesRead))
+                                break;
                         }
                     } catch (IOException e) {
                         log.error("Thread cannot run()", e);
-                        m_status = STOPPED;
-                        notify(PlayerEvent.STOPPED, getEncodedStreamPosition(), -1);
+                        if (transition(PLAYING, STOPPED))
+                            notify(PlayerEvent.STOPPED, getEncodedStreamPosition(), -1);
+                    } catch (InterruptedException e) {
+                        log.error("Decoder thread interrupted", e);
+                        break;
                     }
                     // Nice CPU usage.
                     if (threadSleep > 0) {
@@ -700,17 +1174,36 @@ public class AudioPlayback implements Runnable, AutoCloseable {
                         }
                     }
                 } else {
-                    // Pause
+                    // Pause until the next transition
                     try {
-                        Thread.sleep(1000);
+                        awaitWhilePaused();
                     } catch (InterruptedException e) {
-                        log.error("Thread cannot sleep(1000)", e);
+                        log.error("Decoder thread interrupted", e);
+                        break;
                     }
                 }
             }
+
+            // Let the writer play out the remaining data, or release it right away when stopped
+            try {
+                if (nBytesRead == -1) {
+                    buffer.close();
+                    m_writerThread.join();
+                } else {
+                    buffer.abort();
+                    joinAbortedWriter();
+                    //Only discard what is queued once the writer can no longer add to it
+                    if (m_line != null)
+                        m_line.flush();
+                }
+            } catch (InterruptedException e) {
+                log.error("Interrupted while waiting for the line writer", e);
+            }
+
             // Free audio resources.
             if (m_line != null) {
                 m_line.drain();
+                elapsed = getElapsed();
                 m_line.stop();
                 m_line.close();
                 m_line = null;
@@ -723,9 +1216,125 @@ public class AudioPlayback implements Runnable, AutoCloseable {
             // Close stream.
             closeStream();
         }
-        m_status = STOPPED;
-        notify(PlayerEvent.STOPPED, getEncodedStreamPosition(), -1);
-        log.info("Thread completed");
+        //A stop or seek has already moved on to its own status, which must not be overwritten
+        if (transition(PLAYING, STOPPED) || transition(PAUSED, STOPPED))
+            notify(PlayerEvent.STOPPED, getEncodedStreamPosition(), -1);
+        log.info("Thread completed (PCM buffer underruns: {}, lowest level: {}/{} bytes, line underruns: {})", buffer.getUnderruns(), buffer.getLowestLevel(), buffer.getCapacity(), lineUnderruns);
+    }
+
+    /**
+     * Waits for the writer to notice that the PCM buffer was aborted. A write to a stopped line blocks until there is
+     * room in it, so the line is flushed whenever the writer does not finish in time.
+     */
+    private void joinAbortedWriter() throws InterruptedException {
+        while (true) {
+            m_writerThread.join(WRITER_JOIN_MILLIS);
+            if (!m_writerThread.isAlive())
+                return;
+            SourceDataLine line = m_line;
+            if (line != null)
+                line.flush();
+        }
+    }
+
+    private void startWriter(PcmRingBuffer buffer) {
+        m_writerThread = new Thread(() -> writeLine(buffer), "CustomPlayer-Writer");
+        m_writerThread.setPriority(Thread.MAX_PRIORITY);
+        m_writerThread.start();
+    }
+
+    /**
+     * Continues decoding with the next track of the {@link NextTrackProvider}. If it has the format of the current
+     * track, its samples are simply appended to the PCM buffer and the line keeps playing. Otherwise the current
+     * track is played out and the line is reopened in the new format.
+     *
+     * @return The PCM buffer to continue with, or {@code null} to end playback (there is no next track or the line
+     * could not be reopened)
+     */
+    private PcmRingBuffer nextTrack(PcmRingBuffer buffer) throws InterruptedException {
+        NextTrackProvider provider = nextTrackProvider;
+        PreparedTrack track = provider == null ? null : provider.next();
+        if (track == null)
+            return null;
+        AudioFormat format = m_audioInputStream.getFormat();
+        AudioFormat trackFormat = track.stream.getFormat();
+        closeStream();
+        closeEncodedStream();
+        m_dataSource = track.file;
+        m_audioFileFormat = track.fileFormat;
+        m_encodedaudioInputStream = track.encoded;
+        encodedLength = track.encodedLength;
+        m_audioInputStream = track.stream;
+
+        if (trackFormat.matches(format)) {
+            log.info("Continuing gapless with {}", track.file);
+            if (nextTrackStartPosition >= 0)
+                trackStartPosition = nextTrackStartPosition;
+            nextTrackStartPosition = decodePosition;
+        } else {
+            log.info("Format of {} differs ({}), reopening line", track.file, trackFormat);
+            buffer.close();
+            m_writerThread.join();
+            m_line.drain();
+            m_line.stop();
+            m_line.close();
+            m_gainControl = null;
+            m_panControl = null;
+            try {
+                m_line = getLine(trackFormat);
+                openLine();
+            } catch (LineUnavailableException e) {
+                log.error("Unable to reopen line for {}", track.file, e);
+                m_line = null;
+                return null;
+            }
+            sampleBuffer = null;
+            initBuffers(trackFormat);
+            initPcmBuffer();
+            buffer = pcmBuffer;
+            startWriter(buffer);
+            trackStartPosition = decodePosition;
+            nextTrackStartPosition = -1;
+            lineStartPosition = decodePosition - m_line.getLongFramePosition();
+            m_line.start();
+        }
+        notify(PlayerEvent.TRACK_CHANGED, getEncodedStreamPosition(), -1, track.file);
+        return buffer;
+    }
+
+    /**
+     * Moves data from the PCM read-ahead buffer to the line until the end of the stream or until the buffer is
+     * aborted
+     */
+    private void writeLine(PcmRingBuffer buffer) {
+        SourceDataLine line = m_line;
+        AudioFormat format = line.getFormat();
+        int frameSize = format.getFrameSize();
+        //Never write more than the line can take at once, so a write to a flushed line cannot block
+        int chunkSize = Math.min(EXTERNAL_BUFFER_SIZE, line.getBufferSize());
+        byte[] data = new byte[Math.max(frameSize, chunkSize - chunkSize % frameSize)];
+        boolean started = false;
+        try {
+            while (true) {
+                if (status.get() == PAUSED) {
+                    awaitWhilePaused();
+                    continue;
+                }
+                int count = buffer.read(data, 0, data.length);
+                if (count < 0)
+                    break;
+                if (started && line.available() >= line.getBufferSize()) {
+                    lineUnderruns++;
+                    if (log.isDebugEnabled())
+                        log.debug("Line underrun : " + line.available() + "/" + line.getBufferSize());
+                }
+                line.write(data, 0, count);
+                started = true;
+                totalBytes += count;
+            }
+        } catch (InterruptedException e) {
+            log.error("Line writer interrupted", e);
+        }
     }
 
     public boolean hasPanControl() {
@@ -751,4 +1360,49 @@ public class AudioPlayback implements Runnable, AutoCloseable {
             return 0.0F;
         }
     }
+
+    /**
+     * A track opened by {@link #prepare(File)}, with the start of it already decoded
+     */
+    public static final class PreparedTrack implements AutoCloseable {
+
+        private final File file;
+
+        private final AudioFileFormat fileFormat;
+
+        private final AudioInputStream encoded;
+
+        private final int encodedLength;
+
+        private final AudioInputStream stream;
+
+        private PreparedTrack(File file, AudioFileFormat fileFormat, AudioInputStream encoded, int encodedLength, AudioInputStream stream) {
+            this.file = file;
+            this.fileFormat = fileFormat;
+            this.encoded = encoded;
+            this.encodedLength = encodedLength;
+            this.stream = stream;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return The decoded format of the track
+         */
+        public AudioFormat getFormat() {
+            return stream.getFormat();
+        }
+
+        /**
+         * Releases the streams of a track that is not going to be played
+         */
+        @Override
+        public void close() throws IOException {
+            stream.close();
+            if (encoded != null)
+                encoded.close();
+        }
+    }
 }
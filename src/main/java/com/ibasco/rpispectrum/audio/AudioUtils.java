@@ -4,30 +4,41 @@ import javax.sound.sampled.*;
 import java.util.HashMap;
 
 public class AudioUtils {
+    /**
+     * @return The signed little endian PCM format a source in the specified format is decoded to
+     */
+    public static AudioFormat getPcmFormat(AudioFormat sourceFormat) {
+        int nSampleSizeInBits = sourceFormat.getSampleSizeInBits();
+        if (nSampleSizeInBits <= 0) nSampleSizeInBits = 16;
+        if ((sourceFormat.getEncoding() == AudioFormat.Encoding.ULAW) || (sourceFormat.getEncoding() == AudioFormat.Encoding.ALAW)) nSampleSizeInBits = 16;
+        if (nSampleSizeInBits != 8) nSampleSizeInBits = 16;
+        return new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, sourceFormat.getSampleRate(), nSampleSizeInBits, sourceFormat.getChannels(), sourceFormat.getChannels() * (nSampleSizeInBits / 8), sourceFormat.getSampleRate(), false);
+    }
+
+    /**
+     * @return The mixers that support recording, as cached by the {@link MixerRegistry}
+     */
     public static HashMap<Mixer.Info, Line.Info> getRecordingDataLines() {
-        HashMap<Mixer.Info, Line.Info> out = new HashMap<>();
-        Mixer.Info[] mixerInfos = AudioSystem.getMixerInfo();
-        for (Mixer.Info mixerInfo : mixerInfos) {
-            Mixer mixer = AudioSystem.getMixer(mixerInfo);
-            Line.Info[] lineInfos = mixer.getTargetLineInfo();
-            if (lineInfos.length >= 1 && lineInfos[0].getLineClass().equals(TargetDataLine.class)) {
-                out.put(mixerInfo, lineInfos[0]);
-            }
-        }
-        return out;
+        return new HashMap<>(MixerRegistry.getDefault().getDataLines(TargetDataLine.class));
+    }
+
+    /**
+     * Looks up a mixer that supports recording by name
+     *
+     * @param name
+     *         The exact name of the mixer, or a case-insensitive part of it
+     *
+     * @return The mixer info or {@code null} if no recording mixer matches
+     */
+    public static Mixer.Info findRecordingMixer(String name) {
+        return MixerRegistry.getDefault().findMixer(name, TargetDataLine.class);
     }
 
+    /**
+     * @return The mixers that support playback, as cached by the {@link MixerRegistry}
+     */
     public static HashMap<Mixer.Info, Line.Info> getPlaybackDataLines() {
-        HashMap<Mixer.Info, Line.Info> out = new HashMap<>();
-        Mixer.Info[] mixerInfos = AudioSystem.getMixerInfo();
-        for (Mixer.Info mixerInfo : mixerInfos) {
-            Mixer mixer = AudioSystem.getMixer(mixerInfo);
-            Line.Info[] lineInfos = mixer.getSourceLineInfo();
-            if (lineInfos.length >= 1 && lineInfos[0].getLineClass().equals(SourceDataLine.class)) {
-                out.put(mixerInfo, lineInfos[0]);
-            }
-        }
-        return out;
+        return new HashMap<>(MixerRegistry.getDefault().getDataLines(SourceDataLine.class));
     }
 
     public static Mixer getDefaultPlaybackMixer() {
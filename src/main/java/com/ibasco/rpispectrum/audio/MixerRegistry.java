@@ -0,0 +1,285 @@
+package com.ibasco.rpispectrum.audio;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sound.sampled.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of the mixers of the system and the lines they provide.
+ * <p>
+ * Enumerating the {@link AudioSystem} mixers queries every device, which takes a noticeable amount of time on ALSA
+ * systems with many devices. The registry probes the mixers once, keeps the {@link Mixer} instances and their line
+ * infos indexed by name and by ID, and remembers for every mixer which line formats have been found supported. Lookups
+ * are then plain map accesses. The registry is rescanned explicitly with {@link #rescan()} or periodically in the
+ * background (see {@link #startRefresh(long, TimeUnit)}) to pick up devices that were plugged in or removed; mixers
+ * that are still present keep their cached capabilities.
+ */
+public final class MixerRegistry implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(MixerRegistry.class);
+
+    private static final MixerRegistry instance = new MixerRegistry();
+
+    /**
+     * Receives the changes found by a rescan
+     */
+    @FunctionalInterface
+    public interface ChangeListener {
+        void onChange(List<Mixer.Info> added, List<Mixer.Info> removed);
+    }
+
+    private volatile Snapshot snapshot;
+
+    private final List<ChangeListener> listeners = new ArrayList<>();
+
+    private ScheduledExecutorService refreshExecutor;
+
+    /**
+     * @return The registry shared by the audio classes of this application
+     */
+    public static MixerRegistry getDefault() {
+        return instance;
+    }
+
+    /**
+     * @return A stable identifier of a mixer, made of its name, vendor, description and version
+     */
+    public static String getId(Mixer.Info info) {
+        return info.getName() + "|" + info.getVendor() + "|" + info.getDescription() + "|" + info.getVersion();
+    }
+
+    /**
+     * Probes the mixers of the system again, keeping what is known about the ones that are still present
+     */
+    public synchronized void rescan() {
+        long start = System.nanoTime();
+        Map<String, Entry> previous = snapshot == null ? null : snapshot.byId;
+        Map<String, Entry> scanned = new LinkedHashMap<>();
+        Map<String, Entry> byName = new HashMap<>();
+        for (Mixer.Info info : AudioSystem.getMixerInfo()) {
+            String id = getId(info);
+            Entry entry = previous == null ? null : previous.get(id);
+            if (entry == null)
+                entry = new Entry(info, AudioSystem.getMixer(info));
+            scanned.put(id, entry);
+            byName.putIfAbsent(info.getName(), entry);
+        }
+        snapshot = new Snapshot(scanned, byName);
+        log.debug("Probed {} mixer(s) in {} ms", scanned.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        if (previous != null) {
+            List<Mixer.Info> added = new ArrayList<>();
+            List<Mixer.Info> removed = new ArrayList<>();
+            for (Map.Entry<String, Entry> e : scanned.entrySet()) {
+                if (!previous.containsKey(e.getKey()))
+                    added.add(e.getValue().info);
+            }
+            for (Map.Entry<String, Entry> e : previous.entrySet()) {
+                if (!scanned.containsKey(e.getKey()))
+                    removed.add(e.getValue().info);
+            }
+            if (!added.isEmpty() || !removed.isEmpty()) {
+                log.info("Audio devices changed, added: {}, removed: {}", added, removed);
+                listeners.forEach(l -> l.onChange(added, removed));
+            }
+        }
+    }
+
+    private Snapshot getSnapshot() {
+        Snapshot current = snapshot;
+        if (current == null) {
+            synchronized (this) {
+                if (snapshot == null)
+                    rescan();
+                current = snapshot;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Rescans the mixers at a fixed rate on a daemon thread
+     */
+    public synchronized void startRefresh(long period, TimeUnit unit) {
+        stopRefresh();
+        refreshExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "mixer-registry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refreshExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                rescan();
+            } catch (RuntimeException e) {
+                log.warn("Unable to rescan audio devices", e);
+            }
+        }, period, period, unit);
+    }
+
+    public synchronized void stopRefresh() {
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdownNow();
+            refreshExecutor = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        stopRefresh();
+    }
+
+    public synchronized void addListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public synchronized void removeListener(ChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return The infos of all mixers, in the order of the audio system
+     */
+    public List<Mixer.Info> getMixerInfos() {
+        List<Mixer.Info> infos = new ArrayList<>();
+        for (Entry entry : getSnapshot().byId.values())
+            infos.add(entry.info);
+        return infos;
+    }
+
+    /**
+     * @return The mixer with the specified name, or {@code null} if there is none (or the name is {@code null})
+     */
+    public Mixer getMixer(String name) {
+        if (name == null)
+            return null;
+        Entry entry = getSnapshot().byName.get(name);
+        return entry == null ? null : entry.mixer;
+    }
+
+    /**
+     * @return The cached instance of the mixer, which is looked up directly if it is not (yet) known to the registry
+     */
+    public Mixer getMixer(Mixer.Info info) {
+        Entry entry = getSnapshot().byId.get(getId(info));
+        return entry != null ? entry.mixer : AudioSystem.getMixer(info);
+    }
+
+    /**
+     * @return The first line info of every mixer that provides lines of the specified class, keyed by mixer
+     */
+    public Map<Mixer.Info, Line.Info> getDataLines(Class<? extends DataLine> lineClass) {
+        Map<Mixer.Info, Line.Info> lines = new LinkedHashMap<>();
+        for (Entry entry : getSnapshot().byId.values()) {
+            Line.Info[] infos = SourceDataLine.class.isAssignableFrom(lineClass) ? entry.sourceLineInfo : entry.targetLineInfo;
+            if (infos.length >= 1 && infos[0].getLineClass().equals(lineClass))
+                lines.put(entry.info, infos[0]);
+        }
+        return Collections.unmodifiableMap(lines);
+    }
+
+    /**
+     * Looks up a mixer providing lines of the specified class by name
+     *
+     * @param name
+     *         The exact name of the mixer, or a case-insensitive part of it
+     *
+     * @return The mixer info or {@code null} if no mixer matches
+     */
+    public Mixer.Info findMixer(String name, Class<? extends DataLine> lineClass) {
+        Mixer.Info partial = null;
+        for (Mixer.Info mixerInfo : getDataLines(lineClass).keySet()) {
+            if (mixerInfo.getName().equals(name))
+                return mixerInfo;
+            if (partial == null && mixerInfo.getName().toLowerCase().contains(name.toLowerCase()))
+                partial = mixerInfo;
+        }
+        return partial;
+    }
+
+    /**
+     * @return {@code true} if the mixer supports lines of the specified class in the specified format, the result is
+     * cached per mixer
+     */
+    public boolean isLineSupported(Mixer.Info info, Class<? extends DataLine> lineClass, AudioFormat format) {
+        Entry entry = getSnapshot().byId.get(getId(info));
+        DataLine.Info lineInfo = new DataLine.Info(lineClass, format);
+        if (entry == null)
+            return AudioSystem.getMixer(info).isLineSupported(lineInfo);
+        return entry.supported.computeIfAbsent(new FormatKey(lineClass, format), key -> entry.mixer.isLineSupported(lineInfo));
+    }
+
+    private static final class Snapshot {
+
+        private final Map<String, Entry> byId;
+
+        private final Map<String, Entry> byName;
+
+        private Snapshot(Map<String, Entry> byId, Map<String, Entry> byName) {
+            this.byId = byId;
+            this.byName = byName;
+        }
+    }
+
+    private static final class Entry {
+
+        private final Mixer.Info info;
+
+        private final Mixer mixer;
+
+        private final Line.Info[] sourceLineInfo;
+
+        private final Line.Info[] targetLineInfo;
+
+        private final ConcurrentHashMap<FormatKey, Boolean> supported = new ConcurrentHashMap<>();
+
+        private Entry(Mixer.Info info, Mixer mixer) {
+            this.info = info;
+            this.mixer = mixer;
+            this.sourceLineInfo = mixer.getSourceLineInfo();
+            this.targetLineInfo = mixer.getTargetLineInfo();
+        }
+    }
+
+    /**
+     * {@link AudioFormat} does not implement equals, so formats are compared by their properties
+     */
+    private static final class FormatKey {
+
+        private final Class<?> lineClass;
+
+        private final String format;
+
+        private FormatKey(Class<?> lineClass, AudioFormat format) {
+            this.lineClass = lineClass;
+            this.format = format.getEncoding() + "/" + format.getSampleRate() + "/" + format.getSampleSizeInBits() + "/" + format.getChannels()
+                    + "/" + format.getFrameSize() + "/" + format.getFrameRate() + "/" + format.isBigEndian();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof FormatKey))
+                return false;
+            FormatKey that = (FormatKey) o;
+            return lineClass.equals(that.lineClass) && format.equals(that.format);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(lineClass, format);
+        }
+    }
+}
@@ -0,0 +1,442 @@
+package com.ibasco.rpispectrum.audio;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Seek index of the frames of an MPEG audio (MP3) file.
+ * <p>
+ * The index is built by scanning the frame headers once, without decoding anything. It maps a sample position to the
+ * frame containing it and to the frame decoding has to restart from so that the target frame comes out exactly as in
+ * a decode from the start of the file. For Layer III that restart frame lies far enough back to refill the bit
+ * reservoir of the frame preceding the target (whose output is needed for the overlap-add of the target frame). The
+ * decoder outputs nothing for frames whose reservoir it has not seen, which includes the restart frame itself unless
+ * its main data starts within it, so the index also records the first frame that produces output after a restart.
+ * Since every frame of a file holds the same number of samples, all lookups take constant time.
+ * <p>
+ * Sample positions count the output of the decoder from the first frame in the file, which is what the decoded
+ * {@link javax.sound.sampled.AudioInputStream} delivers.
+ */
+public final class Mp3FrameIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(Mp3FrameIndex.class);
+
+    private static final int MAGIC = 0x4D504958; //MPIX
+
+    private static final int FILE_VERSION = 2;
+
+    public static final String EXTENSION = ".idx";
+
+    private static final int[][] BITRATES = {
+            //MPEG-1 Layer I, II, III
+            {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},
+            //MPEG-2/2.5 Layer I, II & III
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}
+    };
+
+    private static final int[][] SAMPLE_RATES = {
+            {11025, 12000, 8000}, //MPEG-2.5
+            null,
+            {22050, 24000, 16000}, //MPEG-2
+            {44100, 48000, 32000} //MPEG-1
+    };
+
+    private final long sourceLength;
+
+    private final long sourceModified;
+
+    private final int sampleRate;
+
+    private final int samplesPerFrame;
+
+    private final long[] offsets;
+
+    private final int[] restartFrames;
+
+    //First frame with output when decoding restarts at restartFrames[i]
+    private final int[] outputFrames;
+
+    private Mp3FrameIndex(long sourceLength, long sourceModified, int sampleRate, int samplesPerFrame, long[] offsets, int[] restartFrames, int[] outputFrames) {
+        this.sourceLength = sourceLength;
+        this.sourceModified = sourceModified;
+        this.sampleRate = sampleRate;
+        this.samplesPerFrame = samplesPerFrame;
+        this.offsets = offsets;
+        this.restartFrames = restartFrames;
+        this.outputFrames = outputFrames;
+    }
+
+    /**
+     * Returns the index of the file, loading it from the index file next to it if that is still up to date and
+     * building it otherwise
+     *
+     * @param save
+     *         {@code true} to save a newly built index next to the file so later runs can skip the scan
+     */
+    public static Mp3FrameIndex forFile(File file, boolean save) throws IOException {
+        File indexFile = new File(file.getPath() + EXTENSION);
+        if (indexFile.isFile()) {
+            try {
+                Mp3FrameIndex index = load(indexFile.toPath());
+                if (index.isValidFor(file))
+                    return index;
+                log.info("Frame index {} is out of date", indexFile);
+            } catch (IOException e) {
+                log.warn("Unable to load frame index {}", indexFile, e);
+            }
+        }
+        Mp3FrameIndex index = build(file);
+        if (save) {
+            try {
+                index.save(indexFile.toPath());
+            } catch (IOException e) {
+                log.warn("Unable to save frame index {}", indexFile, e);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Scans the frame headers of the file
+     *
+     * @throws IOException
+     *         If the file could not be read or does not contain MPEG audio frames
+     */
+    public static Mp3FrameIndex build(File file) throws IOException {
+        long started = System.nanoTime();
+        long modified = file.lastModified();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("File too large to index: " + file);
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            int position = skipId3v2(data);
+            Header first = null;
+            Header header = new Header();
+            long[] offsets = new long[1024];
+            int[] mainDataBegin = new int[1024];
+            int[] mainDataSize = new int[1024];
+            int count = 0;
+            while (position + 4 <= size) {
+                if (!header.parse(data, position) || (first != null && !first.isCompatible(header)) || position + header.frameLength > size) {
+                    //Lost sync (junk or trailing tags), look for the next pair of consecutive frames
+                    int next = resync(data, position + 1, first);
+                    if (next < 0)
+                        break;
+                    position = next;
+                    continue;
+                }
+                if (first == null) {
+                    if (resync(data, position, null) != position) {
+                        position++;
+                        continue;
+                    }
+                    first = header.copy();
+                }
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                    mainDataBegin = Arrays.copyOf(mainDataBegin, count * 2);
+                    mainDataSize = Arrays.copyOf(mainDataSize, count * 2);
+                }
+                offsets[count] = position;
+                mainDataBegin[count] = header.mainDataBegin(data, position);
+                mainDataSize[count] = header.mainDataSize();
+                count++;
+                position += header.frameLength;
+            }
+            if (first == null)
+                throw new IOException("No MPEG audio frames found in " + file);
+
+            int[] restartFrames = new int[count];
+            int[] outputFrames = new int[count];
+            for (int i = 0; i < count; i++) {
+                restartFrames[i] = i == 0 ? 0 : reservoirStart(i - 1, mainDataBegin, mainDataSize);
+                outputFrames[i] = firstOutput(restartFrames[i], count, mainDataBegin, mainDataSize);
+            }
+
+            log.info("Indexed {} frames of {} in {} ms", count, file, (System.nanoTime() - started) / 1000000);
+            return new Mp3FrameIndex(size, modified, first.sampleRate, first.samplesPerFrame, Arrays.copyOf(offsets, count), restartFrames, outputFrames);
+        }
+    }
+
+    /**
+     * @return The first frame whose main data is needed to decode the specified frame
+     */
+    private static int reservoirStart(int frame, int[] mainDataBegin, int[] mainDataSize) {
+        int start = frame;
+        int needed = mainDataBegin[frame];
+        while (needed > 0 && start > 0) {
+            start--;
+            needed -= mainDataSize[start];
+        }
+        return start;
+    }
+
+    /**
+     * A frame is decoded once the main data fed since the restart covers the bytes it takes from preceding frames.
+     * From then on every frame continues where the previous one ended, so the frames without output are exactly the
+     * ones before it.
+     *
+     * @return The first frame that produces output when decoding starts at the specified frame
+     */
+    private static int firstOutput(int restart, int count, int[] mainDataBegin, int[] mainDataSize) {
+        int frame = restart;
+        int available = 0;
+        while (frame < count - 1 && available < mainDataBegin[frame])
+            available += mainDataSize[frame++];
+        return frame;
+    }
+
+    private static int skipId3v2(ByteBuffer data) {
+        if (data.limit() < 10 || data.get(0) != 'I' || data.get(1) != 'D' || data.get(2) != '3')
+            return 0;
+        int size = ((data.get(6) & 0x7F) << 21) | ((data.get(7) & 0x7F) << 14) | ((data.get(8) & 0x7F) << 7) | (data.get(9) & 0x7F);
+        boolean footer = (data.get(5) & 0x10) != 0;
+        return Math.min(data.limit(), 10 + size + (footer ? 10 : 0));
+    }
+
+    /**
+     * @return The position of the next frame header that is directly followed by another compatible header, or -1 if
+     * there is none
+     */
+    private static int resync(ByteBuffer data, int from, Header reference) {
+        Header header = new Header();
+        Header next = new Header();
+        for (int position = from; position + 4 <= data.limit(); position++) {
+            if (!header.parse(data, position) || (reference != null && !reference.isCompatible(header)))
+                continue;
+            int following = position + header.frameLength;
+            //The last frame of the file has nothing to compare against
+            if (following == data.limit() || (next.parse(data, following) && header.isCompatible(next)))
+                return position;
+        }
+        return -1;
+    }
+
+    /**
+     * Loads an index previously written by {@link #save(Path)}
+     */
+    public static Mp3FrameIndex load(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a frame index file: " + path);
+            if (in.readInt() != FILE_VERSION)
+                throw new IOException("Frame index " + path + " was written by a different version");
+            long sourceLength = in.readLong();
+            long sourceModified = in.readLong();
+            int sampleRate = in.readInt();
+            int samplesPerFrame = in.readInt();
+            int count = in.readInt();
+            long[] offsets = new long[count];
+            int[] restartFrames = new int[count];
+            int[] outputFrames = new int[count];
+            for (int i = 0; i < count; i++) {
+                offsets[i] = in.readLong();
+                restartFrames[i] = in.readInt();
+                outputFrames[i] = in.readInt();
+            }
+            return new Mp3FrameIndex(sourceLength, sourceModified, sampleRate, samplesPerFrame, offsets, restartFrames, outputFrames);
+        }
+    }
+
+    public void save(Path path) throws IOException {
+        Path temp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FILE_VERSION);
+                out.writeLong(sourceLength);
+                out.writeLong(sourceModified);
+                out.writeInt(sampleRate);
+                out.writeInt(samplesPerFrame);
+                out.writeInt(offsets.length);
+                for (int i = 0; i < offsets.length; i++) {
+                    out.writeLong(offsets[i]);
+                    out.writeInt(restartFrames[i]);
+                    out.writeInt(outputFrames[i]);
+                }
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * @return {@code true} if the index was built from a file with the same size and modification time
+     */
+    public boolean isValidFor(File file) {
+        return file.length() == sourceLength && file.lastModified() == sourceModified;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getSamplesPerFrame() {
+        return samplesPerFrame;
+    }
+
+    public int getFrameCount() {
+        return offsets.length;
+    }
+
+    /**
+     * @return The number of samples (per channel) the file decodes to
+     */
+    public long getSampleCount() {
+        return (long) offsets.length * samplesPerFrame;
+    }
+
+    /**
+     * @return The frame containing the specified sample position, clamped to the valid range
+     */
+    public int getFrame(long sample) {
+        long frame = sample / samplesPerFrame;
+        return (int) Math.max(0, Math.min(offsets.length - 1, frame));
+    }
+
+    /**
+     * @return The frame containing the sample at the specified time
+     */
+    public int getFrame(double seconds) {
+        return getFrame((long) (seconds * sampleRate));
+    }
+
+    /**
+     * @return The byte offset of the frame header within the file
+     */
+    public long getOffset(int frame) {
+        return offsets[frame];
+    }
+
+    /**
+     * @return The position of the first sample of the frame
+     */
+    public long getFirstSample(int frame) {
+        return (long) frame * samplesPerFrame;
+    }
+
+    /**
+     * @return The frame to start decoding from so that the output of the specified frame is exact. Output decoded
+     * before the frame itself must be discarded.
+     */
+    public int getRestartFrame(int frame) {
+        return restartFrames[frame];
+    }
+
+    /**
+     * @return The position of the first sample the decoder outputs when it restarts at the restart frame of the
+     * specified frame (see {@link #getRestartFrame(int)})
+     */
+    public long getRestartSample(int frame) {
+        return getFirstSample(outputFrames[frame]);
+    }
+
+    /**
+     * A parsed MPEG audio frame header
+     */
+    private static final class Header {
+
+        private int version;
+
+        private int layer;
+
+        private boolean crc;
+
+        private boolean mono;
+
+        private int sampleRate;
+
+        private int samplesPerFrame;
+
+        private int frameLength;
+
+        private boolean parse(ByteBuffer data, int position) {
+            if (position + 4 > data.limit())
+                return false;
+            int b1 = data.get(position + 1) & 0xFF, b2 = data.get(position + 2) & 0xFF, b3 = data.get(position + 3) & 0xFF;
+            if ((data.get(position) & 0xFF) != 0xFF || (b1 & 0xE0) != 0xE0)
+                return false;
+            int version = (b1 >> 3) & 0x3;
+            int layer = 4 - ((b1 >> 1) & 0x3);
+            int bitrateIndex = (b2 >> 4) & 0xF;
+            int sampleRateIndex = (b2 >> 2) & 0x3;
+            //Reserved values, free format bitrates are not supported
+            if (version == 1 || layer == 4 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3)
+                return false;
+            boolean mpeg1 = version == 3;
+            int bitrate = BITRATES[mpeg1 ? layer - 1 : (layer == 1 ? 3 : 4)][bitrateIndex] * 1000;
+            int padding = (b2 >> 1) & 0x1;
+            this.version = version;
+            this.layer = layer;
+            this.crc = (b1 & 0x1) == 0;
+            this.mono = ((b3 >> 6) & 0x3) == 3;
+            this.sampleRate = SAMPLE_RATES[version][sampleRateIndex];
+            if (layer == 1) {
+                samplesPerFrame = 384;
+                frameLength = (12 * bitrate / sampleRate + padding) * 4;
+            } else if (layer == 2 || mpeg1) {
+                samplesPerFrame = 1152;
+                frameLength = 144 * bitrate / sampleRate + padding;
+            } else {
+                samplesPerFrame = 576;
+                frameLength = 72 * bitrate / sampleRate + padding;
+            }
+            return true;
+        }
+
+        private boolean isCompatible(Header other) {
+            return version == other.version && layer == other.layer && sampleRate == other.sampleRate;
+        }
+
+        private int sideInfoSize() {
+            if (version == 3)
+                return mono ? 17 : 32;
+            return mono ? 9 : 17;
+        }
+
+        /**
+         * @return The number of bytes of main data this Layer III frame takes from preceding frames
+         */
+        private int mainDataBegin(ByteBuffer data, int position) {
+            if (layer != 3)
+                return 0;
+            int sideInfo = position + 4 + (crc ? 2 : 0);
+            if (version == 3)
+                return ((data.get(sideInfo) & 0xFF) << 1) | ((data.get(sideInfo + 1) & 0xFF) >> 7);
+            return data.get(sideInfo) & 0xFF;
+        }
+
+        private int mainDataSize() {
+            if (layer != 3)
+                return 0;
+            return Math.max(0, frameLength - 4 - (crc ? 2 : 0) - sideInfoSize());
+        }
+
+        private Header copy() {
+            Header header = new Header();
+            header.version = version;
+            header.layer = layer;
+            header.crc = crc;
+            header.mono = mono;
+            header.sampleRate = sampleRate;
+            header.samplesPerFrame = samplesPerFrame;
+            header.frameLength = frameLength;
+            return header;
+        }
+    }
+}
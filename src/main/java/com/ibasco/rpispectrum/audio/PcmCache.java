@@ -0,0 +1,408 @@
+package com.ibasco.rpispectrum.audio;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Persistent cache of decoded PCM data.
+ * <p>
+ * The first time a source is played its decoded stream is written through to a file in the cache directory. The
+ * file is named after a hash of the source content and the decoded format, so renamed or moved files still hit the
+ * cache while re-encoded ones do not. Subsequent plays read the PCM data from a read-only memory mapping of that file
+ * instead of running the decoder. The directory is kept below a configurable size by evicting the least recently
+ * used entries (tracked through the file modification time, so the order survives restarts).
+ * <p>
+ * Committing a recorded entry and evicting old ones touches the file system, so it is done on a background thread
+ * rather than on the decoder thread that reaches the end of the stream.
+ */
+public class PcmCache implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(PcmCache.class);
+
+    private static final String EXTENSION = ".pcm";
+
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+    private final Path directory;
+
+    private final long maxBytes;
+
+    //Content hashes of sources already seen in this session, keyed by path, size and modification time
+    private final ConcurrentHashMap<String, String> hashes = new ConcurrentHashMap<>();
+
+    private final ExecutorService committer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "pcm-cache");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public PcmCache(Path directory, long maxBytes) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Blocks until the entries of all recordings that have ended so far are committed (or have failed to commit)
+     */
+    public void awaitCommits() throws IOException {
+        try {
+            committer.submit(() -> {
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for PCM cache commits");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Finishes pending commits (waiting a few seconds at most) and stops the background thread
+     */
+    @Override
+    public void close() {
+        committer.shutdown();
+        try {
+            if (!committer.awaitTermination(5, TimeUnit.SECONDS))
+                log.warn("PCM cache commits did not finish in time");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Opens a stream of cached PCM data for the source
+     *
+     * @return A stream over the memory mapped PCM data or {@code null} if the source has not been cached yet
+     */
+    public AudioInputStream open(File source, AudioFormat format) throws IOException {
+        Path entry = getEntry(source, format);
+        if (entry == null)
+            return null;
+        MappedPcmInputStream input = new MappedPcmInputStream(entry);
+        log.info("PCM cache hit for {} ({} bytes)", source, input.size());
+        return new AudioInputStream(input, format, input.size() / format.getFrameSize());
+    }
+
+    /**
+     * Looks up the cache file holding the raw PCM data of the source, e.g. to map parts of it directly
+     *
+     * @return The path of the entry or {@code null} if the source has not been cached yet
+     */
+    public Path getEntry(File source, AudioFormat format) throws IOException {
+        Path entry = entryFor(source, format);
+        if (!Files.isRegularFile(entry))
+            return null;
+        //Touch the entry so it becomes the most recently used one
+        Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        return entry;
+    }
+
+    /**
+     * Wraps a decoded stream so that everything read from it is also written to the cache. The entry is only
+     * committed once the stream has been read up to its end; if it is closed or skipped before that the partial data
+     * is discarded. The commit completes in the background, see {@link #awaitCommits()}.
+     */
+    public AudioInputStream record(File source, AudioInputStream decoded) throws IOException {
+        Path entry = entryFor(source, decoded.getFormat());
+        Path temp = Files.createTempFile(directory, entry.getFileName().toString(), ".tmp");
+        log.info("PCM cache miss for {}, recording to {}", source, entry);
+        long frames = decoded.getFrameLength();
+        long expectedBytes = frames == AudioSystem.NOT_SPECIFIED ? -1 : frames * decoded.getFormat().getFrameSize();
+        return new AudioInputStream(new RecordingInputStream(decoded, temp, entry, expectedBytes), decoded.getFormat(), frames);
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits into its size limit
+     */
+    public synchronized void evict() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(p -> p.getFileName().toString().endsWith(EXTENSION)).forEach(entries::add);
+        }
+        Map<Path, BasicFileAttributes> attributes = new HashMap<>();
+        long total = 0;
+        for (Path entry : entries) {
+            BasicFileAttributes attr = Files.readAttributes(entry, BasicFileAttributes.class);
+            attributes.put(entry, attr);
+            total += attr.size();
+        }
+        if (total <= maxBytes)
+            return;
+        entries.sort(Comparator.comparing(p -> attributes.get(p).lastModifiedTime()));
+        for (Path entry : entries) {
+            if (total <= maxBytes)
+                break;
+            long size = attributes.get(entry).size();
+            if (Files.deleteIfExists(entry)) {
+                total -= size;
+                log.info("Evicted PCM cache entry {} ({} bytes)", entry, size);
+            }
+        }
+    }
+
+    private Path entryFor(File source, AudioFormat format) throws IOException {
+        String name = contentHash(source) + "-" + formatKey(format) + EXTENSION;
+        return directory.resolve(name);
+    }
+
+    private String contentHash(File source) throws IOException {
+        String identity = source.getCanonicalPath() + ":" + source.length() + ":" + source.lastModified();
+        String hash = hashes.get(identity);
+        if (hash != null)
+            return hash;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[HASH_BUFFER_SIZE];
+            try (InputStream in = new FileInputStream(source)) {
+                int read;
+                while ((read = in.read(buffer)) != -1)
+                    digest.update(buffer, 0, read);
+            }
+            hash = toHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not supported", e);
+        }
+        hashes.put(identity, hash);
+        return hash;
+    }
+
+    private static String formatKey(AudioFormat format) {
+        return String.format("%s_%d_%d_%d_%s", format.getEncoding().toString().toLowerCase(), (int) format.getSampleRate(), format.getSampleSizeInBits(), format.getChannels(), format.isBigEndian() ? "be" : "le");
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+
+    /**
+     * Reads PCM data from a read-only memory mapping. Large files are mapped in windows since a single mapping is
+     * limited to 2 GB.
+     */
+    static final class MappedPcmInputStream extends InputStream {
+
+        private static final long WINDOW_SIZE = 256L * 1024 * 1024;
+
+        private final FileChannel channel;
+
+        private final long size;
+
+        private MappedByteBuffer window;
+
+        private long windowStart;
+
+        private long position;
+
+        private long mark;
+
+        MappedPcmInputStream(Path file) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+            this.size = channel.size();
+        }
+
+        long size() {
+            return size;
+        }
+
+        private boolean ensureWindow() throws IOException {
+            if (position >= size)
+                return false;
+            if (window == null || position < windowStart || position >= windowStart + window.capacity()) {
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(WINDOW_SIZE, size - windowStart));
+            }
+            window.position((int) (position - windowStart));
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!ensureWindow())
+                return -1;
+            position++;
+            return window.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!ensureWindow())
+                return -1;
+            int count = Math.min(len, window.remaining());
+            window.get(b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, size - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, size - position);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            mark = position;
+        }
+
+        @Override
+        public synchronized void reset() {
+            position = mark;
+        }
+
+        @Override
+        public void close() throws IOException {
+            window = null;
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes everything read from the decoded stream to a temporary file, which is moved into place by the committer
+     * thread at the end of the stream
+     */
+    private final class RecordingInputStream extends FilterInputStream {
+
+        private final Path temp;
+
+        private final Path entry;
+
+        //AudioInputStream stops reading once the frame length is reached, so the end of stream may never be seen
+        private final long expectedBytes;
+
+        private long recorded;
+
+        private OutputStream output;
+
+        private RecordingInputStream(InputStream in, Path temp, Path entry, long expectedBytes) throws IOException {
+            super(in);
+            this.temp = temp;
+            this.entry = entry;
+            this.expectedBytes = expectedBytes;
+            this.output = new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1)
+                commit();
+            else if (output != null) {
+                output.write(b);
+                recorded(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read == -1)
+                commit();
+            else if (output != null) {
+                output.write(b, off, read);
+                recorded(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            //The recording would have a gap, give up on it
+            discard();
+            return super.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                discard();
+            }
+        }
+
+        private void recorded(int count) throws IOException {
+            recorded += count;
+            if (expectedBytes >= 0 && recorded >= expectedBytes)
+                commit();
+        }
+
+        private void commit() {
+            if (output == null)
+                return;
+            OutputStream recording = output;
+            output = null;
+            committer.execute(() -> {
+                try {
+                    recording.close();
+                    Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    log.info("PCM cache entry committed: {} ({} bytes)", entry, Files.size(entry));
+                    evict();
+                } catch (IOException e) {
+                    try {
+                        Files.deleteIfExists(temp);
+                    } catch (IOException suppressed) {
+                        e.addSuppressed(suppressed);
+                    }
+                    log.warn("Unable to commit PCM cache entry {}", entry, e);
+                }
+            });
+        }
+
+        private void discard() throws IOException {
+            if (output == null)
+                return;
+            output.close();
+            output = null;
+            Files.deleteIfExists(temp);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.ibasco.rpispectrum.audio;
+
+import org.tritonus.share.sampled.FloatSampleBuffer;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Converts blocks of PCM bytes to float samples mixed down to mono (left + right), the same way the playback feeds
+ * the analyzer. The conversion of a frame does not depend on the block it is part of.
+ */
+public final class PcmMixer {
+
+    private final AudioFormat format;
+
+    private final FloatSampleBuffer sampleBuffer;
+
+    private final float[] mixed;
+
+    public PcmMixer(AudioFormat format, int maxFrames) {
+        this.format = format;
+        this.sampleBuffer = new FloatSampleBuffer(format.getChannels(), maxFrames, format.getSampleRate());
+        this.mixed = new float[maxFrames];
+    }
+
+    /**
+     * @return The mixed samples, valid until the next call
+     */
+    public float[] mix(byte[] data, int frames) {
+        sampleBuffer.setSamplesFromBytes(data, 0, format, 0, frames);
+        float[] left = sampleBuffer.getChannel(0);
+        float[] right = sampleBuffer.getChannelCount() > 1 ? sampleBuffer.getChannel(1) : left;
+        for (int i = 0; i < frames; i++)
+            mixed[i] = left[i] + right[i];
+        return mixed;
+    }
+}
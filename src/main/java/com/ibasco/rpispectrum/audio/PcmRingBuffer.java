@@ -0,0 +1,258 @@
+package com.ibasco.rpispectrum.audio;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded ring buffer of PCM bytes between a single decoder thread (producer) and a single line writer thread
+ * (consumer).
+ * <p>
+ * The storage is allocated once. Once the fill level reaches the high watermark the producer is held back until the
+ * consumer has drained it to the low watermark, so decoding happens in bursts instead of waking up for every chunk
+ * the line consumes. After running dry (and initially) the consumer waits until the low watermark is reached again
+ * before it continues, so a single late chunk does not turn into a series of tiny writes. Reads always return whole
+ * frames.
+ */
+public final class PcmRingBuffer {
+
+    public static final float DEFAULT_LOW_WATERMARK = 0.5f;
+
+    public static final float DEFAULT_HIGH_WATERMARK = 0.75f;
+
+    private final byte[] buffer;
+
+    private final int frameSize;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Condition notFull = lock.newCondition();
+
+    private int lowWatermark;
+
+    private int highWatermark;
+
+    private int readIndex;
+
+    private int level;
+
+    private boolean throttled;
+
+    private boolean prebuffering = true;
+
+    private boolean closed;
+
+    private boolean aborted;
+
+    private long underruns;
+
+    private long bytesRead;
+
+    private int lowestLevel;
+
+    /**
+     * @param capacity
+     *         The capacity in bytes, rounded down to a whole number of frames
+     * @param frameSize
+     *         The size of a single PCM frame in bytes
+     */
+    public PcmRingBuffer(int capacity, int frameSize) {
+        if (frameSize <= 0 || capacity < frameSize)
+            throw new IllegalArgumentException("Capacity must hold at least one frame");
+        this.buffer = new byte[capacity - capacity % frameSize];
+        this.frameSize = frameSize;
+        setWatermarks(DEFAULT_LOW_WATERMARK, DEFAULT_HIGH_WATERMARK);
+        this.lowestLevel = buffer.length;
+    }
+
+    /**
+     * @param low
+     *         Fill ratio (0.0 - 1.0) the buffer has to drain to before a held back producer continues, and the
+     *         consumer waits for after running dry
+     * @param high
+     *         Fill ratio (0.0 - 1.0) at which the producer is held back
+     */
+    public void setWatermarks(float low, float high) {
+        if (low < 0 || high > 1 || low > high)
+            throw new IllegalArgumentException("Watermarks must satisfy 0 <= low <= high <= 1");
+        lock.lock();
+        try {
+            this.lowWatermark = (int) (buffer.length * low);
+            this.highWatermark = Math.max(frameSize, (int) (buffer.length * high));
+            notFull.signalAll();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies the data into the buffer, waiting for space as necessary
+     *
+     * @return {@code false} if the buffer was aborted before all of the data could be written
+     */
+    public boolean write(byte[] src, int offset, int length) throws InterruptedException {
+        lock.lock();
+        try {
+            while (length > 0) {
+                while (!aborted && (throttled || level == buffer.length))
+                    notFull.await();
+                if (aborted)
+                    return false;
+                int count = Math.min(length, buffer.length - level);
+                int writeIndex = (readIndex + level) % buffer.length;
+                int first = Math.min(count, buffer.length - writeIndex);
+                System.arraycopy(src, offset, buffer, writeIndex, first);
+                System.arraycopy(src, offset + first, buffer, 0, count - first);
+                level += count;
+                offset += count;
+                length -= count;
+                if (level >= highWatermark)
+                    throttled = true;
+                notEmpty.signal();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads up to the specified number of bytes (rounded down to whole frames), waiting for data as necessary
+     *
+     * @return The number of bytes read or -1 if the end of the stream was reached or the buffer was aborted
+     */
+    public int read(byte[] dest, int offset, int length) throws InterruptedException {
+        length -= length % frameSize;
+        if (length <= 0)
+            throw new IllegalArgumentException("Length must be at least one frame");
+        lock.lock();
+        try {
+            if (level == 0 && !closed && !aborted && bytesRead > 0) {
+                underruns++;
+                prebuffering = true;
+            }
+            while (!aborted && !closed && (level == 0 || (prebuffering && level < lowWatermark)))
+                notEmpty.await();
+            prebuffering = false;
+            if (aborted || level == 0)
+                return -1;
+            int count = Math.min(length, level);
+            int first = Math.min(count, buffer.length - readIndex);
+            System.arraycopy(buffer, readIndex, dest, offset, first);
+            System.arraycopy(buffer, 0, dest, offset + first, count - first);
+            readIndex = (readIndex + count) % buffer.length;
+            level -= count;
+            bytesRead += count;
+            if (level < lowestLevel)
+                lowestLevel = level;
+            if (throttled && level <= lowWatermark)
+                throttled = false;
+            if (!throttled)
+                notFull.signal();
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks the end of the stream. The consumer reads the remaining data and then gets -1.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards the buffered data and releases both threads, e.g. on stop or seek
+     */
+    public void abort() {
+        lock.lock();
+        try {
+            aborted = true;
+            level = 0;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Empties the buffer and resets its state and counters for another stream
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            readIndex = 0;
+            level = 0;
+            throttled = false;
+            prebuffering = true;
+            closed = false;
+            aborted = false;
+            underruns = 0;
+            bytesRead = 0;
+            lowestLevel = buffer.length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCapacity() {
+        return buffer.length;
+    }
+
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /**
+     * @return The number of bytes currently buffered
+     */
+    public int getLevel() {
+        lock.lock();
+        try {
+            return level;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The current fill ratio (0.0 - 1.0)
+     */
+    public float getFillRatio() {
+        return (float) getLevel() / buffer.length;
+    }
+
+    /**
+     * @return The lowest fill level in bytes seen by the consumer since the buffer was cleared
+     */
+    public int getLowestLevel() {
+        lock.lock();
+        try {
+            return lowestLevel;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of times the consumer found the buffer empty before the end of the stream
+     */
+    public long getUnderruns() {
+        lock.lock();
+        try {
+            return underruns;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.ibasco.rpispectrum.audio;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Delivers the {@link AudioPlayback.PlayerEvent}s of a player to its {@link AudioPlayback.StatusListener}s on a
+ * dedicated thread.
+ * <p>
+ * Posting an event only allocates it and appends it to a lock-free queue, so the playback thread never waits for a
+ * listener. Events that describe a value rather than a transition ({@link AudioPlayback.PlayerEvent#GAIN} and
+ * {@link AudioPlayback.PlayerEvent#PAN}) are coalesced: while one is pending, newer ones replace its value instead of
+ * being queued, and listeners only see the latest. The queue holds at most {@link #getCapacity()} other events, what
+ * happens to further events is decided by the {@link OverflowPolicy}.
+ */
+public class PlayerEventDispatcher implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(PlayerEventDispatcher.class);
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    public enum OverflowPolicy {
+        /**
+         * Discard the event being posted
+         */
+        DROP_NEWEST,
+        /**
+         * Discard the oldest pending event to make room for the one being posted
+         */
+        DROP_OLDEST
+    }
+
+    private final List<AudioPlayback.StatusListener> listeners = new CopyOnWriteArrayList<>();
+
+    private final ConcurrentLinkedQueue<Event> queue = new ConcurrentLinkedQueue<>();
+
+    //Number of queued events that are not coalesced (ConcurrentLinkedQueue.size() is not constant time)
+    private final AtomicInteger size = new AtomicInteger();
+
+    //Latest value of every coalesced event type that is pending, indexed by ordinal
+    private final AtomicReferenceArray<Event> coalesced = new AtomicReferenceArray<>(AudioPlayback.PlayerEvent.values().length);
+
+    private final AtomicLong droppedEvents = new AtomicLong();
+
+    private final AtomicLong coalescedEvents = new AtomicLong();
+
+    private volatile int capacity = DEFAULT_CAPACITY;
+
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+    private volatile Thread thread;
+
+    private volatile boolean waiting;
+
+    private volatile boolean closed;
+
+    //Set when the dispatcher was closed while a listener was still running, it then resets itself once the listener
+    //has returned
+    private volatile boolean resetOnExit;
+
+    //Set by the dispatcher thread once it no longer delivers events
+    private volatile boolean exited;
+
+    private final String name;
+
+    public PlayerEventDispatcher(String name) {
+        this.name = name;
+    }
+
+    private static final class Event {
+
+        private final AudioPlayback.PlayerEvent type;
+
+        private final int position;
+
+        private final double value;
+
+        private final Object[] params;
+
+        private Event(AudioPlayback.PlayerEvent type, int position, double value, Object[] params) {
+            this.type = type;
+            this.position = position;
+            this.value = value;
+            this.params = params;
+        }
+    }
+
+    private static boolean isCoalesced(AudioPlayback.PlayerEvent type) {
+        return type == AudioPlayback.PlayerEvent.GAIN || type == AudioPlayback.PlayerEvent.PAN;
+    }
+
+    public void addListener(AudioPlayback.StatusListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(AudioPlayback.StatusListener listener) {
+        listeners.remove(listener);
+    }
+
+    public boolean hasListener(AudioPlayback.StatusListener listener) {
+        return listeners.contains(listener);
+    }
+
+    public boolean hasListeners() {
+        return !listeners.isEmpty();
+    }
+
+    /**
+     * Queues an event for the listeners, never blocks. Events posted while there are no listeners are discarded.
+     */
+    public void post(AudioPlayback.PlayerEvent type, int position, double value, Object... params) {
+        if (listeners.isEmpty())
+            return;
+        Event event = new Event(type, position, value, params);
+        if (isCoalesced(type)) {
+            //Only the first of a run of values is queued, the dispatcher picks up whichever value is latest
+            if (coalesced.getAndSet(type.ordinal(), event) != null) {
+                coalescedEvents.incrementAndGet();
+                return;
+            }
+        } else if (size.incrementAndGet() > capacity) {
+            if (overflowPolicy == OverflowPolicy.DROP_NEWEST || !dropOldest()) {
+                size.decrementAndGet();
+                droppedEvents.incrementAndGet();
+                return;
+            }
+        }
+        queue.offer(event);
+        wakeup();
+    }
+
+    private boolean dropOldest() {
+        //Coalesced events are not counted against the capacity and must stay queued while their slot is set, so they
+        //are moved to the back. There is at most one per type, which bounds the number of attempts.
+        for (int attempt = 0; attempt <= coalesced.length(); attempt++) {
+            Event oldest = queue.poll();
+            if (oldest == null)
+                return false;
+            if (isCoalesced(oldest.type)) {
+                queue.offer(oldest);
+                continue;
+            }
+            size.decrementAndGet();
+            droppedEvents.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private void wakeup() {
+        Thread dispatcher = thread;
+        if (dispatcher == null) {
+            start();
+        } else if (waiting) {
+            LockSupport.unpark(dispatcher);
+        }
+    }
+
+    private synchronized void start() {
+        if (thread != null || closed)
+            return;
+        Thread dispatcher = new Thread(this::dispatch, name);
+        dispatcher.setDaemon(true);
+        exited = false;
+        thread = dispatcher;
+        dispatcher.start();
+    }
+
+    private void dispatch() {
+        log.debug("Event dispatcher started");
+        while (true) {
+            Event event = queue.poll();
+            if (event == null) {
+                if (closed)
+                    break;
+                waiting = true;
+                //Check again after announcing the wait, an event posted in between would not unpark this thread
+                if (queue.isEmpty() && !closed)
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+                waiting = false;
+                continue;
+            }
+            if (isCoalesced(event.type)) {
+                event = coalesced.getAndSet(event.type.ordinal(), null);
+                if (event == null)
+                    continue;
+            } else {
+                size.decrementAndGet();
+            }
+            deliver(event);
+        }
+        //Either this thread sees the reset request or close() sees that it exited, and only the first resets
+        exited = true;
+        if (resetOnExit) {
+            synchronized (this) {
+                if (thread == Thread.currentThread())
+                    reset();
+            }
+        }
+        log.debug("Event dispatcher stopped");
+    }
+
+    private void deliver(Event event) {
+        for (AudioPlayback.StatusListener listener : listeners) {
+            try {
+                listener.onStatusChange(event.type, event.position, event.value, event.params);
+            } catch (RuntimeException e) {
+                log.error("Status listener failed on {}", event.type, e);
+            }
+        }
+    }
+
+    /**
+     * Delivers the pending events, stops the dispatcher thread (waiting at most the specified time for it) and removes
+     * all listeners. The dispatcher starts again when listeners are added and events posted. A dispatcher that is still
+     * running a listener when the time is up finishes in the background and is only then ready to start again.
+     */
+    public synchronized void close(long timeout, TimeUnit unit) {
+        Thread dispatcher = thread;
+        closed = true;
+        //A listener may close the player, the dispatcher then finishes after the listener returns
+        if (dispatcher == Thread.currentThread()) {
+            resetOnExit = true;
+        } else if (dispatcher != null) {
+            LockSupport.unpark(dispatcher);
+            try {
+                dispatcher.join(unit.toMillis(timeout));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (dispatcher.isAlive()) {
+                log.warn("Status listeners did not finish within {} ms, {} event(s) pending", unit.toMillis(timeout), getPendingEvents());
+                resetOnExit = true;
+            }
+        }
+        if (droppedEvents.get() > 0)
+            log.info("Dropped {} player event(s) because the listeners fell behind", droppedEvents.get());
+        listeners.clear();
+        if (dispatcher == null || (dispatcher != Thread.currentThread() && (!resetOnExit || exited)))
+            reset();
+    }
+
+    /**
+     * Discards what is left of the stopped dispatcher, so it can be started again
+     */
+    private void reset() {
+        queue.clear();
+        size.set(0);
+        for (int i = 0; i < coalesced.length(); i++)
+            coalesced.set(i, null);
+        thread = null;
+        resetOnExit = false;
+        closed = false;
+    }
+
+    @Override
+    public void close() {
+        close(1, TimeUnit.SECONDS);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @param capacity
+     *         The maximum number of pending events, not counting coalesced events (Default: {@value #DEFAULT_CAPACITY})
+     */
+    public void setCapacity(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be greater than zero");
+        this.capacity = capacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @param overflowPolicy
+     *         What to discard when the queue is full (Default: {@link OverflowPolicy#DROP_OLDEST})
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @return The number of events discarded because the queue was full
+     */
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    /**
+     * @return The number of coalesced events that were replaced by a newer value before they were delivered
+     */
+    public long getCoalescedEvents() {
+        return coalescedEvents.get();
+    }
+
+    /**
+     * @return The number of events waiting to be delivered, not counting coalesced events
+     */
+    public int getPendingEvents() {
+        return Math.max(0, size.get());
+    }
+}
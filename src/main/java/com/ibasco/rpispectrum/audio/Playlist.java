@@ -0,0 +1,155 @@
+package com.ibasco.rpispectrum.audio;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Plays a list of files back to back without gaps.
+ * <p>
+ * As soon as a track starts playing, the next one is opened and its first part decoded on a background thread (see
+ * {@link AudioPlayback#prepare(File)}). When the decoder reaches the end of the current track it continues with the
+ * prepared one, so the line keeps playing and the analysis keeps receiving samples across the change. A track that
+ * can not be opened is skipped.
+ */
+public class Playlist implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(Playlist.class);
+
+    private final AudioPlayback player;
+
+    private final List<File> tracks;
+
+    private final ExecutorService preparer;
+
+    private boolean repeat;
+
+    //Index of the track being decoded, and of the track being prepared
+    private volatile int current;
+
+    private int next;
+
+    private Future<AudioPlayback.PreparedTrack> prepared;
+
+    public Playlist(AudioPlayback player, List<File> tracks) {
+        if (tracks.isEmpty())
+            throw new IllegalArgumentException("Playlist must not be empty");
+        this.player = player;
+        this.tracks = new ArrayList<>(tracks);
+        this.preparer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "playlist-prepare");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Opens the first track, without starting playback
+     */
+    public void open() throws AudioPlayerException {
+        current = 0;
+        player.setNextTrackProvider(this::nextTrack);
+        player.open(tracks.get(0));
+    }
+
+    /**
+     * Starts playback of the opened track and prepares the next one
+     */
+    public void play() throws AudioPlayerException {
+        player.play();
+        prepare(1);
+    }
+
+    private synchronized void prepare(int index) {
+        if (index >= tracks.size()) {
+            if (!repeat) {
+                prepared = null;
+                return;
+            }
+            index = 0;
+        }
+        next = index;
+        File file = tracks.get(index);
+        prepared = preparer.submit(() -> player.prepare(file));
+    }
+
+    /**
+     * Called on the decoder thread at the end of a track
+     */
+    private AudioPlayback.PreparedTrack nextTrack() {
+        for (int attempt = 0; attempt < tracks.size(); attempt++) {
+            Future<AudioPlayback.PreparedTrack> future;
+            int index;
+            synchronized (this) {
+                future = prepared;
+                index = next;
+            }
+            if (future == null)
+                return null;
+            try {
+                AudioPlayback.PreparedTrack track = future.get();
+                current = index;
+                prepare(index + 1);
+                return track;
+            } catch (ExecutionException e) {
+                log.warn("Skipping {}", tracks.get(index), e.getCause());
+                prepare(index + 1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stops preparing tracks and releases a track that has been prepared but not played. Does not stop the player.
+     */
+    @Override
+    public synchronized void close() {
+        if (player.getNextTrackProvider() != null)
+            player.setNextTrackProvider(null);
+        preparer.shutdownNow();
+        if (prepared != null && prepared.isDone() && !prepared.isCancelled()) {
+            try {
+                prepared.get().close();
+            } catch (ExecutionException | InterruptedException | IOException e) {
+                log.debug("Unable to release prepared track", e);
+            }
+        }
+        prepared = null;
+    }
+
+    public List<File> getTracks() {
+        return Collections.unmodifiableList(tracks);
+    }
+
+    /**
+     * @return The index of the track being decoded (which is audible once the buffered audio of the previous track has
+     * been played)
+     */
+    public int getCurrentIndex() {
+        return current;
+    }
+
+    public boolean isRepeat() {
+        return repeat;
+    }
+
+    /**
+     * @param repeat
+     *         {@code true} to start over with the first track after the last one
+     */
+    public void setRepeat(boolean repeat) {
+        this.repeat = repeat;
+    }
+}
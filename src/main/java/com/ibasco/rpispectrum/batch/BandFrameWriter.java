@@ -0,0 +1,48 @@
+package com.ibasco.rpispectrum.batch;
+
+import com.ibasco.rpispectrum.analysis.BandMapper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Writes the band levels of every analysis frame of a track
+ */
+public interface BandFrameWriter extends Closeable {
+
+    /**
+     * @param framePosition
+     *         The stream frame position at the center of the analysis window
+     * @param levels
+     *         The level of every band in dB
+     */
+    void write(long framePosition, float[] levels) throws IOException;
+
+    enum Format {
+        /**
+         * Text with a header row of band edge frequencies and one row per frame
+         */
+        CSV("csv"),
+        /**
+         * Compact big endian binary, see {@link BinaryBandFrameWriter}
+         */
+        BINARY("bands");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+
+        public BandFrameWriter open(Path path, float sampleRate, int fftSize, int hopSize, BandMapper mapper) throws IOException {
+            if (this == CSV)
+                return new CsvBandFrameWriter(path, sampleRate, mapper);
+            return new BinaryBandFrameWriter(path, sampleRate, fftSize, hopSize, mapper);
+        }
+    }
+}
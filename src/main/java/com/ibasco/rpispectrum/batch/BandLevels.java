@@ -0,0 +1,39 @@
+package com.ibasco.rpispectrum.batch;
+
+import com.ibasco.rpispectrum.analysis.BandMapper;
+
+/**
+ * Reduces a magnitude spectrum to band levels in dB, relative to the same reference as the display (a full scale
+ * sine on both channels peaks at the FFT size)
+ */
+final class BandLevels {
+
+    //Lowest level in dB, so silence does not end up as negative infinity
+    static final float FLOOR_DB = -120;
+
+    private final BandMapper mapper;
+
+    private final float reference;
+
+    private final float[] levels;
+
+    BandLevels(BandMapper mapper, int fftSize) {
+        this.mapper = mapper;
+        this.reference = fftSize;
+        this.levels = new float[mapper.getBandCount()];
+    }
+
+    /**
+     * @return The band levels, valid until the next call
+     */
+    float[] compute(float[] magnitudes) {
+        mapper.map(magnitudes, levels);
+        for (int b = 0; b < levels.length; b++)
+            levels[b] = Math.max(FLOOR_DB, 20 * (float) Math.log10(levels[b] / reference));
+        return levels;
+    }
+
+    int getBandCount() {
+        return levels.length;
+    }
+}
@@ -0,0 +1,358 @@
+package com.ibasco.rpispectrum.batch;
+
+import com.ibasco.rpispectrum.analysis.BandMapper;
+import com.ibasco.rpispectrum.analysis.BandScale;
+import com.ibasco.rpispectrum.analysis.StftAnalyzer;
+import com.ibasco.rpispectrum.analysis.WindowFunction;
+import com.ibasco.rpispectrum.audio.AudioUtils;
+import com.ibasco.rpispectrum.audio.PcmCache;
+import com.ibasco.rpispectrum.audio.PcmMixer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Analyzes audio files as fast as they can be decoded, without playing them.
+ * <p>
+ * Each file is decoded to PCM and run through the same {@link StftAnalyzer} and {@link BandMapper} stages as the
+ * display pipeline, and the band levels of every analysis frame are written to a file in the output directory. Files
+ * are processed in parallel, one task per file, on a work-stealing pool bounded to the configured number of threads;
+ * every task owns its decoder, analyzer and buffers, so nothing is shared between them except the immutable band
+ * mapper.
+ * <p>
+ * A single long file keeps only one core busy that way. With a segment length set, every file is first decoded to a
+ * PCM file (or taken from the {@link PcmCache}) and then analyzed by a {@link ParallelSpectrogram}, whose segment
+ * tasks are forked into the same pool.
+ */
+public class BatchAnalyzer {
+
+    private static final Logger log = LoggerFactory.getLogger(BatchAnalyzer.class);
+
+    //Decoded bytes read at once
+    private static final int READ_SIZE = 16 * 1024;
+
+    private final Path outputDirectory;
+
+    private int fftSize = StftAnalyzer.DEFAULT_FRAME_SIZE;
+
+    private int hopSize = StftAnalyzer.DEFAULT_HOP_SIZE;
+
+    private BandScale bandScale = BandScale.THIRD_OCTAVE;
+
+    private int bandCount = 30;
+
+    private BandFrameWriter.Format format = BandFrameWriter.Format.BINARY;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private double segmentSeconds;
+
+    private PcmCache pcmCache;
+
+    private final Set<String> outputNames = new HashSet<>();
+
+    public BatchAnalyzer(Path outputDirectory) {
+        this.outputDirectory = outputDirectory;
+    }
+
+    /**
+     * Analyzes the files, blocking until all of them have been processed. A file that fails to decode is logged and
+     * reported, it does not stop the others.
+     */
+    public Report analyze(List<File> files) throws IOException, InterruptedException {
+        Files.createDirectories(outputDirectory);
+        List<Path> outputs = new ArrayList<>(files.size());
+        synchronized (outputNames) {
+            outputNames.clear();
+            for (File file : files)
+                outputs.add(outputDirectory.resolve(uniqueName(file)));
+        }
+
+        log.info("Analyzing {} file(s) on {} thread(s)", files.size(), threads);
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(threads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        try {
+            List<ForkJoinTask<Double>> tasks = new ArrayList<>(files.size());
+            for (int i = 0; i < files.size(); i++) {
+                File file = files.get(i);
+                Path output = outputs.get(i);
+                tasks.add(pool.submit(() -> analyze(file, output)));
+            }
+            Report report = new Report();
+            for (int i = 0; i < tasks.size(); i++) {
+                try {
+                    report.audioSeconds += tasks.get(i).get();
+                    report.tracks++;
+                } catch (ExecutionException e) {
+                    log.error("Failed to analyze {}", files.get(i), e.getCause());
+                    report.failures.add(files.get(i));
+                }
+            }
+            report.elapsedNanos = System.nanoTime() - start;
+            return report;
+        } finally {
+            pool.shutdownNow();
+            pool.awaitTermination(1, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * @return The duration of the analyzed audio in seconds
+     */
+    private double analyze(File file, Path output) throws Exception {
+        long start = System.nanoTime();
+        try (AudioInputStream encoded = AudioSystem.getAudioInputStream(file)) {
+            AudioFormat pcmFormat = AudioUtils.getPcmFormat(encoded.getFormat());
+            if (segmentSeconds > 0)
+                return analyzeSegmented(file, output, encoded, pcmFormat);
+            try (AudioInputStream decoded = AudioSystem.getAudioInputStream(pcmFormat, encoded)) {
+                float sampleRate = pcmFormat.getSampleRate();
+                int frameSize = pcmFormat.getFrameSize();
+                BandMapper mapper = BandMapper.get(bandScale, bandCount, fftSize, sampleRate);
+                //Only the frame listener is used, a minimal history keeps the per task footprint small
+                StftAnalyzer analyzer = new StftAnalyzer(fftSize, hopSize, sampleRate, WindowFunction.HANN, 1);
+                BandLevels levels = new BandLevels(mapper, fftSize);
+
+                long frames = 0;
+                try (BandFrameWriter writer = format.open(output, sampleRate, fftSize, hopSize, mapper)) {
+                    analyzer.setFrameListener((magnitudes, framePosition) -> {
+                        try {
+                            writer.write(framePosition, levels.compute(magnitudes));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+
+                    byte[] data = new byte[READ_SIZE - READ_SIZE % frameSize];
+                    PcmMixer mixer = new PcmMixer(pcmFormat, data.length / frameSize);
+                    int pending = 0;
+                    int bytesRead;
+                    while ((bytesRead = decoded.read(data, pending, data.length - pending)) != -1) {
+                        int available = pending + bytesRead;
+                        int count = available / frameSize;
+                        pending = available % frameSize;
+                        if (count == 0)
+                            continue;
+                        analyzer.process(mixer.mix(data, count), 0, count, frames);
+                        frames += count;
+                        //Keep a partial frame for the next read
+                        if (pending > 0)
+                            System.arraycopy(data, count * frameSize, data, 0, pending);
+                    }
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+
+                double seconds = frames / (double) sampleRate;
+                if (log.isDebugEnabled())
+                    log.debug(String.format("Analyzed %s (%.1f s of audio, %d frames) in %d ms", file, seconds, analyzer.getFrameCount(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+                return seconds;
+            }
+        }
+    }
+
+    private double analyzeSegmented(File file, Path output, AudioInputStream encoded, AudioFormat pcmFormat) throws IOException {
+        long start = System.nanoTime();
+        Path pcm = pcmCache != null ? pcmCache.getEntry(file, pcmFormat) : null;
+        Path temp = null;
+        if (pcm == null) {
+            try (AudioInputStream decoded = AudioSystem.getAudioInputStream(pcmFormat, encoded)) {
+                if (pcmCache != null) {
+                    try (AudioInputStream recording = pcmCache.record(file, decoded)) {
+                        drain(recording);
+                    }
+                    pcmCache.awaitCommits();
+                    pcm = pcmCache.getEntry(file, pcmFormat);
+                    if (pcm == null)
+                        throw new IOException("The decoded audio of " + file + " does not fit into the PCM cache");
+                } else {
+                    temp = pcm = Files.createTempFile(outputDirectory, file.getName(), ".pcm");
+                    Files.copy(decoded, temp, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+        long decodeTime = System.nanoTime() - start;
+
+        try (FileChannel channel = FileChannel.open(pcm, StandardOpenOption.READ)) {
+            float sampleRate = pcmFormat.getSampleRate();
+            BandMapper mapper = BandMapper.get(bandScale, bandCount, fftSize, sampleRate);
+            ParallelSpectrogram spectrogram = new ParallelSpectrogram(fftSize, hopSize, pcmFormat, mapper, (long) (segmentSeconds * sampleRate));
+            long frames;
+            try (BandFrameWriter writer = format.open(output, sampleRate, fftSize, hopSize, mapper)) {
+                frames = spectrogram.write(channel, writer);
+            }
+            double seconds = frames / (double) sampleRate;
+            if (log.isDebugEnabled())
+                log.debug(String.format("Analyzed %s (%.1f s of audio) in %d ms (decode: %d ms)", file, seconds, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), TimeUnit.NANOSECONDS.toMillis(decodeTime)));
+            return seconds;
+        } finally {
+            if (temp != null)
+                Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void drain(AudioInputStream input) throws IOException {
+        byte[] data = new byte[READ_SIZE];
+        while (input.read(data) != -1) ;
+    }
+
+    private String uniqueName(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String candidate = base + "." + format.getExtension();
+        for (int n = 1; !outputNames.add(candidate); n++)
+            candidate = base + "-" + n + "." + format.getExtension();
+        return candidate;
+    }
+
+    public Path getOutputDirectory() {
+        return outputDirectory;
+    }
+
+    public int getFftSize() {
+        return fftSize;
+    }
+
+    public void setFftSize(int fftSize) {
+        this.fftSize = fftSize;
+    }
+
+    public int getHopSize() {
+        return hopSize;
+    }
+
+    public void setHopSize(int hopSize) {
+        this.hopSize = hopSize;
+    }
+
+    public BandScale getBandScale() {
+        return bandScale;
+    }
+
+    public void setBandScale(BandScale bandScale) {
+        this.bandScale = bandScale;
+    }
+
+    public int getBandCount() {
+        return bandCount;
+    }
+
+    public void setBandCount(int bandCount) {
+        this.bandCount = bandCount;
+    }
+
+    public BandFrameWriter.Format getFormat() {
+        return format;
+    }
+
+    public void setFormat(BandFrameWriter.Format format) {
+        this.format = format;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @param threads
+     *         The number of files analyzed in parallel (Default: the number of available processors)
+     */
+    public void setThreads(int threads) {
+        if (threads <= 0)
+            throw new IllegalArgumentException("Thread count must be greater than zero");
+        this.threads = threads;
+    }
+
+    public double getSegmentSeconds() {
+        return segmentSeconds;
+    }
+
+    /**
+     * @param segmentSeconds
+     *         The length of the segments a file is split into to analyze it on several cores, or 0 to analyze every
+     *         file in a single pass
+     */
+    public void setSegmentSeconds(double segmentSeconds) {
+        if (segmentSeconds < 0)
+            throw new IllegalArgumentException("Segment length must not be negative");
+        this.segmentSeconds = segmentSeconds;
+    }
+
+    public PcmCache getPcmCache() {
+        return pcmCache;
+    }
+
+    /**
+     * @param pcmCache
+     *         Cache the decoded audio is kept in (and taken from) when files are segmented, or {@code null} to decode
+     *         to a temporary file every time
+     */
+    public void setPcmCache(PcmCache pcmCache) {
+        this.pcmCache = pcmCache;
+    }
+
+    /**
+     * Outcome and throughput of a batch run
+     */
+    public static final class Report {
+
+        private int tracks;
+
+        private double audioSeconds;
+
+        private long elapsedNanos;
+
+        private final List<File> failures = new ArrayList<>();
+
+        public int getTracks() {
+            return tracks;
+        }
+
+        public List<File> getFailures() {
+            return Collections.unmodifiableList(failures);
+        }
+
+        public double getAudioSeconds() {
+            return audioSeconds;
+        }
+
+        public double getElapsedSeconds() {
+            return elapsedNanos / 1e9;
+        }
+
+        public double getTracksPerMinute() {
+            return elapsedNanos == 0 ? 0 : tracks / (getElapsedSeconds() / 60);
+        }
+
+        public double getAudioHoursPerMinute() {
+            return elapsedNanos == 0 ? 0 : (audioSeconds / 3600) / (getElapsedSeconds() / 60);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d track(s) (%.2f h of audio) analyzed in %.1f s, %d failed: %.1f tracks/min, %.2f audio hours/min",
+                    tracks, audioSeconds / 3600, getElapsedSeconds(), failures.size(), getTracksPerMinute(), getAudioHoursPerMinute());
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.ibasco.rpispectrum.batch;
+
+import com.ibasco.rpispectrum.analysis.BandMapper;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes band levels in a compact binary layout (big endian):
+ * <pre>
+ * int    magic ('BAND')
+ * int    version (1)
+ * float  sample rate
+ * int    FFT size in frames
+ * int    hop size in frames
+ * int    band count
+ * float  band edge frequencies (band count + 1)
+ * rows:  one level per band, in hundredths of a dB as signed 16-bit integers
+ * </pre>
+ * The analysis window of row {@code n} is centered at frame {@code (n + 1) * hop - fftSize / 2}.
+ */
+public class BinaryBandFrameWriter implements BandFrameWriter {
+
+    public static final int MAGIC = 0x42414E44;
+
+    public static final int VERSION = 1;
+
+    private final DataOutputStream out;
+
+    public BinaryBandFrameWriter(Path path, float sampleRate, int fftSize, int hopSize, BandMapper mapper) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 64 * 1024));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeFloat(sampleRate);
+        out.writeInt(fftSize);
+        out.writeInt(hopSize);
+        out.writeInt(mapper.getBandCount());
+        for (int i = 0; i <= mapper.getBandCount(); i++)
+            out.writeFloat(mapper.getEdgeFrequency(i));
+    }
+
+    @Override
+    public void write(long framePosition, float[] levels) throws IOException {
+        for (float level : levels)
+            out.writeShort(Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(level * 100))));
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
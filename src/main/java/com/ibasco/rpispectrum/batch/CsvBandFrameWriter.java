@@ -0,0 +1,49 @@
+package com.ibasco.rpispectrum.batch;
+
+import com.ibasco.rpispectrum.analysis.BandMapper;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * Writes one line per frame: the time in seconds of the analysis window center followed by the level of every band.
+ * The header row holds the lower edge frequency of every band. The first frames are centered before the start of the
+ * track, their windows are partly filled with silence.
+ */
+public class CsvBandFrameWriter implements BandFrameWriter {
+
+    private final BufferedWriter writer;
+
+    private final float sampleRate;
+
+    private final StringBuilder line = new StringBuilder(256);
+
+    public CsvBandFrameWriter(Path path, float sampleRate, BandMapper mapper) throws IOException {
+        this.writer = Files.newBufferedWriter(path, StandardCharsets.US_ASCII);
+        this.sampleRate = sampleRate;
+        line.append("seconds");
+        for (int i = 0; i < mapper.getBandCount(); i++)
+            line.append(',').append(Math.round(mapper.getEdgeFrequency(i))).append("Hz");
+        writer.write(line.toString());
+        writer.newLine();
+    }
+
+    @Override
+    public void write(long framePosition, float[] levels) throws IOException {
+        line.setLength(0);
+        line.append(String.format(Locale.ROOT, "%.4f", framePosition / sampleRate));
+        for (float level : levels)
+            line.append(',').append(Math.round(level * 10) / 10.0f);
+        writer.write(line.toString());
+        writer.newLine();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
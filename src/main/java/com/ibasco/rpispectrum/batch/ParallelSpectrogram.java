@@ -0,0 +1,155 @@
+package com.ibasco.rpispectrum.batch;
+
+import com.ibasco.rpispectrum.analysis.BandMapper;
+import com.ibasco.rpispectrum.analysis.StftAnalyzer;
+import com.ibasco.rpispectrum.analysis.WindowFunction;
+import com.ibasco.rpispectrum.audio.PcmMixer;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Computes the band spectrogram of a single file of decoded PCM data on several cores.
+ * <p>
+ * The PCM data is split into segments of a whole number of hops that are analyzed concurrently as fork/join tasks,
+ * each with its own {@link StftAnalyzer}. A segment starts feeding its analyzer at least {@code fftSize - hopSize}
+ * frames (rounded up to whole hops) before its first frame and discards the frames emitted during that lead-in, so
+ * every frame it keeps is computed from exactly the same samples, on the same hop grid, as in a single sequential
+ * pass. The segments are written in order as they are joined, so the output is bit-identical to that of
+ * {@link BatchAnalyzer} without segmentation.
+ */
+public class ParallelSpectrogram {
+
+    //Bytes mapped and converted at once
+    private static final int READ_SIZE = 16 * 1024;
+
+    private final int fftSize;
+
+    private final int hopSize;
+
+    private final AudioFormat format;
+
+    private final BandMapper mapper;
+
+    private final long segmentFrames;
+
+    private final long leadIn;
+
+    /**
+     * @param format
+     *         The PCM format of the data, as returned by {@link com.ibasco.rpispectrum.audio.AudioUtils#getPcmFormat(AudioFormat)}
+     * @param segmentFrames
+     *         The approximate length of a segment in frames, rounded up to whole hops
+     */
+    public ParallelSpectrogram(int fftSize, int hopSize, AudioFormat format, BandMapper mapper, long segmentFrames) {
+        if (segmentFrames <= 0)
+            throw new IllegalArgumentException("Segment length must be greater than zero");
+        this.fftSize = fftSize;
+        this.hopSize = hopSize;
+        this.format = format;
+        this.mapper = mapper;
+        this.segmentFrames = (segmentFrames + hopSize - 1) / hopSize * hopSize;
+        //fftSize - hopSize rounded up to whole hops
+        this.leadIn = (long) (fftSize - 1) / hopSize * hopSize;
+    }
+
+    /**
+     * Analyzes the PCM data of the channel and writes the band levels of every frame in order. The segments are forked
+     * into the pool of the calling fork/join task (or the common pool if called from any other thread).
+     *
+     * @return The number of PCM frames analyzed
+     */
+    public long write(FileChannel pcm, BandFrameWriter writer) throws IOException {
+        long totalFrames = pcm.size() / format.getFrameSize();
+        List<Segment> segments = new ArrayList<>();
+        for (long start = 0; start < totalFrames; start += segmentFrames) {
+            Segment segment = new Segment(pcm, start, Math.min(start + segmentFrames, totalFrames));
+            segment.fork();
+            segments.add(segment);
+        }
+        int bandCount = mapper.getBandCount();
+        float[] levels = new float[bandCount];
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            float[] rows;
+            try {
+                rows = segment.join();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            //Release the rows of written segments early
+            segments.set(i, null);
+            long end = segment.start + hopSize;
+            for (int offset = 0; offset < rows.length; offset += bandCount, end += hopSize) {
+                System.arraycopy(rows, offset, levels, 0, bandCount);
+                writer.write(end - fftSize / 2, levels);
+            }
+        }
+        return totalFrames;
+    }
+
+    public long getSegmentFrames() {
+        return segmentFrames;
+    }
+
+    /**
+     * Analyzes the frames whose windows end in {@code (start, end]} (or at most at the end of the data), computing
+     * the band levels of the frames in a row-major array
+     */
+    @SuppressWarnings("serial")
+    private final class Segment extends RecursiveTask<float[]> {
+
+        private final FileChannel pcm;
+
+        private final long start;
+
+        private final long end;
+
+        private Segment(FileChannel pcm, long start, long end) {
+            this.pcm = pcm;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected float[] compute() {
+            int frameSize = format.getFrameSize();
+            int bandCount = mapper.getBandCount();
+            int rows = (int) (end / hopSize - start / hopSize);
+            float[] result = new float[rows * bandCount];
+            long feedStart = Math.max(0, start - leadIn);
+
+            StftAnalyzer analyzer = new StftAnalyzer(fftSize, hopSize, format.getSampleRate(), WindowFunction.HANN, 1);
+            BandLevels levels = new BandLevels(mapper, fftSize);
+            int[] row = {0};
+            analyzer.setFrameListener((magnitudes, framePosition) -> {
+                //Frames ending at or before the segment start belong to the previous segment
+                if (framePosition + fftSize / 2 <= start)
+                    return;
+                System.arraycopy(levels.compute(magnitudes), 0, result, row[0]++ * bandCount, bandCount);
+            });
+
+            try {
+                MappedByteBuffer buffer = pcm.map(FileChannel.MapMode.READ_ONLY, feedStart * frameSize, (end - feedStart) * frameSize);
+                byte[] data = new byte[READ_SIZE - READ_SIZE % frameSize];
+                PcmMixer mixer = new PcmMixer(format, data.length / frameSize);
+                long position = feedStart;
+                while (buffer.hasRemaining()) {
+                    int count = Math.min(buffer.remaining(), data.length) / frameSize;
+                    buffer.get(data, 0, count * frameSize);
+                    analyzer.process(mixer.mix(data, count), 0, count, position);
+                    position += count;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.ibasco.rpispectrum.display;
+
+import java.util.Arrays;
+
+/**
+ * Keeps a copy of the previously sent 1bpp frame buffer and determines which tile rows (8 pixel high strips) changed
+ * since then.
+ * <p>
+ * The frame buffer is expected in the u8g2 tile row order where each tile row occupies a contiguous block of
+ * {@code width} bytes. This holds for both the vertical and horizontal byte layouts used by u8g2 display drivers.
+ */
+public final class DirtyRegionTracker {
+
+    private final int tileRows;
+
+    private final boolean[] dirty;
+
+    private byte[] previous;
+
+    private boolean invalidated = true;
+
+    public DirtyRegionTracker(int height) {
+        this.tileRows = (height + 7) / 8;
+        this.dirty = new boolean[tileRows];
+    }
+
+    /**
+     * Compares the frame against the previous one, updates the dirty flags and remembers the frame for the next
+     * comparison.
+     *
+     * @param frame
+     *         The current frame buffer contents
+     *
+     * @return The number of tile rows that changed
+     */
+    public int update(byte[] frame) {
+        if (previous == null || previous.length != frame.length) {
+            previous = new byte[frame.length];
+            invalidated = true;
+        }
+        int rowBytes = frame.length / tileRows;
+        int count = 0;
+        for (int row = 0; row < tileRows; row++) {
+            int from = row * rowBytes;
+            int to = (row == tileRows - 1) ? frame.length : from + rowBytes;
+            boolean changed = invalidated || !rangeEquals(frame, previous, from, to);
+            if (changed) {
+                System.arraycopy(frame, from, previous, from, to - from);
+                count++;
+            }
+            dirty[row] = changed;
+        }
+        invalidated = false;
+        return count;
+    }
+
+    public boolean isDirty(int tileRow) {
+        return dirty[tileRow];
+    }
+
+    public int getTileRowCount() {
+        return tileRows;
+    }
+
+    /**
+     * Forces every tile row to be reported as dirty on the next update (e.g. after the display was cleared externally)
+     */
+    public void invalidate() {
+        invalidated = true;
+        Arrays.fill(dirty, true);
+    }
+
+    private static boolean rangeEquals(byte[] a, byte[] b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (a[i] != b[i])
+                return false;
+        }
+        return true;
+    }
+}
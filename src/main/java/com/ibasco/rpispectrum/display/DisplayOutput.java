@@ -0,0 +1,154 @@
+package com.ibasco.rpispectrum.display;
+
+import com.ibasco.rpispectrum.analysis.BandMapper;
+import com.ibasco.rpispectrum.analysis.BandSmoother;
+import com.ibasco.rpispectrum.metrics.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Renders a {@link SpectrumFeed} to a single display on a dedicated {@link RenderScheduler} thread.
+ * <p>
+ * Every output has its own band mapping, smoothing, renderer and frame rate, so displays of different sizes and
+ * layouts can show the same analysis. Outputs share nothing but the feed, which they only read: a display whose
+ * transfer stalls (slow bus, unresponsive network peer) renders fewer frames without affecting any other output.
+ */
+public class DisplayOutput implements AutoCloseable {
+
+    private final DisplaySink sink;
+
+    private final SpectrumFeed feed;
+
+    private final BandMapper mapper;
+
+    private final float[] spectrum;
+
+    private final float[] bands;
+
+    private final BandSmoother smoother;
+
+    private final RenderScheduler scheduler;
+
+    //Advances whenever there is something new to render, see nextFrameSequence()
+    private final AtomicLong frameSequence = new AtomicLong();
+
+    private long lastSpectrumPosition = Long.MIN_VALUE;
+
+    private volatile SpectrumRenderer renderer = new SpectrumRenderer();
+
+    private LatencyHistogram bandMappingTime = new LatencyHistogram();
+
+    private LatencyHistogram renderTime = new LatencyHistogram();
+
+    private LatencyHistogram sendBufferTime = new LatencyHistogram();
+
+    /**
+     * @param name
+     *         The name of the render thread
+     * @param mapper
+     *         The band layout of this output, must match the FFT size of the feed
+     */
+    public DisplayOutput(String name, DisplaySink sink, SpectrumFeed feed, BandMapper mapper) {
+        if (mapper.getBinCount() != feed.getHistory().getBinCount())
+            throw new IllegalArgumentException("Band mapper expects " + mapper.getBinCount() + " bins, the feed provides " + feed.getHistory().getBinCount());
+        checkBandCount(renderer, sink, mapper.getBandCount());
+        this.sink = sink;
+        this.feed = feed;
+        this.mapper = mapper;
+        this.spectrum = new float[feed.getHistory().getBinCount()];
+        this.bands = new float[mapper.getBandCount()];
+        this.smoother = new BandSmoother(bands.length);
+        smoother.setReference(feed.getReference());
+        this.scheduler = new RenderScheduler(name, this::renderFrame, this::nextFrameSequence, feed::isActive);
+    }
+
+    /**
+     * A new frame is due whenever playback reaches the next spectrum, and on every tick until the bars have come to
+     * rest. Only called from the render thread.
+     */
+    private long nextFrameSequence() {
+        long position = feed.getHistory().positionAt(feed.getPosition());
+        if (position != lastSpectrumPosition || !smoother.isSettled()) {
+            lastSpectrumPosition = position;
+            return frameSequence.incrementAndGet();
+        }
+        return frameSequence.get();
+    }
+
+    private static void checkBandCount(SpectrumRenderer renderer, DisplaySink sink, int bandCount) {
+        int maxBands = renderer.getMaxBands(sink.getWidth());
+        if (bandCount > maxBands)
+            throw new IllegalArgumentException("A display " + sink.getWidth() + " pixels wide fits at most " + maxBands + " bands, " + bandCount + " requested");
+    }
+
+    private void renderFrame() {
+        long time = System.nanoTime();
+        feed.getHistory().read(feed.getPosition(), spectrum);
+        mapper.map(spectrum, bands);
+        smoother.process(bands, time);
+        time = bandMappingTime.recordSince(time);
+
+        renderer.draw(sink, smoother.getLevels(), smoother.getPeaks(), (long) feed.getElapsed());
+        time = renderTime.recordSince(time);
+        sink.sendBuffer();
+        sendBufferTime.recordSince(time);
+    }
+
+    public void start() {
+        scheduler.start();
+    }
+
+    /**
+     * @see RenderScheduler#wakeup()
+     */
+    public void wakeup() {
+        scheduler.wakeup();
+    }
+
+    @Override
+    public void close() {
+        scheduler.close();
+    }
+
+    /**
+     * Records the stage timings of this output into the specified histograms (which may be shared between outputs)
+     * instead of its own. Must be called before the output is started.
+     */
+    public void setTimers(LatencyHistogram bandMappingTime, LatencyHistogram renderTime, LatencyHistogram sendBufferTime) {
+        this.bandMappingTime = bandMappingTime;
+        this.renderTime = renderTime;
+        this.sendBufferTime = sendBufferTime;
+    }
+
+    public DisplaySink getSink() {
+        return sink;
+    }
+
+    public BandMapper getMapper() {
+        return mapper;
+    }
+
+    /**
+     * @return The smoother of this output, to adjust its ballistics and level range
+     */
+    public BandSmoother getSmoother() {
+        return smoother;
+    }
+
+    public SpectrumRenderer getRenderer() {
+        return renderer;
+    }
+
+    public void setRenderer(SpectrumRenderer renderer) {
+        checkBandCount(renderer, sink, mapper.getBandCount());
+        this.renderer = renderer;
+    }
+
+    public RenderScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public void setTargetFps(int targetFps) {
+        scheduler.setTargetFps(targetFps);
+    }
+}
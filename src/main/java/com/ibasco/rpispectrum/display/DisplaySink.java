@@ -0,0 +1,22 @@
+package com.ibasco.rpispectrum.display;
+
+/**
+ * The minimal set of drawing operations the spectrum renderer needs from a display
+ */
+public interface DisplaySink {
+
+    int getWidth();
+
+    int getHeight();
+
+    void clearBuffer();
+
+    void drawBox(int x, int y, int width, int height);
+
+    void drawString(int x, int y, String text);
+
+    /**
+     * Pushes the contents of the frame buffer to the display
+     */
+    void sendBuffer();
+}
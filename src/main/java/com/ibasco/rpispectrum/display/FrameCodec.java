@@ -0,0 +1,137 @@
+package com.ibasco.rpispectrum.display;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encoding of 1bpp frame buffers for {@link StreamingDisplaySink} and {@link FrameReceiver}.
+ * <p>
+ * A connection starts with a hello ({@code int} magic, {@code short} version, {@code short} width, {@code short}
+ * height), followed by frames. Every frame has a header ({@code byte} type, {@code int} sequence number, {@code int}
+ * payload length) and a payload holding the run-length encoded frame buffer (keyframes) or the run-length encoded XOR
+ * of the frame buffer and the previous frame (delta frames). All values are big endian.
+ * <p>
+ * The run-length encoding is PackBits-like: a control byte {@code c < 128} is followed by {@code c + 1} literal bytes,
+ * a control byte {@code c >= 128} is followed by a single byte repeated {@code c - 126} times. Unchanged parts of a
+ * delta frame are zeroes, so a mostly static frame encodes to a few bytes per 129 bytes of frame buffer.
+ */
+public final class FrameCodec {
+
+    public static final int MAGIC = 0x53504652;
+
+    public static final short VERSION = 1;
+
+    public static final int HELLO_SIZE = 10;
+
+    public static final int HEADER_SIZE = 9;
+
+    public static final byte KEYFRAME = 0;
+
+    public static final byte DELTA = 1;
+
+    private static final int MAX_LITERAL = 128;
+
+    //Shorter runs are kept in literals, so the encoding never grows by more than one byte per literal block
+    private static final int MIN_RUN = 3;
+
+    private static final int MAX_RUN = 129;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * @return The largest possible payload for a frame buffer of the specified size
+     */
+    public static int getMaxEncodedSize(int frameSize) {
+        return frameSize + (frameSize + MAX_LITERAL - 1) / MAX_LITERAL;
+    }
+
+    public static void writeHello(ByteBuffer out, int width, int height) {
+        out.putInt(MAGIC).putShort(VERSION).putShort((short) width).putShort((short) height);
+    }
+
+    public static void writeHeader(ByteBuffer out, byte type, int sequence, int length) {
+        out.put(type).putInt(sequence).putInt(length);
+    }
+
+    /**
+     * Encodes a frame
+     *
+     * @param frame
+     *         The frame buffer
+     * @param reference
+     *         The previous frame buffer to encode the difference to, or {@code null} to encode a keyframe
+     * @param out
+     *         The destination, which needs at least {@link #getMaxEncodedSize(int)} bytes remaining
+     *
+     * @return The number of bytes written
+     */
+    public static int encode(byte[] frame, byte[] reference, ByteBuffer out) {
+        int start = out.position();
+        int n = frame.length;
+        int i = 0;
+        while (i < n) {
+            byte value = valueAt(frame, reference, i);
+            int run = 1;
+            while (i + run < n && run < MAX_RUN && valueAt(frame, reference, i + run) == value)
+                run++;
+            if (run >= MIN_RUN) {
+                out.put((byte) (run + 126));
+                out.put(value);
+                i += run;
+                continue;
+            }
+            //Collect literals up to the start of the next run
+            int end = i + run;
+            while (end < n && end - i < MAX_LITERAL && !isRunStart(frame, reference, end))
+                end++;
+            end = Math.min(end, i + MAX_LITERAL);
+            out.put((byte) (end - i - 1));
+            for (; i < end; i++)
+                out.put(valueAt(frame, reference, i));
+        }
+        return out.position() - start;
+    }
+
+    private static boolean isRunStart(byte[] frame, byte[] reference, int index) {
+        if (index + MIN_RUN > frame.length)
+            return false;
+        byte value = valueAt(frame, reference, index);
+        for (int i = 1; i < MIN_RUN; i++) {
+            if (valueAt(frame, reference, index + i) != value)
+                return false;
+        }
+        return true;
+    }
+
+    private static byte valueAt(byte[] frame, byte[] reference, int index) {
+        return reference == null ? frame[index] : (byte) (frame[index] ^ reference[index]);
+    }
+
+    /**
+     * Decodes a payload into the frame buffer, replacing its contents (keyframes) or applying the difference to it
+     * (delta frames)
+     *
+     * @param in
+     *         The payload, positioned at its start and limited to its end
+     */
+    public static void decode(ByteBuffer in, byte[] frame, boolean delta) throws IOException {
+        int i = 0;
+        while (in.hasRemaining()) {
+            int control = in.get() & 0xFF;
+            int count = control < MAX_LITERAL ? control + 1 : control - 126;
+            if (i + count > frame.length || (control < MAX_LITERAL ? in.remaining() < count : !in.hasRemaining()))
+                throw new IOException("Corrupt frame payload at offset " + i);
+            if (control < MAX_LITERAL) {
+                for (int end = i + count; i < end; i++)
+                    frame[i] = delta ? (byte) (frame[i] ^ in.get()) : in.get();
+            } else {
+                byte value = in.get();
+                for (int end = i + count; i < end; i++)
+                    frame[i] = delta ? (byte) (frame[i] ^ value) : value;
+            }
+        }
+        if (i != frame.length)
+            throw new IOException("Frame payload covers " + i + " of " + frame.length + " bytes");
+    }
+}
@@ -0,0 +1,146 @@
+package com.ibasco.rpispectrum.display;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Accepts frame streams from a {@link StreamingDisplaySink} (one connection at a time) and reconstructs the frame
+ * buffers
+ */
+public class FrameReceiver implements Runnable, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(FrameReceiver.class);
+
+    @FunctionalInterface
+    public interface FrameListener {
+        /**
+         * Called on the receiver thread for every decoded frame. The frame buffer is reused for the next frame.
+         *
+         * @param frame
+         *         The frame buffer in the u8g2 vertical tile layout
+         * @param encodedSize
+         *         The number of bytes the frame took on the wire, including its header
+         */
+        void onFrame(byte[] frame, int width, int height, int encodedSize);
+    }
+
+    private final InetSocketAddress address;
+
+    private final FrameListener listener;
+
+    private volatile ServerSocketChannel server;
+
+    private volatile boolean running;
+
+    private long frames;
+
+    private long bytesReceived;
+
+    public FrameReceiver(InetSocketAddress address, FrameListener listener) {
+        this.address = address;
+        this.listener = listener;
+    }
+
+    /**
+     * Binds the server socket, so a sender can connect once {@link #run()} is called
+     */
+    public void bind() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(address);
+        running = true;
+        log.info("Waiting for frame streams on {}", server.getLocalAddress());
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (server == null)
+                bind();
+            while (running) {
+                try (SocketChannel client = server.accept()) {
+                    log.info("Frame stream connected from {}", client.getRemoteAddress());
+                    receive(client);
+                } catch (ClosedChannelException e) {
+                    break;
+                } catch (IOException e) {
+                    log.info("Frame stream closed: {}", e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            log.error("Unable to receive frame streams on {}", address, e);
+        }
+    }
+
+    private void receive(SocketChannel client) throws IOException {
+        ByteBuffer hello = ByteBuffer.allocate(FrameCodec.HELLO_SIZE);
+        readFully(client, hello);
+        if (hello.getInt() != FrameCodec.MAGIC)
+            throw new IOException("Not a frame stream");
+        short version = hello.getShort();
+        if (version != FrameCodec.VERSION)
+            throw new IOException("Unsupported frame stream version: " + version);
+        int width = hello.getShort();
+        int height = hello.getShort();
+        byte[] frame = new byte[width * ((height + 7) / 8)];
+        ByteBuffer header = ByteBuffer.allocate(FrameCodec.HEADER_SIZE);
+        ByteBuffer payload = ByteBuffer.allocate(FrameCodec.getMaxEncodedSize(frame.length));
+        boolean synced = false;
+        while (running) {
+            header.clear();
+            readFully(client, header);
+            byte type = header.get();
+            header.getInt();
+            int length = header.getInt();
+            if (length < 0 || length > payload.capacity())
+                throw new IOException("Invalid frame payload length: " + length);
+            payload.clear().limit(length);
+            readFully(client, payload);
+            bytesReceived += FrameCodec.HEADER_SIZE + length;
+            //Deltas can only be applied once a keyframe has been received
+            if (type == FrameCodec.KEYFRAME)
+                synced = true;
+            else if (!synced)
+                continue;
+            FrameCodec.decode(payload, frame, type == FrameCodec.DELTA);
+            frames++;
+            listener.onFrame(frame, width, height, FrameCodec.HEADER_SIZE + length);
+        }
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0)
+                throw new EOFException("End of stream");
+        }
+        buffer.flip();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        if (server != null)
+            server.close();
+    }
+
+    /**
+     * @return The number of frames received
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return The number of frame bytes (headers and payloads) received
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+}
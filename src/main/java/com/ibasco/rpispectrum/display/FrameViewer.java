@@ -0,0 +1,107 @@
+package com.ibasco.rpispectrum.display;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local stand-in for the emulator: receives a frame stream from {@link StreamingDisplaySink} and shows it in a window,
+ * or only logs the stream statistics on a headless machine.
+ * <p>
+ * Usage: {@code FrameViewer [port] [scale]}
+ */
+public class FrameViewer {
+
+    private static final Logger log = LoggerFactory.getLogger(FrameViewer.class);
+
+    public static final int DEFAULT_PORT = 3580;
+
+    private static final int DEFAULT_SCALE = 4;
+
+    private final View view;
+
+    private long frames;
+
+    private long bytes;
+
+    private long lastReport = System.nanoTime();
+
+    private FrameViewer(int scale) {
+        this.view = GraphicsEnvironment.isHeadless() ? null : new View(scale);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int scale = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SCALE;
+        FrameViewer viewer = new FrameViewer(scale);
+        try (FrameReceiver receiver = new FrameReceiver(new InetSocketAddress(port), viewer::onFrame)) {
+            receiver.run();
+        }
+    }
+
+    private void onFrame(byte[] frame, int width, int height, int encodedSize) {
+        frames++;
+        bytes += encodedSize;
+        if (view != null) {
+            BufferedImage image = MemoryDisplaySink.toImage(frame, width, height);
+            SwingUtilities.invokeLater(() -> view.show(image));
+        }
+        long now = System.nanoTime();
+        if (now - lastReport >= TimeUnit.SECONDS.toNanos(1)) {
+            double seconds = (now - lastReport) / 1e9;
+            String stats = String.format("%.1f fps, %.0f bytes/frame, %.1f KB/s", frames / seconds, (double) bytes / frames, bytes / seconds / 1024);
+            if (view != null)
+                SwingUtilities.invokeLater(() -> view.setStats(stats));
+            else
+                log.info(stats);
+            frames = 0;
+            bytes = 0;
+            lastReport = now;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final class View extends JComponent {
+
+        private final int scale;
+
+        private final JFrame frame;
+
+        private BufferedImage image;
+
+        private View(int scale) {
+            this.scale = scale;
+            this.frame = new JFrame("Spectrum Frame Viewer");
+            frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
+            frame.add(this);
+            setPreferredSize(new Dimension(128 * scale, 64 * scale));
+            frame.pack();
+            frame.setVisible(true);
+        }
+
+        private void show(BufferedImage image) {
+            boolean resized = this.image == null || this.image.getWidth() != image.getWidth() || this.image.getHeight() != image.getHeight();
+            this.image = image;
+            if (resized) {
+                setPreferredSize(new Dimension(image.getWidth() * scale, image.getHeight() * scale));
+                frame.pack();
+            }
+            repaint();
+        }
+
+        private void setStats(String stats) {
+            frame.setTitle("Spectrum Frame Viewer - " + stats);
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            if (image != null)
+                g.drawImage(image, 0, 0, image.getWidth() * scale, image.getHeight() * scale, null);
+        }
+    }
+}
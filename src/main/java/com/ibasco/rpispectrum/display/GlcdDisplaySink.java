@@ -0,0 +1,134 @@
+package com.ibasco.rpispectrum.display;
+
+import com.ibasco.ucgdisplay.drivers.glcd.GlcdBaseDriver;
+
+/**
+ * A {@link DisplaySink} backed by a ucgdisplay GLCD driver (physical display or remote emulator).
+ * <p>
+ * Frames are diffed against the previously sent frame and only the tile rows that changed are pushed through the
+ * driver's partial update path. When a large portion of the screen changed, a full buffer transfer is issued instead.
+ */
+public class GlcdDisplaySink implements DisplaySink {
+
+    public static final float DEFAULT_FULL_UPDATE_RATIO = 0.5f;
+
+    private final GlcdBaseDriver driver;
+
+    private final DirtyRegionTracker tracker;
+
+    private float fullUpdateRatio = DEFAULT_FULL_UPDATE_RATIO;
+
+    private long fullUpdates;
+
+    private long partialUpdates;
+
+    private long unchangedFrames;
+
+    private long bytesSent;
+
+    public GlcdDisplaySink(GlcdBaseDriver driver) {
+        this.driver = driver;
+        this.tracker = new DirtyRegionTracker(driver.getHeight());
+    }
+
+    public GlcdBaseDriver getDriver() {
+        return driver;
+    }
+
+    @Override
+    public int getWidth() {
+        return driver.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return driver.getHeight();
+    }
+
+    @Override
+    public void clearBuffer() {
+        driver.clearBuffer();
+    }
+
+    @Override
+    public void drawBox(int x, int y, int width, int height) {
+        driver.drawBox(x, y, width, height);
+    }
+
+    @Override
+    public void drawString(int x, int y, String text) {
+        driver.drawString(x, y, text);
+    }
+
+    @Override
+    public void sendBuffer() {
+        byte[] buffer = driver.getBuffer();
+        int tileRows = tracker.getTileRowCount();
+        int dirtyRows = tracker.update(buffer);
+        if (dirtyRows == 0) {
+            unchangedFrames++;
+            return;
+        }
+        int rowBytes = buffer.length / tileRows;
+        if (dirtyRows >= tileRows * fullUpdateRatio) {
+            driver.sendBuffer();
+            bytesSent += buffer.length;
+            fullUpdates++;
+            return;
+        }
+        //Push each contiguous run of dirty tile rows as a single area update
+        int tileWidth = (driver.getWidth() + 7) / 8;
+        int row = 0;
+        while (row < tileRows) {
+            if (!tracker.isDirty(row)) {
+                row++;
+                continue;
+            }
+            int start = row;
+            while (row < tileRows && tracker.isDirty(row))
+                row++;
+            driver.updateDisplay(0, start, tileWidth, row - start);
+            bytesSent += (long) (row - start) * rowBytes;
+        }
+        partialUpdates++;
+    }
+
+    /**
+     * Forces the next frame to be sent in full
+     */
+    public void invalidate() {
+        tracker.invalidate();
+    }
+
+    public float getFullUpdateRatio() {
+        return fullUpdateRatio;
+    }
+
+    /**
+     * @param fullUpdateRatio
+     *         The fraction of changed tile rows (0.0 - 1.0) at or above which the whole buffer is sent instead of the
+     *         changed rows only
+     */
+    public void setFullUpdateRatio(float fullUpdateRatio) {
+        this.fullUpdateRatio = fullUpdateRatio;
+    }
+
+    public long getFullUpdates() {
+        return fullUpdates;
+    }
+
+    public long getPartialUpdates() {
+        return partialUpdates;
+    }
+
+    public long getUnchangedFrames() {
+        return unchangedFrames;
+    }
+
+    /**
+     * @return The total number of frame buffer bytes pushed to the display
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+}
@@ -0,0 +1,305 @@
+package com.ibasco.rpispectrum.display;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * A {@link DisplaySink} that draws into a 1bpp frame buffer in memory, for running and benchmarking the render path
+ * without a display attached.
+ * <p>
+ * The buffer uses the u8g2 vertical tile layout (one byte per column of every 8 pixel high tile row, least significant
+ * bit at the top). Sent frames are run through the same dirty tile row accounting as {@link GlcdDisplaySink}, so
+ * {@link #getBytesSent()} reports what would have gone over the bus. Every sent frame can optionally be written to a
+ * directory as a PBM or PNG image. Text is drawn with a built-in 5x7 font covering digits and time punctuation (other
+ * characters are drawn as an empty box), anchored at the baseline like u8g2 does.
+ */
+public class MemoryDisplaySink implements DisplaySink {
+
+    public enum ImageFormat {
+        PBM("pbm"),
+        PNG("png");
+
+        private final String extension;
+
+        ImageFormat(String extension) {
+            this.extension = extension;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    private static final int GLYPH_WIDTH = 5;
+
+    private static final int GLYPH_HEIGHT = 7;
+
+    private static final int GLYPH_ADVANCE = GLYPH_WIDTH + 1;
+
+    private static final String GLYPH_CHARS = "0123456789:-./ ";
+
+    //Columns of each glyph, least significant bit at the top
+    private static final byte[][] GLYPHS = {
+            {0x3E, 0x51, 0x49, 0x45, 0x3E},
+            {0x00, 0x42, 0x7F, 0x40, 0x00},
+            {0x42, 0x61, 0x51, 0x49, 0x46},
+            {0x21, 0x41, 0x45, 0x4B, 0x31},
+            {0x18, 0x14, 0x12, 0x7F, 0x10},
+            {0x27, 0x45, 0x45, 0x45, 0x39},
+            {0x3C, 0x4A, 0x49, 0x49, 0x30},
+            {0x01, 0x71, 0x09, 0x05, 0x03},
+            {0x36, 0x49, 0x49, 0x49, 0x36},
+            {0x06, 0x49, 0x49, 0x29, 0x1E},
+            {0x00, 0x36, 0x36, 0x00, 0x00},
+            {0x08, 0x08, 0x08, 0x08, 0x08},
+            {0x00, 0x60, 0x60, 0x00, 0x00},
+            {0x20, 0x10, 0x08, 0x04, 0x02},
+            {0x00, 0x00, 0x00, 0x00, 0x00}
+    };
+
+    private static final byte[] MISSING_GLYPH = {0x7F, 0x41, 0x41, 0x41, 0x7F};
+
+    private final int width;
+
+    private final int height;
+
+    private final byte[] buffer;
+
+    private final DirtyRegionTracker tracker;
+
+    private float fullUpdateRatio = GlcdDisplaySink.DEFAULT_FULL_UPDATE_RATIO;
+
+    private Path dumpDirectory;
+
+    private ImageFormat dumpFormat = ImageFormat.PNG;
+
+    private long frames;
+
+    private long fullUpdates;
+
+    private long partialUpdates;
+
+    private long unchangedFrames;
+
+    private long bytesSent;
+
+    public MemoryDisplaySink(int width, int height) {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Display dimensions must be greater than zero");
+        this.width = width;
+        this.height = height;
+        this.buffer = new byte[width * ((height + 7) / 8)];
+        this.tracker = new DirtyRegionTracker(height);
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void clearBuffer() {
+        Arrays.fill(buffer, (byte) 0);
+    }
+
+    @Override
+    public void drawBox(int x, int y, int width, int height) {
+        int x0 = Math.max(0, x), x1 = Math.min(this.width, x + width);
+        int y0 = Math.max(0, y), y1 = Math.min(this.height, y + height);
+        if (x0 >= x1 || y0 >= y1)
+            return;
+        //Fill one tile row at a time with the bits of the rows it covers
+        for (int top = y0 & ~7; top < y1; top += 8) {
+            int from = Math.max(y0, top) - top;
+            int to = Math.min(y1, top + 8) - top;
+            byte mask = (byte) ((0xFF << from) & (0xFF >>> (8 - to)));
+            int offset = (top >> 3) * this.width;
+            for (int col = x0; col < x1; col++)
+                buffer[offset + col] |= mask;
+        }
+    }
+
+    @Override
+    public void drawString(int x, int y, String text) {
+        int top = y - GLYPH_HEIGHT;
+        for (int i = 0; i < text.length(); i++, x += GLYPH_ADVANCE) {
+            int index = GLYPH_CHARS.indexOf(text.charAt(i));
+            byte[] glyph = index < 0 ? MISSING_GLYPH : GLYPHS[index];
+            for (int col = 0; col < GLYPH_WIDTH; col++) {
+                for (int row = 0; row < GLYPH_HEIGHT; row++) {
+                    if ((glyph[col] & (1 << row)) != 0)
+                        setPixel(x + col, top + row);
+                }
+            }
+        }
+    }
+
+    private void setPixel(int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height)
+            return;
+        buffer[(y >> 3) * width + x] |= (byte) (1 << (y & 7));
+    }
+
+    public boolean getPixel(int x, int y) {
+        return (buffer[(y >> 3) * width + x] & (1 << (y & 7))) != 0;
+    }
+
+    /**
+     * Accounts for the bus transfer the frame would need and writes it to the dump directory if one is set
+     */
+    @Override
+    public void sendBuffer() {
+        frames++;
+        int tileRows = tracker.getTileRowCount();
+        int dirtyRows = tracker.update(buffer);
+        if (dirtyRows == 0) {
+            unchangedFrames++;
+        } else if (dirtyRows >= tileRows * fullUpdateRatio) {
+            bytesSent += buffer.length;
+            fullUpdates++;
+        } else {
+            bytesSent += (long) dirtyRows * width;
+            partialUpdates++;
+        }
+        if (dumpDirectory != null) {
+            Path file = dumpDirectory.resolve(String.format("frame-%06d.%s", frames, dumpFormat.getExtension()));
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+                writeImage(out, dumpFormat);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Writes the current frame buffer as an image, set pixels are black
+     */
+    public void writeImage(OutputStream out, ImageFormat format) throws IOException {
+        if (format == ImageFormat.PNG) {
+            ImageIO.write(toImage(), "png", out);
+            return;
+        }
+        //Binary PBM (P4): rows of packed pixels, most significant bit first
+        out.write(String.format("P4\n%d %d\n", width, height).getBytes(StandardCharsets.US_ASCII));
+        byte[] row = new byte[(width + 7) / 8];
+        for (int y = 0; y < height; y++) {
+            Arrays.fill(row, (byte) 0);
+            for (int x = 0; x < width; x++) {
+                if (getPixel(x, y))
+                    row[x >> 3] |= (byte) (0x80 >>> (x & 7));
+            }
+            out.write(row);
+        }
+    }
+
+    public BufferedImage toImage() {
+        return toImage(buffer, width, height);
+    }
+
+    /**
+     * Converts a frame buffer in the u8g2 vertical tile layout to an image, set pixels are black
+     */
+    public static BufferedImage toImage(byte[] buffer, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY);
+        WritableRaster raster = image.getRaster();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++)
+                raster.setSample(x, y, 0, (buffer[(y >> 3) * width + x] & (1 << (y & 7))) != 0 ? 0 : 1);
+        }
+        return image;
+    }
+
+    /**
+     * @return A copy of the frame buffer in the u8g2 vertical tile layout
+     */
+    public byte[] getBuffer() {
+        return buffer.clone();
+    }
+
+    /**
+     * @return The size of the frame buffer in bytes
+     */
+    public int getFrameSize() {
+        return buffer.length;
+    }
+
+    /**
+     * @return The frame buffer itself, for subclasses that transfer it somewhere
+     */
+    protected byte[] getFrameBuffer() {
+        return buffer;
+    }
+
+    public Path getDumpDirectory() {
+        return dumpDirectory;
+    }
+
+    /**
+     * @param dumpDirectory
+     *         Directory every sent frame is written to (as {@code frame-<number>.<extension>}), or {@code null} to
+     *         disable
+     * @param format
+     *         The image format of the frames
+     */
+    public void setFrameDump(Path dumpDirectory, ImageFormat format) throws IOException {
+        if (dumpDirectory != null)
+            Files.createDirectories(dumpDirectory);
+        this.dumpDirectory = dumpDirectory;
+        this.dumpFormat = format;
+    }
+
+    public ImageFormat getDumpFormat() {
+        return dumpFormat;
+    }
+
+    public float getFullUpdateRatio() {
+        return fullUpdateRatio;
+    }
+
+    /**
+     * @see GlcdDisplaySink#setFullUpdateRatio(float)
+     */
+    public void setFullUpdateRatio(float fullUpdateRatio) {
+        this.fullUpdateRatio = fullUpdateRatio;
+    }
+
+    /**
+     * @return The number of frames sent
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getFullUpdates() {
+        return fullUpdates;
+    }
+
+    public long getPartialUpdates() {
+        return partialUpdates;
+    }
+
+    public long getUnchangedFrames() {
+        return unchangedFrames;
+    }
+
+    /**
+     * @return The total number of frame buffer bytes a display would have been sent
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+}
@@ -0,0 +1,195 @@
+package com.ibasco.rpispectrum.display;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Runs a render task on its own thread at a fixed target frame rate.
+ * <p>
+ * Frames are paced against absolute deadlines so the rate does not drift with the time spent rendering. A frame is
+ * skipped when the source sequence number has not changed since the last rendered frame, and the thread parks while
+ * the source reports itself inactive (e.g. playback paused or stopped) until {@link #wakeup()} is called or the idle
+ * timeout expires.
+ */
+public class RenderScheduler implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(RenderScheduler.class);
+
+    public static final int DEFAULT_FPS = 30;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+    private static final double FPS_SMOOTHING = 0.1;
+
+    private final String name;
+
+    private final Runnable task;
+
+    private final LongSupplier sequence;
+
+    private final BooleanSupplier active;
+
+    private volatile int targetFps = DEFAULT_FPS;
+
+    private volatile boolean running;
+
+    private volatile Thread thread;
+
+    private volatile long renderedFrames;
+
+    private volatile long skippedFrames;
+
+    private volatile long lateFrames;
+
+    private volatile double achievedFps;
+
+    /**
+     * @param name
+     *         The name of the render thread
+     * @param task
+     *         The task that renders a single frame
+     * @param sequence
+     *         Supplies the sequence number of the latest available data, a frame is only rendered when it changes
+     * @param active
+     *         Returns {@code false} while there is nothing to render (e.g. playback paused)
+     */
+    public RenderScheduler(String name, Runnable task, LongSupplier sequence, BooleanSupplier active) {
+        this.name = name;
+        this.task = task;
+        this.sequence = sequence;
+        this.active = active;
+    }
+
+    public int getTargetFps() {
+        return targetFps;
+    }
+
+    public void setTargetFps(int targetFps) {
+        if (targetFps <= 0)
+            throw new IllegalArgumentException("Target FPS must be greater than zero");
+        this.targetFps = targetFps;
+    }
+
+    public long getRenderedFrames() {
+        return renderedFrames;
+    }
+
+    public long getSkippedFrames() {
+        return skippedFrames;
+    }
+
+    /**
+     * @return The number of frames whose deadline was missed by more than one frame period
+     */
+    public long getLateFrames() {
+        return lateFrames;
+    }
+
+    /**
+     * @return The smoothed rate of rendered frames per second, zero while idle
+     */
+    public double getAchievedFps() {
+        return achievedFps;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        Thread t = new Thread(this::run, name);
+        t.setDaemon(true);
+        thread = t;
+        t.start();
+        log.info("Render scheduler '{}' started (target fps: {})", name, targetFps);
+    }
+
+    /**
+     * Wakes the render thread up if it is idling, e.g. when playback is resumed
+     */
+    public void wakeup() {
+        Thread t = thread;
+        if (t != null)
+            LockSupport.unpark(t);
+    }
+
+    @Override
+    public void close() {
+        Thread t;
+        synchronized (this) {
+            if (!running)
+                return;
+            running = false;
+            t = thread;
+            thread = null;
+        }
+        if (t != null) {
+            LockSupport.unpark(t);
+            if (t != Thread.currentThread()) {
+                try {
+                    t.join(TimeUnit.SECONDS.toMillis(1));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        log.info("Render scheduler '{}' stopped (rendered: {}, skipped: {}, late: {})", name, renderedFrames, skippedFrames, lateFrames);
+    }
+
+    private void run() {
+        long lastSequence = Long.MIN_VALUE;
+        long deadline = System.nanoTime();
+        long lastRendered = 0;
+        while (running) {
+            if (!active.getAsBoolean()) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                //Start a fresh schedule once we become active again
+                deadline = System.nanoTime();
+                lastSequence = Long.MIN_VALUE;
+                lastRendered = 0;
+                achievedFps = 0;
+                continue;
+            }
+
+            long current = sequence.getAsLong();
+            if (current != lastSequence) {
+                lastSequence = current;
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.error("Error occurred while rendering frame", e);
+                }
+                renderedFrames++;
+                long now = System.nanoTime();
+                if (lastRendered != 0 && now > lastRendered) {
+                    double fps = TimeUnit.SECONDS.toNanos(1) / (double) (now - lastRendered);
+                    achievedFps = achievedFps == 0 ? fps : achievedFps + (fps - achievedFps) * FPS_SMOOTHING;
+                }
+                lastRendered = now;
+            } else {
+                skippedFrames++;
+            }
+
+            long period = TimeUnit.SECONDS.toNanos(1) / targetFps;
+            deadline += period;
+            long now = System.nanoTime();
+            if (now - deadline > period) {
+                //Too far behind, do not try to catch up with a burst of frames
+                lateFrames++;
+                deadline = now;
+                continue;
+            }
+            long remaining;
+            while (running && (remaining = deadline - System.nanoTime()) > 0)
+                LockSupport.parkNanos(this, remaining);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.ibasco.rpispectrum.display;
+
+import com.ibasco.rpispectrum.analysis.SpectrumHistory;
+
+import java.util.function.BooleanSupplier;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * The analysis output shared by all {@link DisplayOutput}s: the spectrum history the analyzer publishes into once,
+ * along with the clock the outputs pick the spectrum to show by.
+ * <p>
+ * The history works as a latest-value mailbox for any number of readers. Publishing never waits for a reader, and a
+ * reader that falls behind simply finds newer spectra the next time it looks, so a slow output drops its own frames
+ * without holding back the audio thread or the other outputs.
+ */
+public final class SpectrumFeed {
+
+    private final SpectrumHistory history;
+
+    private final LongSupplier position;
+
+    private final DoubleSupplier elapsed;
+
+    private final BooleanSupplier active;
+
+    private final float reference;
+
+    /**
+     * @param history
+     *         The spectra published by the analyzer
+     * @param position
+     *         Supplies the stream frame position to display the spectrum of (i.e. the one currently audible)
+     * @param elapsed
+     *         Supplies the elapsed time in seconds shown by the outputs
+     * @param active
+     *         Returns {@code false} while there is nothing to render (e.g. playback paused)
+     * @param reference
+     *         The magnitude that corresponds to 0 dB (see {@link com.ibasco.rpispectrum.analysis.BandSmoother#setReference(float)})
+     */
+    public SpectrumFeed(SpectrumHistory history, LongSupplier position, DoubleSupplier elapsed, BooleanSupplier active, float reference) {
+        this.history = history;
+        this.position = position;
+        this.elapsed = elapsed;
+        this.active = active;
+        this.reference = reference;
+    }
+
+    public SpectrumHistory getHistory() {
+        return history;
+    }
+
+    public long getPosition() {
+        return position.getAsLong();
+    }
+
+    public double getElapsed() {
+        return elapsed.getAsDouble();
+    }
+
+    public boolean isActive() {
+        return active.getAsBoolean();
+    }
+
+    public float getReference() {
+        return reference;
+    }
+}
@@ -0,0 +1,89 @@
+package com.ibasco.rpispectrum.display;
+
+/**
+ * Draws a frame of spectrum bars along with the elapsed playback time
+ */
+public class SpectrumRenderer {
+
+    private int spacing = 2;
+
+    private long lastElapsed = Long.MIN_VALUE;
+
+    private String elapsedText = "";
+
+    public int getSpacing() {
+        return spacing;
+    }
+
+    public void setSpacing(int spacing) {
+        if (spacing < 0)
+            throw new IllegalArgumentException("Spacing must not be negative");
+        this.spacing = spacing;
+    }
+
+    /**
+     * @return The number of bars that fit on a display of the specified width, every bar needs at least one pixel
+     * plus the spacing
+     */
+    public int getMaxBands(int width) {
+        return width / (spacing + 1);
+    }
+
+    /**
+     * Renders a single frame and sends it to the display
+     *
+     * @see #draw(DisplaySink, float[], float[], long)
+     */
+    public void render(DisplaySink sink, float[] levels, float[] peaks, long elapsedSeconds) {
+        draw(sink, levels, peaks, elapsedSeconds);
+        sink.sendBuffer();
+    }
+
+    /**
+     * Draws a single frame into the buffer of the display without sending it
+     *
+     * @param sink
+     *         The display to draw on
+     * @param levels
+     *         The band levels to draw (0.0 - 1.0 of the display height), one bar per band
+     * @param peaks
+     *         The peak levels drawn as a marker above each bar, or {@code null} to omit them
+     * @param elapsedSeconds
+     *         The elapsed playback time in seconds
+     */
+    public void draw(DisplaySink sink, float[] levels, float[] peaks, long elapsedSeconds) {
+        int width = sink.getWidth();
+        int height = sink.getHeight();
+        int total = levels.length;
+        int barWidth = width / total;
+
+        //Only re-format the elapsed time when the displayed second changes
+        if (elapsedSeconds != lastElapsed) {
+            elapsedText = formatDuration(elapsedSeconds);
+            lastElapsed = elapsedSeconds;
+        }
+
+        sink.clearBuffer();
+        sink.drawString(width / 2, 20, elapsedText);
+        for (int i = 0; i < total; i++) {
+            int x = i * barWidth;
+            int barHeight = (int) (levels[i] * height);
+            if (barHeight > 0)
+                sink.drawBox(x, height - barHeight, barWidth - spacing, barHeight);
+            if (peaks != null) {
+                int peakY = height - 1 - (int) (peaks[i] * (height - 1));
+                sink.drawBox(x, peakY, barWidth - spacing, 1);
+            }
+        }
+    }
+
+    private static String formatDuration(long seconds) {
+        long absSeconds = Math.abs(seconds);
+        String positive = String.format(
+                "%d:%02d:%02d",
+                absSeconds / 3600,
+                (absSeconds % 3600) / 60,
+                absSeconds % 60);
+        return seconds < 0 ? "-" + positive : positive;
+    }
+}
@@ -0,0 +1,221 @@
+package com.ibasco.rpispectrum.display;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link MemoryDisplaySink} that streams every changed frame to a {@link FrameReceiver} (e.g. the {@link FrameViewer})
+ * over TCP, as an alternative to driving the emulator with draw calls.
+ * <p>
+ * Frames are sent as run-length encoded XOR deltas against the previously sent frame, with a keyframe on connect and
+ * at a fixed interval (see {@link FrameCodec}). Unchanged frames are not sent at all. The socket is non-blocking: the
+ * hello, frame header and payload are handed to the channel in a single gathering write, and if the network can not
+ * keep up the data that is still pending is flushed first and new frames are dropped until it has been written, so
+ * the render thread never waits on the network and every delta still applies to the frame the receiver has. A lost
+ * connection is retried in the background of subsequent frames.
+ */
+public class StreamingDisplaySink extends MemoryDisplaySink {
+
+    private static final Logger log = LoggerFactory.getLogger(StreamingDisplaySink.class);
+
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 120;
+
+    private static final long RECONNECT_INTERVAL = TimeUnit.SECONDS.toNanos(2);
+
+    private final InetSocketAddress address;
+
+    private final byte[] reference;
+
+    private final ByteBuffer hello = ByteBuffer.allocateDirect(FrameCodec.HELLO_SIZE);
+
+    private final ByteBuffer header = ByteBuffer.allocateDirect(FrameCodec.HEADER_SIZE);
+
+    private final ByteBuffer payload;
+
+    private final ByteBuffer[] pending;
+
+    private SocketChannel channel;
+
+    private boolean connected;
+
+    private long lastConnectAttempt;
+
+    private int keyframeInterval = DEFAULT_KEYFRAME_INTERVAL;
+
+    private int framesSinceKeyframe;
+
+    private boolean keyframeRequired = true;
+
+    private int sequence;
+
+    private long streamedFrames;
+
+    private long keyframes;
+
+    private long droppedFrames;
+
+    private long bytesStreamed;
+
+    public StreamingDisplaySink(int width, int height, InetSocketAddress address) {
+        super(width, height);
+        this.address = address;
+        int frameSize = getFrameBuffer().length;
+        this.reference = new byte[frameSize];
+        this.payload = ByteBuffer.allocateDirect(FrameCodec.getMaxEncodedSize(frameSize));
+        FrameCodec.writeHello(hello, width, height);
+        hello.flip();
+        header.limit(0);
+        payload.limit(0);
+        this.pending = new ByteBuffer[] {hello, header, payload};
+    }
+
+    @Override
+    public void sendBuffer() {
+        super.sendBuffer();
+        try {
+            if (!connect())
+                return;
+            if (!flush()) {
+                droppedFrames++;
+                return;
+            }
+            byte[] frame = getFrameBuffer();
+            boolean keyframe = keyframeRequired || framesSinceKeyframe >= keyframeInterval;
+            if (!keyframe && Arrays.equals(frame, reference))
+                return;
+
+            payload.clear();
+            int length = FrameCodec.encode(frame, keyframe ? null : reference, payload);
+            payload.flip();
+            header.clear();
+            FrameCodec.writeHeader(header, keyframe ? FrameCodec.KEYFRAME : FrameCodec.DELTA, sequence++, length);
+            header.flip();
+            System.arraycopy(frame, 0, reference, 0, frame.length);
+            if (keyframe) {
+                keyframes++;
+                framesSinceKeyframe = 0;
+                keyframeRequired = false;
+            } else {
+                framesSinceKeyframe++;
+            }
+            streamedFrames++;
+            flush();
+        } catch (IOException e) {
+            if (connected)
+                log.warn("Frame stream to {} lost: {}", address, e.getMessage());
+            else
+                log.debug("Unable to connect frame stream to {}: {}", address, e.getMessage());
+            disconnect();
+        }
+    }
+
+    /**
+     * @return {@code true} if the connection is established, otherwise a (re)connect is started or continued
+     */
+    private boolean connect() throws IOException {
+        if (connected)
+            return true;
+        if (channel == null) {
+            long now = System.nanoTime();
+            if (lastConnectAttempt != 0 && now - lastConnectAttempt < RECONNECT_INTERVAL)
+                return false;
+            lastConnectAttempt = now;
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.connect(address);
+        }
+        if (channel.isConnectionPending() && !channel.finishConnect())
+            return false;
+        log.info("Streaming frames to {}", address);
+        connected = true;
+        hello.rewind();
+        header.limit(0);
+        payload.limit(0);
+        keyframeRequired = true;
+        return true;
+    }
+
+    /**
+     * Writes as much of the pending data as the socket accepts
+     *
+     * @return {@code true} if nothing is pending anymore
+     */
+    private boolean flush() throws IOException {
+        if (!payload.hasRemaining() && !header.hasRemaining() && !hello.hasRemaining())
+            return true;
+        bytesStreamed += channel.write(pending);
+        return !payload.hasRemaining() && !header.hasRemaining() && !hello.hasRemaining();
+    }
+
+    private void disconnect() {
+        connected = false;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Error closing frame stream", e);
+            }
+            channel = null;
+        }
+    }
+
+    public void close() {
+        disconnect();
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public int getKeyframeInterval() {
+        return keyframeInterval;
+    }
+
+    /**
+     * @param keyframeInterval
+     *         The number of delta frames sent between two keyframes
+     */
+    public void setKeyframeInterval(int keyframeInterval) {
+        if (keyframeInterval <= 0)
+            throw new IllegalArgumentException("Keyframe interval must be greater than zero");
+        this.keyframeInterval = keyframeInterval;
+    }
+
+    /**
+     * @return The number of frames sent over the stream
+     */
+    public long getStreamedFrames() {
+        return streamedFrames;
+    }
+
+    public long getKeyframes() {
+        return keyframes;
+    }
+
+    /**
+     * @return The number of frames that were not sent because the connection was still busy
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * @return The total number of bytes written to the stream, including the protocol overhead
+     */
+    public long getBytesStreamed() {
+        return bytesStreamed;
+    }
+}
@@ -0,0 +1,235 @@
+package com.ibasco.rpispectrum.engine;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Analyzes any number of {@link AnalysisSource}s in one process on a shared pool of worker threads.
+ * <p>
+ * The pool is bounded (by default to the number of processors) instead of running a decoder thread per source, so
+ * adding sources adds work, not threads. Every source is driven by a chain of tasks of one period each: a task reads
+ * and analyzes a period and schedules the next one for when its period is due. Pending tasks are ordered by due time,
+ * so the pool serves the source that has waited the longest first and a source that is always ready (e.g. a file
+ * analyzed as fast as possible) only gets the time that is left after the sources that are due.
+ * <p>
+ * The busy time of all sources is used to estimate how many real time streams of the measured cost the pool could
+ * sustain, see {@link #getCapacity()}.
+ */
+public class AnalysisEngine implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(AnalysisEngine.class);
+
+    private final int threads;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    private final List<AnalysisSource> sources = new CopyOnWriteArrayList<>();
+
+    private final long startNanos = System.nanoTime();
+
+    private ScheduledExecutorService logExecutor;
+
+    public AnalysisEngine() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads
+     *         The number of worker threads shared by all sources
+     */
+    public AnalysisEngine(int threads) {
+        if (threads <= 0)
+            throw new IllegalArgumentException("Thread count must be greater than zero");
+        this.threads = threads;
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ScheduledThreadPoolExecutor(threads, r -> {
+            Thread thread = new Thread(r, "analysis-engine-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MAX_PRIORITY);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Opens the source on a worker thread and starts analyzing it
+     */
+    public void add(AnalysisSource source) {
+        if (source.getState() != AnalysisSource.State.NEW)
+            throw new IllegalStateException("Source " + source + " has already been started");
+        sources.add(source);
+        executor.execute(() -> {
+            try {
+                source.open();
+                log.info("Analyzing {} ({})", source, source.getFormat());
+            } catch (Exception e) {
+                failed(source, e);
+                return;
+            }
+            step(source);
+        });
+    }
+
+    /**
+     * Stops analyzing the source and closes it
+     */
+    public void remove(AnalysisSource source) {
+        if (sources.remove(source)) {
+            log.info("Removed {}", source);
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    private void step(AnalysisSource source) {
+        //Removed sources are closed on the thread that owns them, between two steps
+        if (!sources.contains(source)) {
+            source.close();
+            synchronized (this) {
+                notifyAll();
+            }
+            return;
+        }
+        try {
+            long delay = source.step();
+            if (delay < 0) {
+                finished(source);
+                return;
+            }
+            executor.schedule(() -> step(source), delay, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            log.debug("Engine shut down, {} stopped", source);
+        } catch (Exception e) {
+            failed(source, e);
+        }
+    }
+
+    private void finished(AnalysisSource source) {
+        source.close();
+        log.info("Finished {} ({} s of audio)", source, String.format("%.1f", source.getAudioSeconds()));
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    private void failed(AnalysisSource source, Exception e) {
+        log.error("Failed to analyze {}", source, e);
+        source.fail(e);
+        source.close();
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Blocks until every source has finished or failed. Sources that never end (inputs, looped files) have to be
+     * removed first.
+     */
+    public synchronized void awaitCompletion() throws InterruptedException {
+        while (isActive())
+            wait();
+    }
+
+    private boolean isActive() {
+        for (AnalysisSource source : sources) {
+            AnalysisSource.State state = source.getState();
+            if (state == AnalysisSource.State.NEW || state == AnalysisSource.State.RUNNING)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Logs a summary of the engine and every source at a fixed rate on a daemon thread
+     */
+    public synchronized void startLogging(long period, TimeUnit unit) {
+        if (logExecutor != null)
+            return;
+        logExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "analysis-engine-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        logExecutor.scheduleAtFixedRate(() -> log.info(summary()), period, period, unit);
+    }
+
+    /**
+     * @return A summary of the engine followed by one line per source, timings are given as median/p99/max
+     */
+    public String summary() {
+        StringBuilder summary = new StringBuilder(String.format("%d source(s) on %d thread(s), load: %.0f%%, capacity: %.1f real time streams",
+                sources.size(), threads, getLoad() * 100, getCapacity()));
+        for (AnalysisSource source : sources) {
+            summary.append(String.format("%n  %s: %s, %.1f s of audio, step: %s, lag: %s, late steps: %d",
+                    source, source.getState(), source.getAudioSeconds(), source.getStepTime().snapshot(), source.getLagTime().snapshot(), source.getLateSteps()));
+        }
+        return summary.toString();
+    }
+
+    /**
+     * @return The share of the pool capacity used by the sources since the engine was created
+     */
+    public double getLoad() {
+        long elapsed = System.nanoTime() - startNanos;
+        return elapsed == 0 ? 0 : (double) getBusyNanos() / elapsed / threads;
+    }
+
+    /**
+     * @return The number of real time streams the pool could sustain if every stream cost as much as the average of
+     * the sources analyzed so far, an upper bound that leaves no headroom for scheduling jitter
+     */
+    public double getCapacity() {
+        double audioSeconds = 0;
+        for (AnalysisSource source : sources)
+            audioSeconds += source.getAudioSeconds();
+        long busy = getBusyNanos();
+        return busy == 0 ? 0 : threads * audioSeconds / (busy / 1e9);
+    }
+
+    private long getBusyNanos() {
+        long busy = 0;
+        for (AnalysisSource source : sources)
+            busy += source.getBusyNanos();
+        return busy;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public List<AnalysisSource> getSources() {
+        return Collections.unmodifiableList(sources);
+    }
+
+    /**
+     * Stops the workers and closes all sources
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (logExecutor != null) {
+                logExecutor.shutdownNow();
+                logExecutor = null;
+            }
+        }
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (AnalysisSource source : sources)
+            source.close();
+    }
+}
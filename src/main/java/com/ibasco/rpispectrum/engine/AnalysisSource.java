@@ -0,0 +1,365 @@
+package com.ibasco.rpispectrum.engine;
+
+import com.ibasco.rpispectrum.analysis.BandMapper;
+import com.ibasco.rpispectrum.analysis.BandScale;
+import com.ibasco.rpispectrum.analysis.StftAnalyzer;
+import com.ibasco.rpispectrum.analysis.WindowFunction;
+import com.ibasco.rpispectrum.audio.PcmMixer;
+import com.ibasco.rpispectrum.metrics.LatencyHistogram;
+
+import javax.sound.sampled.AudioFormat;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An audio stream analyzed by an {@link AnalysisEngine}.
+ * <p>
+ * A source does not own a thread. The engine calls {@link #step()} on one of its pool threads whenever the next
+ * period of the stream is due; the step reads at most one period without blocking, analyzes it and returns the time
+ * until the following period is due. Steps of the same source never overlap, so the decoder and the analyzer are only
+ * ever used by one thread at a time, while steps of different sources run in parallel.
+ * <p>
+ * Every source keeps its own analyzer and metrics, and maps every spectrum to bands as part of its step. The FFT and
+ * window tables and the band mappers of sources with the same settings are shared.
+ */
+public abstract class AnalysisSource implements AutoCloseable {
+
+    public static final int DEFAULT_PERIOD_FRAMES = 1024;
+
+    public static final int DEFAULT_BAND_COUNT = 30;
+
+    /**
+     * Receives the band magnitudes of every spectrum on the engine thread that analyzed it. Implementations must not
+     * hold on to the array.
+     */
+    @FunctionalInterface
+    public interface BandListener {
+        /**
+         * @param framePosition
+         *         The stream frame position at the center of the analysis window
+         */
+        void onBands(float[] bands, long framePosition);
+    }
+
+    public enum State {
+        NEW,
+        RUNNING,
+        FINISHED,
+        FAILED
+    }
+
+    private final String name;
+
+    private int fftSize = StftAnalyzer.DEFAULT_FRAME_SIZE;
+
+    private int hopSize = StftAnalyzer.DEFAULT_HOP_SIZE;
+
+    private int historySize = 4;
+
+    private int periodFrames = DEFAULT_PERIOD_FRAMES;
+
+    private BandScale bandScale = BandScale.THIRD_OCTAVE;
+
+    private int bandCount = DEFAULT_BAND_COUNT;
+
+    private BandListener bandListener;
+
+    private volatile StftAnalyzer analyzer;
+
+    private volatile BandMapper mapper;
+
+    private float[] bands;
+
+    private volatile AudioFormat format;
+
+    private PcmMixer mixer;
+
+    private byte[] data;
+
+    private int pending;
+
+    private final LatencyHistogram stepTime = new LatencyHistogram();
+
+    private final LatencyHistogram lagTime = new LatencyHistogram();
+
+    private volatile State state = State.NEW;
+
+    private volatile Throwable failure;
+
+    private volatile long position;
+
+    private volatile long busyNanos;
+
+    private volatile long lateSteps;
+
+    protected AnalysisSource(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Opens the stream, called by the engine on a pool thread before the first step
+     *
+     * @return The PCM format {@link #read(byte[], int, int)} delivers
+     */
+    protected abstract AudioFormat openStream() throws Exception;
+
+    /**
+     * Reads decoded audio without waiting for it to arrive
+     *
+     * @return The number of bytes read, which may be 0 if nothing is available yet, or -1 at the end of the stream
+     */
+    protected abstract int read(byte[] data, int offset, int length) throws Exception;
+
+    /**
+     * @param position
+     *         The number of frames read so far
+     *
+     * @return The time in nanoseconds until the next period is due
+     */
+    protected abstract long getDelay(long position);
+
+    /**
+     * @param position
+     *         The number of frames read so far
+     *
+     * @return How far the analysis is behind the stream in nanoseconds, 0 if it keeps up
+     */
+    protected abstract long getLag(long position);
+
+    /**
+     * Releases the stream, may be called from any thread
+     */
+    @Override
+    public abstract void close();
+
+    final void open() throws Exception {
+        format = openStream();
+        analyzer = new StftAnalyzer(fftSize, hopSize, format.getSampleRate(), WindowFunction.HANN, historySize);
+        mapper = BandMapper.get(bandScale, bandCount, fftSize, format.getSampleRate());
+        bands = new float[mapper.getBandCount()];
+        analyzer.setFrameListener(this::mapBands);
+        int frameSize = format.getFrameSize();
+        data = new byte[periodFrames * frameSize];
+        mixer = new PcmMixer(format, periodFrames);
+        pending = 0;
+        position = 0;
+        state = State.RUNNING;
+    }
+
+    /**
+     * Reads and analyzes the next period
+     *
+     * @return The time in nanoseconds until the next step, or -1 if the stream has ended
+     */
+    final long step() throws Exception {
+        long start = System.nanoTime();
+        long lag = getLag(position);
+        lagTime.record(lag);
+        if (lag > getPeriodNanos())
+            lateSteps++;
+
+        int frameSize = format.getFrameSize();
+        int bytesRead = read(data, pending, data.length - pending);
+        if (bytesRead < 0) {
+            state = State.FINISHED;
+            return -1;
+        }
+        int available = pending + bytesRead;
+        int count = available / frameSize;
+        pending = available % frameSize;
+        if (count > 0) {
+            analyzer.process(mixer.mix(data, count), 0, count, position);
+            position += count;
+            //Keep a partial frame for the next read
+            if (pending > 0)
+                System.arraycopy(data, count * frameSize, data, 0, pending);
+        }
+        busyNanos += stepTime.recordSince(start) - start;
+        return getDelay(position);
+    }
+
+    private void mapBands(float[] magnitudes, long framePosition) {
+        mapper.map(magnitudes, bands);
+        if (bandListener != null)
+            bandListener.onBands(bands, framePosition);
+    }
+
+    final void fail(Throwable failure) {
+        this.failure = failure;
+        state = State.FAILED;
+    }
+
+    protected long getPeriodNanos() {
+        return (long) (periodFrames * (double) TimeUnit.SECONDS.toNanos(1) / format.getSampleRate());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getFftSize() {
+        return fftSize;
+    }
+
+    /**
+     * Must be set before the source is added to an engine
+     */
+    public void setFftSize(int fftSize) {
+        this.fftSize = fftSize;
+    }
+
+    public int getHopSize() {
+        return hopSize;
+    }
+
+    /**
+     * Must be set before the source is added to an engine
+     */
+    public void setHopSize(int hopSize) {
+        this.hopSize = hopSize;
+    }
+
+    public int getHistorySize() {
+        return historySize;
+    }
+
+    /**
+     * @param historySize
+     *         The number of spectra the analyzer keeps (Default: 4, enough to always read the latest one). Must be set
+     *         before the source is added to an engine
+     */
+    public void setHistorySize(int historySize) {
+        this.historySize = historySize;
+    }
+
+    public int getPeriodFrames() {
+        return periodFrames;
+    }
+
+    /**
+     * @param periodFrames
+     *         The number of frames read and analyzed in one step (Default: {@value #DEFAULT_PERIOD_FRAMES}). Must be
+     *         set before the source is added to an engine
+     */
+    public void setPeriodFrames(int periodFrames) {
+        if (periodFrames <= 0)
+            throw new IllegalArgumentException("Period size must be greater than zero");
+        this.periodFrames = periodFrames;
+    }
+
+    public BandScale getBandScale() {
+        return bandScale;
+    }
+
+    /**
+     * Must be set before the source is added to an engine
+     */
+    public void setBandScale(BandScale bandScale) {
+        this.bandScale = bandScale;
+    }
+
+    public int getBandCount() {
+        return bandCount;
+    }
+
+    /**
+     * @param bandCount
+     *         The number of bands every spectrum is mapped to (Default: {@value #DEFAULT_BAND_COUNT}). Must be set
+     *         before the source is added to an engine
+     */
+    public void setBandCount(int bandCount) {
+        if (bandCount <= 0)
+            throw new IllegalArgumentException("Band count must be greater than zero");
+        this.bandCount = bandCount;
+    }
+
+    public BandListener getBandListener() {
+        return bandListener;
+    }
+
+    /**
+     * @param bandListener
+     *         Receives the bands of every spectrum of this source. Must be set before the source is added to an engine
+     */
+    public void setBandListener(BandListener bandListener) {
+        this.bandListener = bandListener;
+    }
+
+    /**
+     * @return The analyzer of this source, {@code null} until the stream has been opened
+     */
+    public StftAnalyzer getAnalyzer() {
+        return analyzer;
+    }
+
+    /**
+     * @return The band mapper of this source, {@code null} until the stream has been opened
+     */
+    public BandMapper getMapper() {
+        return mapper;
+    }
+
+    /**
+     * @return The format of the decoded stream, {@code null} until the stream has been opened
+     */
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return The error the source failed with, if any
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return The number of frames analyzed
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return The duration of the analyzed audio in seconds
+     */
+    public double getAudioSeconds() {
+        return format == null ? 0 : position / (double) format.getSampleRate();
+    }
+
+    /**
+     * @return The time spent reading, analyzing and mapping bands, in nanoseconds
+     */
+    public long getBusyNanos() {
+        return busyNanos;
+    }
+
+    /**
+     * @return The time a step took to read and analyze a period
+     */
+    public LatencyHistogram getStepTime() {
+        return stepTime;
+    }
+
+    /**
+     * @return How far the analysis was behind the stream at the start of every step
+     */
+    public LatencyHistogram getLagTime() {
+        return lagTime;
+    }
+
+    /**
+     * @return The number of steps that started more than a period late, i.e. the engine did not keep up with the source
+     */
+    public long getLateSteps() {
+        return lateSteps;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
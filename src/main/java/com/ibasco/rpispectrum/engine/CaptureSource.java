@@ -0,0 +1,137 @@
+package com.ibasco.rpispectrum.engine;
+
+import com.ibasco.rpispectrum.audio.MixerRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sound.sampled.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An audio input analyzed by an {@link AnalysisEngine}.
+ * <p>
+ * Unlike {@link com.ibasco.rpispectrum.audio.AudioCapture} there is no capture thread: the engine polls the line once
+ * per period and only reads what the line has already buffered, so a pool thread never blocks on the device.
+ */
+public class CaptureSource extends AnalysisSource {
+
+    private static final Logger log = LoggerFactory.getLogger(CaptureSource.class);
+
+    public static final int DEFAULT_BUFFER_PERIODS = 8;
+
+    private final Mixer.Info mixer;
+
+    private AudioFormat captureFormat = new AudioFormat(44100, 16, 2, true, false);
+
+    private int bufferPeriods = DEFAULT_BUFFER_PERIODS;
+
+    private volatile TargetDataLine line;
+
+    private volatile long overruns;
+
+    /**
+     * @param mixer
+     *         The mixer to capture from (see {@link com.ibasco.rpispectrum.audio.AudioUtils#getRecordingDataLines()}),
+     *         or {@code null} for the system default
+     */
+    public CaptureSource(Mixer.Info mixer) {
+        super(mixer != null ? mixer.getName() : "default input");
+        this.mixer = mixer;
+    }
+
+    @Override
+    protected AudioFormat openStream() throws Exception {
+        DataLine.Info info = new DataLine.Info(TargetDataLine.class, captureFormat);
+        TargetDataLine targetDataLine = (TargetDataLine) (mixer != null ? MixerRegistry.getDefault().getMixer(mixer).getLine(info) : AudioSystem.getLine(info));
+        targetDataLine.open(captureFormat, getPeriodFrames() * captureFormat.getFrameSize() * bufferPeriods);
+        targetDataLine.start();
+        log.info("Opened capture line: {}, Format = {}, Buffer Size = {}", targetDataLine.getLineInfo(), captureFormat, targetDataLine.getBufferSize());
+        line = targetDataLine;
+        return captureFormat;
+    }
+
+    @Override
+    protected int read(byte[] data, int offset, int length) {
+        TargetDataLine targetDataLine = line;
+        if (targetDataLine == null || !targetDataLine.isOpen())
+            return -1;
+        int available = targetDataLine.available();
+        if (available >= targetDataLine.getBufferSize())
+            overruns++;
+        //Lines only read whole frames, reading no more than is available does not block
+        int frameSize = captureFormat.getFrameSize();
+        int count = Math.min(available, length);
+        count -= count % frameSize;
+        return count == 0 ? 0 : targetDataLine.read(data, offset, count);
+    }
+
+    @Override
+    protected long getDelay(long position) {
+        TargetDataLine targetDataLine = line;
+        if (targetDataLine == null)
+            return 0;
+        int missing = getPeriodFrames() - targetDataLine.available() / captureFormat.getFrameSize();
+        return missing <= 0 ? 0 : framesToNanos(missing);
+    }
+
+    @Override
+    protected long getLag(long position) {
+        TargetDataLine targetDataLine = line;
+        if (targetDataLine == null)
+            return 0;
+        //Audio buffered beyond the current period has been waiting for a step
+        int waiting = targetDataLine.available() / captureFormat.getFrameSize() - getPeriodFrames();
+        return waiting <= 0 ? 0 : framesToNanos(waiting);
+    }
+
+    private long framesToNanos(long frames) {
+        return (long) (frames * (double) TimeUnit.SECONDS.toNanos(1) / captureFormat.getSampleRate());
+    }
+
+    @Override
+    public void close() {
+        TargetDataLine targetDataLine = line;
+        line = null;
+        if (targetDataLine != null) {
+            targetDataLine.stop();
+            targetDataLine.close();
+        }
+    }
+
+    public Mixer.Info getMixer() {
+        return mixer;
+    }
+
+    public AudioFormat getCaptureFormat() {
+        return captureFormat;
+    }
+
+    /**
+     * @param captureFormat
+     *         A signed or unsigned PCM format to capture in. Must be set before the source is added to an engine
+     */
+    public void setCaptureFormat(AudioFormat captureFormat) {
+        this.captureFormat = captureFormat;
+    }
+
+    public int getBufferPeriods() {
+        return bufferPeriods;
+    }
+
+    /**
+     * @param bufferPeriods
+     *         The size of the line buffer in periods, which bounds how late a step may be before input is lost
+     */
+    public void setBufferPeriods(int bufferPeriods) {
+        if (bufferPeriods < 2)
+            throw new IllegalArgumentException("The line buffer must hold at least two periods");
+        this.bufferPeriods = bufferPeriods;
+    }
+
+    /**
+     * @return The number of times the line buffer was found full, i.e. input may have been lost
+     */
+    public long getOverruns() {
+        return overruns;
+    }
+}
@@ -0,0 +1,122 @@
+package com.ibasco.rpispectrum.engine;
+
+import com.ibasco.rpispectrum.audio.AudioUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An audio file decoded and analyzed by an {@link AnalysisEngine}, either at the pace it would be played back (a
+ * stand-in for a live stream) or as fast as the engine allows
+ */
+public class FileSource extends AnalysisSource {
+
+    private static final Logger log = LoggerFactory.getLogger(FileSource.class);
+
+    private final File file;
+
+    private boolean realtime = true;
+
+    private boolean loop;
+
+    private AudioInputStream encoded;
+
+    private AudioInputStream decoded;
+
+    private AudioFormat pcmFormat;
+
+    private long startNanos;
+
+    public FileSource(File file) {
+        super(file.getName());
+        this.file = file;
+    }
+
+    @Override
+    protected AudioFormat openStream() throws Exception {
+        openFile();
+        startNanos = System.nanoTime();
+        return pcmFormat;
+    }
+
+    private void openFile() throws Exception {
+        encoded = AudioSystem.getAudioInputStream(file);
+        pcmFormat = AudioUtils.getPcmFormat(encoded.getFormat());
+        decoded = AudioSystem.getAudioInputStream(pcmFormat, encoded);
+    }
+
+    @Override
+    protected int read(byte[] data, int offset, int length) throws Exception {
+        int bytesRead = decoded.read(data, offset, length);
+        if (bytesRead < 0 && loop) {
+            close();
+            openFile();
+            bytesRead = decoded.read(data, offset, length);
+        }
+        return bytesRead;
+    }
+
+    /**
+     * In real time mode a period is due once it would have been played back completely
+     */
+    private long getDueTime(long position) {
+        return startNanos + (long) ((position + getPeriodFrames()) * (double) TimeUnit.SECONDS.toNanos(1) / pcmFormat.getSampleRate());
+    }
+
+    @Override
+    protected long getDelay(long position) {
+        return realtime ? Math.max(0, getDueTime(position) - System.nanoTime()) : 0;
+    }
+
+    @Override
+    protected long getLag(long position) {
+        return realtime ? Math.max(0, System.nanoTime() - getDueTime(position)) : 0;
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (decoded != null)
+                decoded.close();
+            if (encoded != null)
+                encoded.close();
+        } catch (IOException e) {
+            log.debug("Error closing {}", file, e);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public boolean isRealtime() {
+        return realtime;
+    }
+
+    /**
+     * @param realtime
+     *         {@code true} to analyze the file at playback speed (Default), {@code false} to analyze it as fast as
+     *         possible
+     */
+    public void setRealtime(boolean realtime) {
+        this.realtime = realtime;
+    }
+
+    public boolean isLoop() {
+        return loop;
+    }
+
+    /**
+     * @param loop
+     *         {@code true} to start over at the end of the file instead of finishing
+     */
+    public void setLoop(boolean loop) {
+        this.loop = loop;
+    }
+}
@@ -0,0 +1,180 @@
+package com.ibasco.rpispectrum.metrics;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds for use on hot paths.
+ * <p>
+ * Values are counted in log-linear buckets (8 sub-buckets per power of two, i.e. a relative error of at most 12.5%)
+ * held in a preallocated atomic array, so recording is lock-free, does not allocate and costs a couple of atomic
+ * increments. Reads are not atomic across buckets, which is fine for monitoring.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong total = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a duration
+     *
+     * @param nanos
+     *         The duration in nanoseconds, negative values are recorded as zero
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        counts.incrementAndGet(bucketOf(nanos));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long current;
+        while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) ;
+    }
+
+    /**
+     * Records the time elapsed since the specified start time
+     *
+     * @param startNanos
+     *         The start time as returned by {@link System#nanoTime()}
+     *
+     * @return The current time, to be used as the start time of the next measurement
+     */
+    public long recordSince(long startNanos) {
+        long now = System.nanoTime();
+        record(now - startNanos);
+        return now;
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @return The highest value that falls into the bucket
+     */
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+        long lower = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) total.get() / n;
+    }
+
+    /**
+     * @param percentile
+     *         The percentile (0.0 - 100.0)
+     *
+     * @return An upper bound of the value at the percentile in nanoseconds
+     */
+    public long getPercentile(double percentile) {
+        long n = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            n += counts.get(i);
+        if (n == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(upperBoundOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            counts.set(i, 0);
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(getCount(), toMicros(getMean()), toMicros(getPercentile(50)), toMicros(getPercentile(99)), toMicros(getMax()));
+    }
+
+    private static double toMicros(double nanos) {
+        return nanos / TimeUnit.MICROSECONDS.toNanos(1);
+    }
+
+    /**
+     * Summary of a histogram in microseconds, exposed as composite data through JMX
+     */
+    public static final class Snapshot {
+
+        private final long count;
+
+        private final double mean;
+
+        private final double median;
+
+        private final double p99;
+
+        private final double max;
+
+        @ConstructorProperties({"count", "mean", "median", "p99", "max"})
+        public Snapshot(long count, double mean, double median, double p99, double max) {
+            this.count = count;
+            this.mean = mean;
+            this.median = median;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public double getMedian() {
+            return median;
+        }
+
+        public double getP99() {
+            return p99;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.0f/%.0f/%.0f us", median, p99, max);
+        }
+    }
+}
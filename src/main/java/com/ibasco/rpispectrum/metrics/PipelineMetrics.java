@@ -0,0 +1,249 @@
+package com.ibasco.rpispectrum.metrics;
+
+import com.ibasco.rpispectrum.analysis.StftAnalyzer;
+import com.ibasco.rpispectrum.audio.AudioCapture;
+import com.ibasco.rpispectrum.audio.AudioPlayback;
+import com.ibasco.rpispectrum.audio.PcmRingBuffer;
+import com.ibasco.rpispectrum.display.RenderScheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the timings and counters of the audio and render pipeline and exposes them as an MXBean (and optionally
+ * as a periodic log line).
+ * <p>
+ * The decode, conversion and FFT timings are recorded by the playback and analysis stages themselves, the band
+ * mapping, render and send timings are recorded by the render loops into the histograms provided here. With several
+ * displays the frame counters are summed over all of them and the frame rate is that of the slowest one.
+ * <p>
+ * Live input has no decode stage, playback line or read-ahead buffer. Their values stay empty and the capture overruns
+ * are reported instead.
+ */
+public class PipelineMetrics implements PipelineMetricsMXBean, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(PipelineMetrics.class);
+
+    public static final String OBJECT_NAME = "com.ibasco.rpispectrum:type=PipelineMetrics";
+
+    private final AudioPlayback player;
+
+    private final AudioCapture capture;
+
+    private final StftAnalyzer analyzer;
+
+    //Stands in for the stages of the player in live mode
+    private final LatencyHistogram emptyTime = new LatencyHistogram();
+
+    private final LatencyHistogram bandMappingTime = new LatencyHistogram();
+
+    private final LatencyHistogram renderTime = new LatencyHistogram();
+
+    private final LatencyHistogram sendBufferTime = new LatencyHistogram();
+
+    private final List<RenderScheduler> renderSchedulers = new CopyOnWriteArrayList<>();
+
+    private ObjectName objectName;
+
+    private ScheduledExecutorService logExecutor;
+
+    public PipelineMetrics(AudioPlayback player, StftAnalyzer analyzer) {
+        this(player, null, analyzer);
+    }
+
+    public PipelineMetrics(AudioCapture capture, StftAnalyzer analyzer) {
+        this(null, capture, analyzer);
+    }
+
+    private PipelineMetrics(AudioPlayback player, AudioCapture capture, StftAnalyzer analyzer) {
+        this.player = player;
+        this.capture = capture;
+        this.analyzer = analyzer;
+    }
+
+    public void addRenderScheduler(RenderScheduler renderScheduler) {
+        renderSchedulers.add(renderScheduler);
+    }
+
+    public LatencyHistogram getBandMappingHistogram() {
+        return bandMappingTime;
+    }
+
+    public LatencyHistogram getRenderHistogram() {
+        return renderTime;
+    }
+
+    public LatencyHistogram getSendBufferHistogram() {
+        return sendBufferTime;
+    }
+
+    /**
+     * Registers this instance with the platform MBean server
+     */
+    public synchronized void register() throws JMException {
+        if (objectName != null)
+            return;
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(name))
+            server.unregisterMBean(name);
+        server.registerMBean(this, name);
+        objectName = name;
+        log.info("Registered pipeline metrics MBean: {}", name);
+    }
+
+    /**
+     * Logs a summary of the metrics at a fixed rate on a daemon thread
+     */
+    public synchronized void startLogging(long period, TimeUnit unit) {
+        if (logExecutor != null)
+            return;
+        logExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "pipeline-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        logExecutor.scheduleAtFixedRate(() -> log.info(summary()), period, period, unit);
+    }
+
+    /**
+     * @return A single line summary of the metrics, timings are given as median/p99/max
+     */
+    public String summary() {
+        if (player == null) {
+            return String.format("fft: %s, bands: %s, render: %s, send: %s, capture overruns: %d, frames: %d rendered, %d skipped, %d dropped, %.1f fps",
+                    getFftTime(), getBandMappingTime(), getRenderTime(), getSendBufferTime(), getCaptureOverruns(),
+                    getRenderedFrames(), getSkippedFrames(), getDroppedFrames(), getAchievedFps());
+        }
+        return String.format("decode: %s, conversion: %s, fft: %s, bands: %s, render: %s, send: %s, line: %.0f%%, pcm buffer: %.0f%%, underruns: %d/%d, frames: %d rendered, %d skipped, %d dropped, %.1f fps",
+                getDecodeTime(), getConversionTime(), getFftTime(), getBandMappingTime(), getRenderTime(), getSendBufferTime(),
+                getLineFillRatio() * 100, getPcmBufferFillRatio() * 100, getLineUnderruns(), getPcmBufferUnderruns(),
+                getRenderedFrames(), getSkippedFrames(), getDroppedFrames(), getAchievedFps());
+    }
+
+    @Override
+    public synchronized void close() {
+        if (logExecutor != null) {
+            logExecutor.shutdownNow();
+            logExecutor = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                log.warn("Unable to unregister {}", objectName, e);
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getDecodeTime() {
+        return (player == null ? emptyTime : player.getDecodeTime()).snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getConversionTime() {
+        return (player == null ? emptyTime : player.getConversionTime()).snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getFftTime() {
+        return analyzer.getFrameTime().snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getBandMappingTime() {
+        return bandMappingTime.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getRenderTime() {
+        return renderTime.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getSendBufferTime() {
+        return sendBufferTime.snapshot();
+    }
+
+    @Override
+    public float getLineFillRatio() {
+        return player == null ? 0 : player.getLineFillRatio();
+    }
+
+    @Override
+    public float getPcmBufferFillRatio() {
+        PcmRingBuffer buffer = player == null ? null : player.getPcmBuffer();
+        return buffer == null ? 0 : buffer.getFillRatio();
+    }
+
+    @Override
+    public long getLineUnderruns() {
+        return player == null ? 0 : player.getLineUnderruns();
+    }
+
+    @Override
+    public long getPcmBufferUnderruns() {
+        PcmRingBuffer buffer = player == null ? null : player.getPcmBuffer();
+        return buffer == null ? 0 : buffer.getUnderruns();
+    }
+
+    @Override
+    public long getCaptureOverruns() {
+        return capture == null ? 0 : capture.getOverruns();
+    }
+
+    @Override
+    public long getRenderedFrames() {
+        long frames = 0;
+        for (RenderScheduler scheduler : renderSchedulers)
+            frames += scheduler.getRenderedFrames();
+        return frames;
+    }
+
+    @Override
+    public long getSkippedFrames() {
+        long frames = 0;
+        for (RenderScheduler scheduler : renderSchedulers)
+            frames += scheduler.getSkippedFrames();
+        return frames;
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        long frames = 0;
+        for (RenderScheduler scheduler : renderSchedulers)
+            frames += scheduler.getLateFrames();
+        return frames;
+    }
+
+    @Override
+    public double getAchievedFps() {
+        double fps = Double.MAX_VALUE;
+        for (RenderScheduler scheduler : renderSchedulers)
+            fps = Math.min(fps, scheduler.getAchievedFps());
+        return renderSchedulers.isEmpty() ? 0 : fps;
+    }
+
+    @Override
+    public void resetTimers() {
+        if (player != null) {
+            player.getDecodeTime().reset();
+            player.getConversionTime().reset();
+        }
+        analyzer.getFrameTime().reset();
+        bandMappingTime.reset();
+        renderTime.reset();
+        sendBufferTime.reset();
+    }
+}
@@ -0,0 +1,39 @@
+package com.ibasco.rpispectrum.metrics;
+
+/**
+ * Management interface of {@link PipelineMetrics}. Timings are reported in microseconds.
+ */
+public interface PipelineMetricsMXBean {
+
+    LatencyHistogram.Snapshot getDecodeTime();
+
+    LatencyHistogram.Snapshot getConversionTime();
+
+    LatencyHistogram.Snapshot getFftTime();
+
+    LatencyHistogram.Snapshot getBandMappingTime();
+
+    LatencyHistogram.Snapshot getRenderTime();
+
+    LatencyHistogram.Snapshot getSendBufferTime();
+
+    float getLineFillRatio();
+
+    float getPcmBufferFillRatio();
+
+    long getLineUnderruns();
+
+    long getPcmBufferUnderruns();
+
+    long getCaptureOverruns();
+
+    long getRenderedFrames();
+
+    long getSkippedFrames();
+
+    long getDroppedFrames();
+
+    double getAchievedFps();
+
+    void resetTimers();
+}
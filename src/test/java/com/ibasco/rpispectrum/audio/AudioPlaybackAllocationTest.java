@@ -0,0 +1,126 @@
+package com.ibasco.rpispectrum.audio;
+
+import com.ibasco.rpispectrum.analysis.StftAnalyzer;
+import com.ibasco.rpispectrum.analysis.WindowFunction;
+import com.ibasco.rpispectrum.display.MemoryDisplaySink;
+import com.ibasco.rpispectrum.display.SpectrumRenderer;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sound.sampled.AudioFormat;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Fails when the steady state playback and render path starts allocating again, or stops passing every decoded frame
+ * on. Bytes are counted per thread, so only what the calling thread allocates is measured.
+ */
+public class AudioPlaybackAllocationTest {
+
+    private static final int WARMUP_CHUNKS = 20000;
+
+    private static final int CHUNKS = 1000;
+
+    //A decoder chunk holds a different number of frames for each of these
+    private static final AudioFormat[] FORMATS = {
+            new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, 44100, 16, 2, 4, 44100, false),
+            new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, 44100, 16, 1, 2, 44100, false),
+            new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, 44100, 8, 2, 2, 44100, false)
+    };
+
+    private com.sun.management.ThreadMXBean threads;
+
+    private byte[] pcm;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        pcm = new byte[AudioPlayback.EXTERNAL_BUFFER_SIZE];
+        new Random(0).nextBytes(pcm);
+    }
+
+    private static AudioPlayback createPlayback(AudioFormat format) {
+        AudioPlayback playback = new AudioPlayback();
+        playback.initBuffers(format);
+        return playback;
+    }
+
+    @Test
+    public void everyFrameReachesListener() {
+        for (AudioFormat format : FORMATS) {
+            AudioPlayback playback = createPlayback(format);
+            long[] next = new long[1];
+            playback.setSampleListener((samples, offset, length, framePosition) -> {
+                assertEquals(format + ": position", next[0], framePosition);
+                next[0] += length;
+            });
+            int frameSize = format.getFrameSize();
+            long bytes = 0;
+            //Full chunks and the shorter ones a decoder returns at times
+            for (int length : new int[]{pcm.length, pcm.length, 1000 * frameSize, pcm.length, frameSize, pcm.length}) {
+                playback.processChunk(format, pcm, length);
+                bytes += length;
+            }
+            assertEquals(format + ": frames", bytes / frameSize, next[0]);
+        }
+    }
+
+    @Test
+    public void decodeChunk() {
+        for (AudioFormat format : FORMATS) {
+            AudioPlayback playback = createPlayback(format);
+            assertEquals(format.toString(), 0, allocatedBytes(() -> playback.processChunk(format, pcm, pcm.length)));
+        }
+    }
+
+    @Test
+    public void analyzeChunk() {
+        for (AudioFormat format : FORMATS) {
+            AudioPlayback playback = createPlayback(format);
+            StftAnalyzer analyzer = new StftAnalyzer(2048, 512, format.getSampleRate(), WindowFunction.HANN);
+            playback.setSampleListener(analyzer::process);
+            assertEquals(format.toString(), 0, allocatedBytes(() -> playback.processChunk(format, pcm, pcm.length)));
+        }
+    }
+
+    @Test
+    public void renderFrame() {
+        SpectrumRenderer renderer = new SpectrumRenderer();
+        MemoryDisplaySink sink = new MemoryDisplaySink(128, 64);
+        float[] levels = new float[30];
+        float[] peaks = new float[30];
+        Random random = new Random(0);
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = random.nextFloat();
+            peaks[i] = Math.min(1, levels[i] + 0.1f);
+        }
+        //The elapsed time text is only formatted when the displayed second changes
+        assertEquals(0, allocatedBytes(() -> {
+            renderer.render(sink, levels, peaks, 42);
+            sink.sendBuffer();
+        }));
+    }
+
+    /**
+     * @return The bytes allocated by the current thread over {@link #CHUNKS} runs of the task once it has been warmed
+     * up, less what reading the counter allocates by itself
+     */
+    private long allocatedBytes(Runnable task) {
+        for (int i = 0; i < WARMUP_CHUNKS; i++)
+            task.run();
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        long overhead = threads.getThreadAllocatedBytes(thread) - before;
+        before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < CHUNKS; i++)
+            task.run();
+        return threads.getThreadAllocatedBytes(thread) - before - overhead;
+    }
+}
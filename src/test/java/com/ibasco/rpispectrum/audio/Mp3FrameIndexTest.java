@@ -0,0 +1,200 @@
+package com.ibasco.rpispectrum.audio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the output of a decode restarted through the frame index with a decode of the whole file
+ */
+public class Mp3FrameIndexTest {
+
+    private static final int FRAME_COUNT = 300;
+
+    //MPEG-1 Layer III, 128 kbit/s, 44.1 kHz, mono, no CRC, no padding
+    private static final int FRAME_LENGTH = 417;
+
+    private static final int SIDE_INFO_SIZE = 17;
+
+    private static final int SAMPLES_PER_FRAME = 1152;
+
+    private static final int[] LOUD_FRAMES = {50, 123, 124, 200};
+
+    private static final AudioFormat PCM_FORMAT = new AudioFormat(44100, 16, 1, true, false);
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("reservoir", ".mp3");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file.toPath());
+    }
+
+    @Test
+    public void restartWithoutReservoir() throws Exception {
+        write(file, 0);
+        assertRestartsMatchFullDecode();
+    }
+
+    @Test
+    public void restartWithReservoir() throws Exception {
+        write(file, 120);
+        Mp3FrameIndex index = Mp3FrameIndex.build(file);
+        //The restart frame has main data in the frame before it, so it decodes to nothing
+        assertEquals(198, index.getRestartFrame(200));
+        assertEquals(199L * SAMPLES_PER_FRAME, index.getRestartSample(200));
+        assertRestartsMatchFullDecode();
+    }
+
+    @Test
+    public void savedIndexMatchesBuiltIndex() throws Exception {
+        write(file, 120);
+        Mp3FrameIndex built = Mp3FrameIndex.build(file);
+        File indexFile = new File(file.getPath() + Mp3FrameIndex.EXTENSION);
+        try {
+            built.save(indexFile.toPath());
+            Mp3FrameIndex loaded = Mp3FrameIndex.load(indexFile.toPath());
+            assertEquals(built.getFrameCount(), loaded.getFrameCount());
+            for (int frame = 0; frame < built.getFrameCount(); frame++) {
+                assertEquals(built.getOffset(frame), loaded.getOffset(frame));
+                assertEquals(built.getRestartFrame(frame), loaded.getRestartFrame(frame));
+                assertEquals(built.getRestartSample(frame), loaded.getRestartSample(frame));
+            }
+        } finally {
+            Files.deleteIfExists(indexFile.toPath());
+        }
+    }
+
+    private void assertRestartsMatchFullDecode() throws Exception {
+        Mp3FrameIndex index = Mp3FrameIndex.build(file);
+        assertEquals(FRAME_COUNT, index.getFrameCount());
+        byte[] full;
+        try (AudioInputStream decoded = AudioSystem.getAudioInputStream(PCM_FORMAT, AudioSystem.getAudioInputStream(file))) {
+            full = readFully(decoded, Integer.MAX_VALUE);
+        }
+        assertEquals(index.getSampleCount() * 2, full.length);
+
+        int frameSize = PCM_FORMAT.getFrameSize();
+        int length = 3 * SAMPLES_PER_FRAME * frameSize;
+        for (int loud : LOUD_FRAMES) {
+            for (long target : new long[]{(long) loud * SAMPLES_PER_FRAME, (long) loud * SAMPLES_PER_FRAME - 1000, (long) (loud - 1) * SAMPLES_PER_FRAME + 7}) {
+                byte[] expected = new byte[length];
+                System.arraycopy(full, (int) (target * frameSize), expected, 0, length);
+                assertTrue("Frame " + loud + " must not be silent", !isSilent(expected));
+                assertArrayEquals("Restart for sample " + target, expected, decodeFrom(index, target, length));
+            }
+        }
+    }
+
+    private byte[] decodeFrom(Mp3FrameIndex index, long target, int length) throws Exception {
+        int frame = index.getFrame(target);
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        channel.position(index.getOffset(index.getRestartFrame(frame)));
+        try (AudioInputStream encoded = AudioSystem.getAudioInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+             AudioInputStream decoded = AudioSystem.getAudioInputStream(PCM_FORMAT, encoded)) {
+            long skip = (target - index.getRestartSample(frame)) * PCM_FORMAT.getFrameSize();
+            assertTrue(skip >= 0);
+            readFully(decoded, (int) skip);
+            byte[] data = readFully(decoded, length);
+            assertEquals(length, data.length);
+            return data;
+        }
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while (out.size() < length && (read = in.read(buffer, 0, Math.min(buffer.length, length - out.size()))) != -1)
+            out.write(buffer, 0, read);
+        return out.toByteArray();
+    }
+
+    private static boolean isSilent(byte[] data) {
+        for (byte b : data) {
+            if (b != 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes a file of silent frames with a short burst in each of the {@link #LOUD_FRAMES}. Every frame but the first
+     * starts its main data the specified number of bytes back in the frame before it.
+     */
+    private static void write(File file, int mainDataBegin) throws IOException {
+        byte[] data = new byte[FRAME_COUNT * FRAME_LENGTH];
+        for (int frame = 0; frame < FRAME_COUNT; frame++) {
+            int position = frame * FRAME_LENGTH;
+            data[position] = (byte) 0xFF;
+            data[position + 1] = (byte) 0xFB;
+            data[position + 2] = (byte) 0x90;
+            data[position + 3] = (byte) 0xC4;
+            boolean loud = false;
+            for (int f : LOUD_FRAMES)
+                loud |= f == frame;
+            int begin = frame == 0 ? 0 : mainDataBegin;
+
+            BitWriter sideInfo = new BitWriter(data, position + 4);
+            sideInfo.write(begin, 9);
+            sideInfo.write(0, 5); //private bits
+            sideInfo.write(0, 4); //scfsi
+            for (int granule = 0; granule < 2; granule++) {
+                sideInfo.write(loud ? 5 : 0, 12); //part2_3_length
+                sideInfo.write(0, 9); //big_values
+                sideInfo.write(loud ? 210 : 0, 8); //global_gain
+                sideInfo.write(0, 4); //scalefac_compress
+                sideInfo.write(0, 1); //window_switching_flag
+                sideInfo.write(0, 15); //table_select
+                sideInfo.write(0, 4); //region0_count
+                sideInfo.write(0, 3); //region1_count
+                sideInfo.write(0, 1); //preflag
+                sideInfo.write(0, 1); //scalefac_scale
+                sideInfo.write(1, 1); //count1table_select
+            }
+            if (loud) {
+                //A main data begin reaches back into the end of the main data slots of the frame before
+                BitWriter mainData = new BitWriter(data, begin == 0 ? position + 4 + SIDE_INFO_SIZE : position - begin);
+                //One count1 quadruple and its sign bit per granule
+                mainData.write(0b01110, 5);
+                mainData.write(0b01110, 5);
+            }
+        }
+        Files.write(file.toPath(), data);
+    }
+
+    private static final class BitWriter {
+
+        private final byte[] data;
+
+        private int bit;
+
+        private BitWriter(byte[] data, int offset) {
+            this.data = data;
+            this.bit = offset * 8;
+        }
+
+        private void write(int value, int bits) {
+            for (int i = bits - 1; i >= 0; i--) {
+                if (((value >> i) & 1) != 0)
+                    data[bit >> 3] |= (byte) (0x80 >> (bit & 7));
+                bit++;
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.ibasco.rpispectrum.audio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A closed dispatcher must start again for new listeners, however its last listener returned
+ */
+public class PlayerEventDispatcherTest {
+
+    private PlayerEventDispatcher dispatcher;
+
+    @Before
+    public void setUp() {
+        dispatcher = new PlayerEventDispatcher("Test dispatcher");
+    }
+
+    @After
+    public void tearDown() {
+        dispatcher.close();
+    }
+
+    @Test
+    public void restartsAfterListenerOutlivesClose() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch returned = new CountDownLatch(1);
+        dispatcher.addListener((event, position, value, params) -> {
+            started.countDown();
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            returned.countDown();
+        });
+        dispatcher.post(AudioPlayback.PlayerEvent.PLAYING, 0, -1);
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        dispatcher.close(50, TimeUnit.MILLISECONDS);
+        assertTrue(returned.await(1, TimeUnit.SECONDS));
+
+        assertDelivered();
+    }
+
+    @Test
+    public void restartsAfterListenerCloses() throws InterruptedException {
+        CountDownLatch closed = new CountDownLatch(1);
+        dispatcher.addListener((event, position, value, params) -> {
+            dispatcher.close();
+            closed.countDown();
+        });
+        dispatcher.post(AudioPlayback.PlayerEvent.PLAYING, 0, -1);
+        assertTrue(closed.await(1, TimeUnit.SECONDS));
+
+        assertDelivered();
+    }
+
+    /**
+     * Posts events until one reaches a new listener, the old dispatcher thread may still be on its way out
+     */
+    private void assertDelivered() throws InterruptedException {
+        CountDownLatch delivered = new CountDownLatch(1);
+        dispatcher.addListener((event, position, value, params) -> delivered.countDown());
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (!delivered.await(50, TimeUnit.MILLISECONDS) && System.nanoTime() < deadline)
+            dispatcher.post(AudioPlayback.PlayerEvent.STOPPED, 0, -1);
+        assertEquals(0, delivered.getCount());
+    }
+}
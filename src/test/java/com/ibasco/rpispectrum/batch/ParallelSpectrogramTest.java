@@ -0,0 +1,144 @@
+package com.ibasco.rpispectrum.batch;
+
+import com.ibasco.rpispectrum.analysis.BandMapper;
+import com.ibasco.rpispectrum.analysis.BandScale;
+import com.ibasco.rpispectrum.analysis.StftAnalyzer;
+import com.ibasco.rpispectrum.analysis.WindowFunction;
+import com.ibasco.rpispectrum.audio.PcmMixer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * The segmented spectrogram must be bit-identical to a single sequential pass over the same data
+ */
+public class ParallelSpectrogramTest {
+
+    //Not a whole number of hops or segments for any of the settings below
+    private static final int FRAMES = 3 * 44100 + 123;
+
+    //{fftSize, hopSize}, including a hop that does not divide the FFT size and one without overlap
+    private static final int[][] ANALYSIS = {{2048, 512}, {1024, 300}, {4096, 4096}};
+
+    //Including segments shorter than the FFT size
+    private static final long[] SEGMENTS = {1000, 44100, 100000};
+
+    private final List<Path> files = new ArrayList<>();
+
+    private final List<FileChannel> channels = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        files.clear();
+        channels.clear();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (FileChannel channel : channels)
+            channel.close();
+        for (Path file : files)
+            Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void mono() throws IOException {
+        assertMatchesSequential(new AudioFormat(44100, 16, 1, true, false));
+    }
+
+    @Test
+    public void stereo() throws IOException {
+        assertMatchesSequential(new AudioFormat(44100, 16, 2, true, false));
+    }
+
+    private void assertMatchesSequential(AudioFormat format) throws IOException {
+        byte[] pcm = createPcm(format);
+        FileChannel channel = open(pcm);
+        for (int[] analysis : ANALYSIS) {
+            int fftSize = analysis[0];
+            int hopSize = analysis[1];
+            BandMapper mapper = BandMapper.get(BandScale.THIRD_OCTAVE, 30, fftSize, format.getSampleRate());
+            Frames expected = analyzeSequential(pcm, format, fftSize, hopSize, mapper);
+            assertTrue(expected.positions.size() > 10);
+            for (long segmentFrames : SEGMENTS) {
+                String settings = format.getChannels() + " channel(s), fft " + fftSize + ", hop " + hopSize + ", segment " + segmentFrames;
+                Frames actual = new Frames();
+                long frames = new ParallelSpectrogram(fftSize, hopSize, format, mapper, segmentFrames).write(channel, actual);
+                assertEquals(settings, FRAMES, frames);
+                assertEquals(settings + ": frame count", expected.positions.size(), actual.positions.size());
+                for (int i = 0; i < expected.positions.size(); i++) {
+                    assertEquals(settings + ": position of frame " + i, expected.positions.get(i), actual.positions.get(i));
+                    assertArrayEquals(settings + ": levels of frame " + i, expected.levels.get(i), actual.levels.get(i), 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Analyzes the data in one pass, the way {@link BatchAnalyzer} does without segmentation
+     */
+    private static Frames analyzeSequential(byte[] pcm, AudioFormat format, int fftSize, int hopSize, BandMapper mapper) {
+        Frames frames = new Frames();
+        StftAnalyzer analyzer = new StftAnalyzer(fftSize, hopSize, format.getSampleRate(), WindowFunction.HANN, 1);
+        BandLevels levels = new BandLevels(mapper, fftSize);
+        analyzer.setFrameListener((magnitudes, framePosition) -> frames.write(framePosition, levels.compute(magnitudes)));
+        int frameSize = format.getFrameSize();
+        int chunkFrames = 4096;
+        PcmMixer mixer = new PcmMixer(format, chunkFrames);
+        byte[] data = new byte[chunkFrames * frameSize];
+        for (int offset = 0; offset < pcm.length; offset += data.length) {
+            int count = Math.min(data.length, pcm.length - offset) / frameSize;
+            System.arraycopy(pcm, offset, data, 0, count * frameSize);
+            analyzer.process(mixer.mix(data, count), 0, count);
+        }
+        return frames;
+    }
+
+    private static byte[] createPcm(AudioFormat format) {
+        ByteBuffer pcm = ByteBuffer.allocate(FRAMES * format.getFrameSize()).order(ByteOrder.LITTLE_ENDIAN);
+        Random random = new Random(0);
+        while (pcm.hasRemaining())
+            pcm.putShort((short) (random.nextGaussian() * 4000));
+        return pcm.array();
+    }
+
+    private FileChannel open(byte[] pcm) throws IOException {
+        Path file = Files.createTempFile("spectrogram", ".pcm");
+        files.add(file);
+        Files.write(file, pcm);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        channels.add(channel);
+        return channel;
+    }
+
+    private static final class Frames implements BandFrameWriter {
+
+        private final List<Long> positions = new ArrayList<>();
+
+        private final List<float[]> levels = new ArrayList<>();
+
+        @Override
+        public void write(long framePosition, float[] levels) {
+            positions.add(framePosition);
+            this.levels.add(levels.clone());
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}